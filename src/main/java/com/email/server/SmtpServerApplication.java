@@ -4,6 +4,7 @@ import com.email.server.config.ServerConfig;
 import com.email.server.imap.ImapServer;
 import com.email.server.pop3.Pop3Server;
 import com.email.server.smtp.SmtpServer;
+import com.email.server.transport.TransportRuntime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,17 +20,20 @@ public class SmtpServerApplication {
             ((com.email.server.user.InMemoryUserRepository) userRepository).addUser("user@example.com", "password");
 
             com.email.server.mailbox.MailboxStorage mailboxStorage = new com.email.server.mailbox.LocalMailboxStorage(
-                    config.getMailStoragePath());
+                    config.getMailStoragePath(), config.getStorageIoThreads());
 
-            SmtpServer smtpServer = new SmtpServer(config, userRepository, mailboxStorage);
-            Pop3Server pop3Server = new Pop3Server(config, mailboxStorage);
-            ImapServer imapServer = new ImapServer(config, mailboxStorage);
+            // One set of event loops for all protocols
+            TransportRuntime runtime = new TransportRuntime(config);
+            SmtpServer smtpServer = new SmtpServer(config, runtime, userRepository, mailboxStorage);
+            Pop3Server pop3Server = new Pop3Server(config, runtime, mailboxStorage);
+            ImapServer imapServer = new ImapServer(config, runtime, mailboxStorage);
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 logger.info("Shutting down servers...");
                 imapServer.stop();
                 pop3Server.stop();
                 smtpServer.stop();
+                runtime.shutdown();
             }));
 
             smtpServer.start();
@@ -6,6 +6,7 @@ public enum SmtpCommand {
     MAIL("MAIL"),
     RCPT("RCPT"),
     DATA("DATA"),
+    BDAT("BDAT"),
     RSET("RSET"),
     VRFY("VRFY"),
     EXPN("EXPN"),
@@ -3,14 +3,39 @@ package com.email.server.config;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
+import java.nio.file.Paths;
+import java.time.Duration;
+
 public class ServerConfig {
     private final int smtpPort;
     private final String bindAddress;
     private final String mailStoragePath;
     private final String mailboxesPath;
+    private final String spoolPath;
+    private final String queuePath;
+    private final long queueSegmentSize;
+    private final int deliveryIoThreads;
+    private final int deliveryMaxConnections;
+    private final int deliveryMaxConnectionsPerDomain;
+    private final int deliveryMaxConnectionsPerHost;
+    private final int deliveryIdleTimeout;
+    private final int deliveryMaxQueued;
+    private final int deliveryTimeout;
+    private final int deliverySmtpPort;
+    private final Duration deliveryRetryInitialDelay;
+    private final double deliveryRetryMultiplier;
+    private final Duration deliveryRetryMaxDelay;
+    private final double deliveryRetryJitter;
+    private final int deliveryMaxRetries;
+    private final double deliveryDomainRate;
+    private final int deliveryDomainBurst;
+    private final Duration deliveryDomainBackoff;
+    private final Duration deliveryDomainMaxBackoff;
     private final int ioThreads;
+    private final String transport;
+    private final boolean reusePort;
     private final int workerThreads;
-    private final int businessThreads;
+    private final int storageIoThreads;
     private final int maxConnections;
     private final int connectionTimeout;
     private final String serverName;
@@ -32,10 +57,59 @@ public class ServerConfig {
         this.mailStoragePath = config.getString("storage.mail-path");
         this.mailboxesPath = config.hasPath("storage.mailboxes-path") ? config.getString("storage.mailboxes-path")
                 : "./data/mailboxes";
+        this.spoolPath = config.hasPath("storage.spool-path") ? config.getString("storage.spool-path")
+                : Paths.get(System.getProperty("java.io.tmpdir"), "email-server-spool").toString();
+        this.queuePath = config.hasPath("storage.queue-path") ? config.getString("storage.queue-path")
+                : "./data/queue";
+        this.queueSegmentSize = config.hasPath("delivery.segment-size") ? config.getBytes("delivery.segment-size")
+                : 64L * 1024 * 1024;
+        this.deliveryIoThreads = config.hasPath("delivery.io-threads") ? config.getInt("delivery.io-threads") : 2;
+        this.deliveryMaxConnections = config.hasPath("delivery.max-connections")
+                ? config.getInt("delivery.max-connections")
+                : 100;
+        this.deliveryMaxConnectionsPerDomain = config.hasPath("delivery.max-connections-per-domain")
+                ? config.getInt("delivery.max-connections-per-domain")
+                : 10;
+        this.deliveryMaxConnectionsPerHost = config.hasPath("delivery.max-connections-per-host")
+                ? config.getInt("delivery.max-connections-per-host")
+                : 5;
+        this.deliveryIdleTimeout = config.hasPath("delivery.idle-timeout") ? config.getInt("delivery.idle-timeout")
+                : 30;
+        this.deliveryMaxQueued = config.hasPath("delivery.max-queued") ? config.getInt("delivery.max-queued")
+                : 10000;
+        this.deliveryTimeout = config.hasPath("delivery.timeout") ? config.getInt("delivery.timeout") : 60;
+        this.deliverySmtpPort = config.hasPath("delivery.smtp-port") ? config.getInt("delivery.smtp-port") : 25;
+        this.deliveryRetryInitialDelay = config.hasPath("delivery.retry-initial-delay")
+                ? config.getDuration("delivery.retry-initial-delay")
+                : Duration.ofMinutes(1);
+        this.deliveryRetryMultiplier = config.hasPath("delivery.retry-multiplier")
+                ? config.getDouble("delivery.retry-multiplier")
+                : 2.0;
+        this.deliveryRetryMaxDelay = config.hasPath("delivery.retry-max-delay")
+                ? config.getDuration("delivery.retry-max-delay")
+                : Duration.ofHours(4);
+        this.deliveryRetryJitter = config.hasPath("delivery.retry-jitter") ? config.getDouble("delivery.retry-jitter")
+                : 0.2;
+        this.deliveryMaxRetries = config.hasPath("delivery.max-retries") ? config.getInt("delivery.max-retries") : 8;
+        this.deliveryDomainRate = config.hasPath("delivery.domain-rate") ? config.getDouble("delivery.domain-rate")
+                : 10.0;
+        this.deliveryDomainBurst = config.hasPath("delivery.domain-burst") ? config.getInt("delivery.domain-burst")
+                : 20;
+        this.deliveryDomainBackoff = config.hasPath("delivery.domain-backoff")
+                ? config.getDuration("delivery.domain-backoff")
+                : Duration.ofSeconds(5);
+        this.deliveryDomainMaxBackoff = config.hasPath("delivery.domain-max-backoff")
+                ? config.getDuration("delivery.domain-max-backoff")
+                : Duration.ofMinutes(5);
+        this.transport = config.hasPath("server.transport") ? config.getString("server.transport") : "auto";
+        this.reusePort = !config.hasPath("server.reuse-port") || config.getBoolean("server.reuse-port");
         this.ioThreads = config.getInt("server.io-threads");
         this.workerThreads = config.getInt("server.worker-threads");
-        this.businessThreads = config.hasPath("server.business-threads") ? config.getInt("server.business-threads")
+        // Formerly the handler threads, which did the storage I/O
+        int businessThreads = config.hasPath("server.business-threads") ? config.getInt("server.business-threads")
                 : 16;
+        this.storageIoThreads = config.hasPath("storage.io-threads") ? config.getInt("storage.io-threads")
+                : businessThreads;
         this.maxConnections = config.getInt("server.max-connections");
         this.connectionTimeout = config.getInt("server.connection-timeout");
         this.serverName = config.getString("server.name");
@@ -61,6 +135,17 @@ public class ServerConfig {
         return mailStoragePath;
     }
 
+    /**
+     * @return "auto", "epoll" or "nio"
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
     public int getIoThreads() {
         return ioThreads;
     }
@@ -69,8 +154,8 @@ public class ServerConfig {
         return workerThreads;
     }
 
-    public int getBusinessThreads() {
-        return businessThreads;
+    public int getStorageIoThreads() {
+        return storageIoThreads;
     }
 
     public int getMaxConnections() {
@@ -105,6 +190,86 @@ public class ServerConfig {
         return mailboxesPath;
     }
 
+    public String getSpoolPath() {
+        return spoolPath;
+    }
+
+    public String getQueuePath() {
+        return queuePath;
+    }
+
+    public long getQueueSegmentSize() {
+        return queueSegmentSize;
+    }
+
+    public int getDeliveryIoThreads() {
+        return deliveryIoThreads;
+    }
+
+    public int getDeliveryMaxConnections() {
+        return deliveryMaxConnections;
+    }
+
+    public int getDeliveryMaxConnectionsPerDomain() {
+        return deliveryMaxConnectionsPerDomain;
+    }
+
+    public int getDeliveryMaxConnectionsPerHost() {
+        return deliveryMaxConnectionsPerHost;
+    }
+
+    public int getDeliveryIdleTimeout() {
+        return deliveryIdleTimeout;
+    }
+
+    public int getDeliveryMaxQueued() {
+        return deliveryMaxQueued;
+    }
+
+    public int getDeliveryTimeout() {
+        return deliveryTimeout;
+    }
+
+    public int getDeliverySmtpPort() {
+        return deliverySmtpPort;
+    }
+
+    public Duration getDeliveryRetryInitialDelay() {
+        return deliveryRetryInitialDelay;
+    }
+
+    public double getDeliveryRetryMultiplier() {
+        return deliveryRetryMultiplier;
+    }
+
+    public Duration getDeliveryRetryMaxDelay() {
+        return deliveryRetryMaxDelay;
+    }
+
+    public double getDeliveryRetryJitter() {
+        return deliveryRetryJitter;
+    }
+
+    public int getDeliveryMaxRetries() {
+        return deliveryMaxRetries;
+    }
+
+    public double getDeliveryDomainRate() {
+        return deliveryDomainRate;
+    }
+
+    public int getDeliveryDomainBurst() {
+        return deliveryDomainBurst;
+    }
+
+    public Duration getDeliveryDomainBackoff() {
+        return deliveryDomainBackoff;
+    }
+
+    public Duration getDeliveryDomainMaxBackoff() {
+        return deliveryDomainMaxBackoff;
+    }
+
     public Config getConfig() {
         return config;
     }
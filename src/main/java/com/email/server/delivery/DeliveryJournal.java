@@ -0,0 +1,588 @@
+package com.email.server.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented append-only journal of queued outbound messages.
+ *
+ * Every queued message is written as one ENQUEUE record holding its envelope and
+ * content; every recipient that is delivered to (or given up on) adds a small
+ * DONE record. Records are appended by a single writer thread which syncs the
+ * segment once per batch, so concurrent enqueues share one fsync (group commit)
+ * and each caller returns only once its record is on disk.
+ *
+ * The journal is split into segments that are rolled over at a configured size.
+ * The oldest segments are deleted as soon as none of their messages is pending,
+ * so DONE records of a pending message are never lost before the message itself.
+ * On startup all segments are replayed and a torn record at the end of the last
+ * segment is truncated.
+ *
+ * Record layout: int length, byte type, payload, int CRC32 of type and payload.
+ */
+class DeliveryJournal {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte ENQUEUE = 1;
+    private static final byte DONE = 2;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final BlockingQueue<PendingWrite> writes = new LinkedBlockingQueue<>();
+
+    // Queued messages that still have pending recipients, by message id
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Number of pending messages per segment, guarded by this
+    private final TreeMap<Long, Integer> segments = new TreeMap<>();
+
+    // Only touched by the writer thread once the journal is open
+    private FileChannel activeChannel;
+    private long activeSequence;
+    private final ByteBuffer copyBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private Thread writer;
+    private volatile boolean closed;
+
+    DeliveryJournal(Path directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Open the journal, replaying existing segments
+     *
+     * @return the messages that still have pending recipients, oldest first
+     */
+    synchronized List<DeliveryTask> open() throws IOException {
+        Files.createDirectories(directory);
+        closed = false;
+        entries.clear();
+        segments.clear();
+
+        List<Long> sequences;
+        try (Stream<Path> files = Files.list(directory)) {
+            sequences = files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        long maxId = 0;
+        for (int i = 0; i < sequences.size(); i++) {
+            long sequence = sequences.get(i);
+            segments.put(sequence, 0);
+            maxId = Math.max(maxId, replay(sequence, i == sequences.size() - 1));
+        }
+        nextId.set(maxId + 1);
+
+        // New records always go to a fresh segment
+        activeSequence = sequences.isEmpty() ? 1 : sequences.get(sequences.size() - 1) + 1;
+        openActiveSegment();
+        releaseSegments();
+
+        writer = new Thread(this::writeLoop, "delivery-journal");
+        writer.setDaemon(true);
+        writer.start();
+
+        List<DeliveryTask> pending = entries.values().stream()
+                .sorted((a, b) -> Long.compare(a.id, b.id))
+                .map(entry -> entry.task)
+                .collect(Collectors.toList());
+        logger.info("Opened delivery journal {} ({} segments, {} pending messages)",
+                directory, segments.size(), pending.size());
+        return pending;
+    }
+
+    /**
+     * Append a message to the journal, returning once it is durable
+     */
+    DeliveryTask append(String from, List<String> recipients, Path content) throws IOException {
+        long id = nextId.getAndIncrement();
+        DeliveryTask task = new DeliveryTask(messageId(id), from, new ArrayList<>(recipients), LocalDateTime.now());
+        PendingWrite write = new PendingWrite(new Entry(id, task), content);
+        submit(write);
+
+        try {
+            write.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing message", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Failed to queue message", e.getCause());
+        }
+        return task;
+    }
+
+    /**
+     * Record that a recipient of a queued message is done with. The record is not
+     * synced on its own; losing it in a crash only means delivering again.
+     */
+    void complete(DeliveryTask task, String recipient) {
+        Entry entry = entries.get(task.getMessageId());
+        if (entry == null || !task.completeRecipient(recipient)) {
+            return;
+        }
+        try {
+            submit(new PendingWrite(entry, recipient));
+        } catch (IOException e) {
+            logger.warn("Failed to record completion of {} for {}: {}", task.getMessageId(), recipient,
+                    e.getMessage());
+        }
+
+        // Only the caller that removes the entry releases its segment
+        if (task.isComplete() && entries.remove(task.getMessageId()) != null) {
+            synchronized (this) {
+                segments.computeIfPresent(entry.segment, (sequence, count) -> count - 1);
+                releaseSegments();
+            }
+        }
+    }
+
+    /**
+     * Map the content of a queued message
+     */
+    ByteBuf mapContent(DeliveryTask task) throws IOException {
+        Entry entry = entries.get(task.getMessageId());
+        if (entry == null) {
+            throw new IOException("Message is not queued: " + task.getMessageId());
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath(entry.segment), StandardOpenOption.READ)) {
+            MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, entry.contentOffset,
+                    entry.contentLength);
+            return Unpooled.wrappedBuffer(content);
+        }
+    }
+
+    int getPendingCount() {
+        return entries.size();
+    }
+
+    void close() {
+        closed = true;
+        if (writer != null) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                if (activeChannel != null) {
+                    activeChannel.force(false);
+                    activeChannel.close();
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to close delivery journal: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Writing
+
+    private void submit(PendingWrite write) throws IOException {
+        if (closed) {
+            throw new IOException("Delivery journal is closed");
+        }
+        writes.add(write);
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!closed || !writes.isEmpty()) {
+            try {
+                PendingWrite first = writes.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                writes.drainTo(batch);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        List<PendingWrite> written = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            try {
+                write.write();
+                written.add(write);
+            } catch (IOException e) {
+                write.future.completeExceptionally(e);
+            }
+        }
+
+        // One sync makes the whole batch durable
+        try {
+            synchronized (this) {
+                activeChannel.force(false);
+                // Messages become pending only once durable, as the caller may still be told to retry
+                for (PendingWrite write : written) {
+                    if (write.content != null) {
+                        entries.put(write.entry.task.getMessageId(), write.entry);
+                    }
+                }
+            }
+            for (PendingWrite write : written) {
+                write.future.complete(null);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to sync delivery journal", e);
+            for (PendingWrite write : written) {
+                if (write.content != null) {
+                    discard(write.entry);
+                }
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Mark all recipients of a message whose sync failed as done, so that a
+     * replay does not deliver what its sender was told to send again
+     */
+    private void discard(Entry entry) {
+        for (String recipient : entry.task.getRecipients()) {
+            try {
+                writeDone(entry, recipient);
+            } catch (IOException e) {
+                logger.warn("Failed to discard {} for {}: {}", entry.task.getMessageId(), recipient, e.getMessage());
+            }
+        }
+        synchronized (this) {
+            segments.computeIfPresent(entry.segment, (sequence, count) -> count - 1);
+            releaseSegments();
+        }
+    }
+
+    private void writeEnqueue(Entry entry, Path content) throws IOException {
+        DeliveryTask task = entry.task;
+        long contentLength = Files.size(content);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeLong(entry.id);
+        out.writeLong(task.getCreatedTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        writeString(out, task.getFrom() != null ? task.getFrom() : "");
+        out.writeInt(task.getRecipients().size());
+        for (String recipient : task.getRecipients()) {
+            writeString(out, recipient);
+        }
+        out.writeLong(contentLength);
+        byte[] headerBytes = header.toByteArray();
+
+        long length = 1 + headerBytes.length + contentLength;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Message too large for the delivery journal: " + contentLength);
+        }
+
+        synchronized (this) {
+            if (activeChannel.size() >= segmentSize) {
+                rollSegment();
+            }
+            long start = activeChannel.size();
+            try {
+                CRC32 crc = new CRC32();
+                ByteBuffer prefix = ByteBuffer.allocate(5 + headerBytes.length);
+                prefix.putInt((int) length).put(ENQUEUE).put(headerBytes).flip();
+                crc.update(prefix.array(), 4, prefix.remaining() - 4);
+                writeFully(prefix);
+
+                entry.segment = activeSequence;
+                entry.contentOffset = activeChannel.position();
+                entry.contentLength = contentLength;
+                copyContent(content, contentLength, crc);
+
+                writeFully(ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip());
+            } catch (IOException e) {
+                // Leave no partial record behind for the next append
+                activeChannel.truncate(start);
+                activeChannel.position(start);
+                throw e;
+            }
+            // Keeps the segment until the batch is synced and the entry registered or discarded
+            segments.merge(entry.segment, 1, Integer::sum);
+        }
+    }
+
+    private void writeDone(Entry entry, String recipient) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeLong(entry.id);
+        writeString(out, recipient);
+        byte[] bytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        ByteBuffer record = ByteBuffer.allocate(9 + bytes.length);
+        record.putInt(1 + bytes.length).put(DONE).put(bytes);
+        crc.update(record.array(), 4, 1 + bytes.length);
+        record.putInt((int) crc.getValue()).flip();
+        synchronized (this) {
+            writeFully(record);
+        }
+    }
+
+    private void copyContent(Path content, long length, CRC32 crc) throws IOException {
+        try (FileChannel source = FileChannel.open(content, StandardOpenOption.READ)) {
+            long remaining = length;
+            while (remaining > 0) {
+                copyBuffer.clear();
+                if (remaining < copyBuffer.capacity()) {
+                    copyBuffer.limit((int) remaining);
+                }
+                int read = source.read(copyBuffer);
+                if (read < 0) {
+                    throw new IOException("Message content shrank while queueing: " + content);
+                }
+                copyBuffer.flip();
+                crc.update(copyBuffer.duplicate());
+                writeFully(copyBuffer);
+                remaining -= read;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer);
+        }
+    }
+
+    // Segments
+
+    private void openActiveSegment() throws IOException {
+        activeChannel = FileChannel.open(segmentPath(activeSequence), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+        activeChannel.position(activeChannel.size());
+        segments.putIfAbsent(activeSequence, 0);
+    }
+
+    private void rollSegment() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        activeSequence++;
+        openActiveSegment();
+        releaseSegments();
+    }
+
+    /**
+     * Delete the oldest segments as long as they hold no pending message
+     */
+    private void releaseSegments() {
+        Iterator<Map.Entry<Long, Integer>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> segment = it.next();
+            if (segment.getValue() > 0 || segment.getKey() == activeSequence) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(segmentPath(segment.getKey()));
+                it.remove();
+                logger.debug("Deleted delivery journal segment {}", segment.getKey());
+            } catch (IOException e) {
+                logger.warn("Failed to delete delivery journal segment {}: {}", segment.getKey(), e.getMessage());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replay one segment into the pending entries
+     *
+     * @return the highest message id seen
+     */
+    private long replay(long sequence, boolean last) throws IOException {
+        long maxId = 0;
+        Path path = segmentPath(sequence);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int position = 0;
+            while (position < size) {
+                int end = recordEnd(buffer, position, size);
+                if (end < 0) {
+                    if (last) {
+                        logger.warn("Truncating torn record at {} in {}", position, path);
+                        channel.truncate(position);
+                    } else {
+                        logger.error("Corrupt record at {} in {}, skipping rest of segment", position, path);
+                    }
+                    break;
+                }
+                maxId = Math.max(maxId, apply(sequence, buffer, position + 4));
+                position = end;
+            }
+        }
+        return maxId;
+    }
+
+    /**
+     * @return the end of the record at the given position, or -1 if it is torn
+     */
+    private static int recordEnd(ByteBuffer buffer, int position, long size) {
+        if (size - position < 9) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length < 1 || length > size - position - 8) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer record = buffer.duplicate();
+        record.limit(position + 4 + length).position(position + 4);
+        crc.update(record);
+        if ((int) crc.getValue() != buffer.getInt(position + 4 + length)) {
+            return -1;
+        }
+        return position + 8 + length;
+    }
+
+    private long apply(long sequence, ByteBuffer buffer, int position) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+        byte type = record.get();
+        long id = record.getLong();
+
+        if (type == ENQUEUE) {
+            LocalDateTime created = LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getLong()),
+                    ZoneId.systemDefault());
+            String from = readString(record);
+            int count = record.getInt();
+            List<String> recipients = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                recipients.add(readString(record));
+            }
+            Entry entry = new Entry(id, new DeliveryTask(messageId(id), from, recipients, created));
+            entry.segment = sequence;
+            entry.contentLength = record.getLong();
+            entry.contentOffset = record.position();
+            entries.put(entry.task.getMessageId(), entry);
+            segments.merge(sequence, 1, Integer::sum);
+        } else if (type == DONE) {
+            Entry entry = entries.get(messageId(id));
+            if (entry != null) {
+                entry.task.completeRecipient(readString(record));
+                if (entry.task.isComplete()) {
+                    entries.remove(entry.task.getMessageId());
+                    segments.computeIfPresent(entry.segment, (s, count) -> count - 1);
+                }
+            }
+        }
+        return id;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Envelope field too long");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private static String messageId(long id) {
+        return "Q" + id;
+    }
+
+    /**
+     * Location of a queued message in the journal
+     */
+    private static final class Entry {
+        final long id;
+        final DeliveryTask task;
+        long segment;
+        long contentOffset;
+        long contentLength;
+
+        Entry(long id, DeliveryTask task) {
+            this.id = id;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A record waiting for the writer thread
+     */
+    private final class PendingWrite {
+        final Entry entry;
+        final Path content;
+        final String recipient;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(Entry entry, Path content) {
+            this.entry = entry;
+            this.content = content;
+            this.recipient = null;
+        }
+
+        PendingWrite(Entry entry, String recipient) {
+            this.entry = entry;
+            this.content = null;
+            this.recipient = recipient;
+        }
+
+        void write() throws IOException {
+            if (content != null) {
+                writeEnqueue(entry, content);
+            } else {
+                writeDone(entry, recipient);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.email.server.delivery;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Class of service of an outbound message.
+ *
+ * The outbound engine serves the classes in proportion to their weights, so
+ * a flood of bulk mail slows other mail down only a little instead of
+ * queueing it behind the flood.
+ */
+public enum DeliveryPriority {
+    /** Person to person and transactional mail */
+    NORMAL(4),
+    /** Newsletters, mailing lists and large fan-outs */
+    BULK(1);
+
+    // Messages sent to this many recipients at once are mass mailings
+    private static final int BULK_RECIPIENTS = 100;
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private final int weight;
+
+    DeliveryPriority(int weight) {
+        this.weight = weight;
+    }
+
+    int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Classify a message by its headers and number of recipients. Priority
+     * headers such as X-Priority are set by the sender and never promote a
+     * message over other mail.
+     *
+     * @param content the message, its reader index is left as it is
+     */
+    public static DeliveryPriority classify(ByteBuf content, int recipients) {
+        int end = content.writerIndex();
+        int limit = Math.min(end, content.readerIndex() + MAX_HEADER_BYTES);
+        int lineStart = content.readerIndex();
+        while (lineStart < limit) {
+            int lineEnd = content.indexOf(lineStart, end, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            String line = content.toString(lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1).trim();
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+                if (name.equals("list-id") || name.equals("list-unsubscribe")
+                        || (name.equals("precedence")
+                                && (value.equals("bulk") || value.equals("list") || value.equals("junk")))) {
+                    return BULK;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return recipients >= BULK_RECIPIENTS ? BULK : NORMAL;
+    }
+}
@@ -1,7 +1,10 @@
 package com.email.server.delivery;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DeliveryTask {
     public enum Status {
@@ -13,17 +16,26 @@ public class DeliveryTask {
     }
 
     private final String messageId;
+    private final String from;
     private final List<String> recipients;
+    private final Set<String> completedRecipients = ConcurrentHashMap.newKeySet();
     private final LocalDateTime createdTime;
     private volatile Status status;
+    private volatile DeliveryPriority priority = DeliveryPriority.NORMAL;
     private volatile int retryCount;
     private volatile LocalDateTime lastAttemptTime;
+    private volatile LocalDateTime nextAttemptTime;
     private volatile String lastError;
 
     public DeliveryTask(String messageId, List<String> recipients) {
+        this(messageId, null, recipients, LocalDateTime.now());
+    }
+
+    public DeliveryTask(String messageId, String from, List<String> recipients, LocalDateTime createdTime) {
         this.messageId = messageId;
+        this.from = from;
         this.recipients = recipients;
-        this.createdTime = LocalDateTime.now();
+        this.createdTime = createdTime;
         this.status = Status.QUEUED;
         this.retryCount = 0;
     }
@@ -32,10 +44,38 @@ public class DeliveryTask {
         return messageId;
     }
 
+    public String getFrom() {
+        return from;
+    }
+
     public List<String> getRecipients() {
         return recipients;
     }
 
+    /**
+     * @return recipients that were neither delivered to nor given up on yet
+     */
+    public List<String> getPendingRecipients() {
+        List<String> pending = new ArrayList<>();
+        for (String recipient : recipients) {
+            if (!completedRecipients.contains(recipient)) {
+                pending.add(recipient);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return false if the recipient was already completed
+     */
+    public boolean completeRecipient(String recipient) {
+        return completedRecipients.add(recipient);
+    }
+
+    public boolean isComplete() {
+        return completedRecipients.containsAll(recipients);
+    }
+
     public LocalDateTime getCreatedTime() {
         return createdTime;
     }
@@ -48,6 +88,14 @@ public class DeliveryTask {
         this.status = status;
     }
 
+    public DeliveryPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(DeliveryPriority priority) {
+        this.priority = priority;
+    }
+
     public int getRetryCount() {
         return retryCount;
     }
@@ -64,6 +112,17 @@ public class DeliveryTask {
         this.lastAttemptTime = lastAttemptTime;
     }
 
+    /**
+     * @return when the next retry is due, or null if none is scheduled
+     */
+    public LocalDateTime getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    public void setNextAttemptTime(LocalDateTime nextAttemptTime) {
+        this.nextAttemptTime = nextAttemptTime;
+    }
+
     public String getLastError() {
         return lastError;
     }
@@ -72,8 +131,8 @@ public class DeliveryTask {
         this.lastError = lastError;
     }
 
-    public boolean shouldRetry() {
-        return retryCount < 3 && status == Status.FAILED;
+    public boolean shouldRetry(int maxRetries) {
+        return retryCount < maxRetries && status == Status.FAILED;
     }
 
     @Override
@@ -82,7 +141,9 @@ public class DeliveryTask {
                 "messageId='" + messageId + '\'' +
                 ", recipients=" + recipients +
                 ", status=" + status +
+                ", priority=" + priority +
                 ", retryCount=" + retryCount +
+                ", nextAttemptTime=" + nextAttemptTime +
                 '}';
     }
 }
\ No newline at end of file
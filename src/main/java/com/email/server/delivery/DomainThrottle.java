@@ -0,0 +1,124 @@
+package com.email.server.delivery;
+
+import com.email.server.config.ServerConfig;
+
+/**
+ * Limits how hard outbound delivery pushes one destination domain.
+ *
+ * Every transaction takes a token from a bucket that refills at {@code rate}
+ * per second up to {@code burst}. Concurrency starts at the configured cap; a
+ * 421 or 451 from the domain halves it and pauses the domain, each pause in a
+ * row twice as long as the last, and every run of successes as long as the
+ * current limit raises it by one again.
+ *
+ * Not thread safe, the {@link OutboundEngine} guards it with its own lock.
+ */
+class DomainThrottle {
+
+    static final class Settings {
+        final int maxConnections;
+        final double rate;
+        final int burst;
+        final long backoffNanos;
+        final long maxBackoffNanos;
+
+        Settings(int maxConnections, double rate, int burst, long backoffNanos, long maxBackoffNanos) {
+            this.maxConnections = maxConnections;
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.backoffNanos = backoffNanos;
+            this.maxBackoffNanos = Math.max(backoffNanos, maxBackoffNanos);
+        }
+
+        static Settings fromConfig(ServerConfig config) {
+            return new Settings(config.getDeliveryMaxConnectionsPerDomain(), config.getDeliveryDomainRate(),
+                    config.getDeliveryDomainBurst(), config.getDeliveryDomainBackoff().toNanos(),
+                    config.getDeliveryDomainMaxBackoff().toNanos());
+        }
+    }
+
+    private final Settings settings;
+    private double tokens;
+    private long refilledAt;
+    private int limit;
+    private int successes;
+    private int throttles;
+    private long pausedUntil;
+
+    DomainThrottle(Settings settings, long now) {
+        this.settings = settings;
+        this.tokens = settings.burst;
+        this.refilledAt = now;
+        this.limit = settings.maxConnections;
+        this.pausedUntil = now;
+    }
+
+    /**
+     * @return transactions the domain may have in flight right now
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Take a token for a new transaction
+     *
+     * @return 0 if the transaction may start, otherwise nanoseconds until it may
+     */
+    long tryAcquire(long now) {
+        if (pausedUntil - now > 0) {
+            return pausedUntil - now;
+        }
+        if (settings.rate <= 0) {
+            return 0;
+        }
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / settings.rate * 1e9));
+    }
+
+    void onSuccess() {
+        throttles = 0;
+        if (limit < settings.maxConnections && ++successes >= limit) {
+            limit++;
+            successes = 0;
+        }
+    }
+
+    /**
+     * The domain asked us to slow down
+     *
+     * @return nanoseconds the domain is paused for
+     */
+    long onThrottled(long now) {
+        limit = Math.max(1, limit / 2);
+        successes = 0;
+        long backoff = settings.backoffNanos << Math.min(throttles, 20);
+        if (backoff <= 0 || backoff > settings.maxBackoffNanos) {
+            backoff = settings.maxBackoffNanos;
+        }
+        throttles++;
+        pausedUntil = now + backoff;
+        return backoff;
+    }
+
+    /**
+     * @return true if forgetting this throttle would change nothing, because
+     * the domain is at full speed again
+     */
+    boolean isIdle(long now) {
+        if (settings.rate > 0) {
+            refill(now);
+        }
+        return limit == settings.maxConnections && throttles == 0 && pausedUntil - now <= 0
+                && (settings.rate <= 0 || tokens >= settings.burst);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(settings.burst, tokens + (now - refilledAt) / 1e9 * settings.rate);
+        refilledAt = now;
+    }
+}
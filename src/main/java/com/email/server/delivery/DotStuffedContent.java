@@ -0,0 +1,89 @@
+package com.email.server.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * Streams queued message content as the DATA of an outbound SMTP transaction.
+ *
+ * Lines starting with a dot are stuffed, bare line feeds are turned into CRLF
+ * and the terminating ".\r\n" is appended, one chunk at a time.
+ */
+class DotStuffedContent implements ChunkedInput<ByteBuf> {
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] TERMINATOR = { '.', '\r', '\n' };
+
+    private final ByteBuf content;
+    private final long length;
+    private int previous = '\n';
+    private boolean endOfInput;
+
+    DotStuffedContent(ByteBuf content) {
+        this.content = content;
+        this.length = content.readableBytes();
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return endOfInput;
+    }
+
+    @Override
+    public void close() {
+        if (content.refCnt() > 0) {
+            content.release();
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) {
+        if (endOfInput) {
+            return null;
+        }
+
+        if (!content.isReadable()) {
+            endOfInput = true;
+            ByteBuf last = allocator.buffer(5);
+            if (previous != '\n') {
+                if (previous != '\r') {
+                    last.writeByte('\r');
+                }
+                last.writeByte('\n');
+            }
+            return last.writeBytes(TERMINATOR);
+        }
+
+        int read = Math.min(CHUNK_SIZE, content.readableBytes());
+        // Worst case every byte is a bare line feed or a line-leading dot
+        ByteBuf chunk = allocator.buffer(read + read / 8 + 16);
+        for (int i = 0; i < read; i++) {
+            byte b = content.readByte();
+            if (b == '\n' && previous != '\r') {
+                chunk.writeByte('\r');
+            } else if (b == '.' && previous == '\n') {
+                chunk.writeByte('.');
+            }
+            chunk.writeByte(b);
+            previous = b;
+        }
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return length - content.readableBytes();
+    }
+}
@@ -1,139 +1,165 @@
 package com.email.server.delivery;
 
+import com.email.server.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Simple SMTP client for sending emails to external mail servers
+ * Non-blocking SMTP client for sending emails to external mail servers.
+ *
+ * Connections run on the given event loop group, so any number of transactions
+ * can be in flight without a thread each; limiting how many is up to the caller.
+ * Connections are pooled per mail exchanger and reused for later messages.
  */
 public class ExternalSmtpClient {
     private static final Logger logger = LoggerFactory.getLogger(ExternalSmtpClient.class);
-    private static final int DEFAULT_SMTP_PORT = 25;
-    private static final int READ_TIMEOUT = 30000; // 30 seconds
-
-    public boolean sendEmail(String mxHost, String from, String to, String data) {
-        return sendEmail(mxHost, DEFAULT_SMTP_PORT, from, to, data);
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final Bootstrap bootstrap;
+    private final String heloName;
+    private final int port;
+    private final int timeoutSeconds;
+    private final SmtpConnectionPool pool;
+
+    public ExternalSmtpClient(EventLoopGroup group, Transport transport, String heloName, int port,
+            int timeoutSeconds, int maxConnectionsPerHost, int idleTimeoutSeconds) {
+        this.heloName = heloName;
+        this.port = port;
+        this.timeoutSeconds = timeoutSeconds;
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutSeconds * 1000)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+        this.pool = new SmtpConnectionPool(this::connect, maxConnectionsPerHost, idleTimeoutSeconds);
     }
 
-    public boolean sendEmail(String mxHost, int port, String from, String to, String data) {
-        Socket socket = null;
-        BufferedReader reader = null;
-        BufferedWriter writer = null;
-
-        try {
-            logger.info("Connecting to MX host: {}:{}", mxHost, port);
-            socket = new Socket(mxHost, port);
-            socket.setSoTimeout(READ_TIMEOUT);
-
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-
-            // Read greeting
-            String response = readResponse(reader);
-            if (!response.startsWith("220")) {
-                logger.error("Unexpected greeting from {}: {}", mxHost, response);
-                return false;
-            }
-
-            // Send EHLO
-            sendCommand(writer, "EHLO localhost");
-            response = readResponse(reader);
-            if (!response.startsWith("250")) {
-                logger.error("EHLO failed: {}", response);
-                return false;
-            }
-
-            // Send MAIL FROM
-            sendCommand(writer, "MAIL FROM:<" + from + ">");
-            response = readResponse(reader);
-            if (!response.startsWith("250")) {
-                logger.error("MAIL FROM failed: {}", response);
-                return false;
+    /**
+     * Send one message to recipients that share a mail exchanger
+     *
+     * @return the reply for each recipient; failures to connect or lost
+     * connections are reported as transient replies, the future never fails
+     */
+    public CompletableFuture<Map<String, SmtpReply>> send(MxHost mx, String from, List<String> recipients,
+            ContentSource content) {
+        CompletableFuture<Map<String, SmtpReply>> result = new CompletableFuture<>();
+        pool.acquire(mx).whenComplete((handler, error) -> {
+            if (error != null) {
+                logger.warn("No connection to {}:{}: {}", mx.getHostname(), port, error.getMessage());
+                result.complete(failed(recipients, "Failed to connect to " + mx.getHostname()));
+                return;
             }
+            handler.send(from, recipients, content).whenComplete((replies, sendError) -> {
+                pool.release(mx.getHostname(), handler);
+                if (sendError != null) {
+                    logger.warn("Sending to {} failed: {}", mx.getHostname(), sendError.getMessage());
+                    result.complete(failed(recipients, "Failed to send to " + mx.getHostname()));
+                } else {
+                    result.complete(replies);
+                }
+            });
+        });
+        return result;
+    }
 
-            // Send RCPT TO
-            sendCommand(writer, "RCPT TO:<" + to + ">");
-            response = readResponse(reader);
-            if (!response.startsWith("250")) {
-                logger.error("RCPT TO failed: {}", response);
-                return false;
-            }
+    /**
+     * Close idle pooled connections
+     */
+    public void close() {
+        pool.close();
+    }
 
-            // Send DATA
-            sendCommand(writer, "DATA");
-            response = readResponse(reader);
-            if (!response.startsWith("354")) {
-                logger.error("DATA command failed: {}", response);
-                return false;
-            }
+    /**
+     * Open a new connection, completed once the server accepted the greeting
+     */
+    private CompletableFuture<SmtpClientHandler> connect(MxHost mx) {
+        CompletableFuture<SmtpClientHandler> result = new CompletableFuture<>();
+        connect(mx, 0, result);
+        return result;
+    }
 
-            // Send message data
-            String[] lines = data.split("\r?\n");
-            for (String line : lines) {
-                // Dot-stuffing: if line starts with '.', prepend another '.'
-                if (line.startsWith(".")) {
-                    writer.write(".");
-                }
-                writer.write(line);
-                writer.write("\r\n");
+    /**
+     * Try the addresses of a mail exchanger in turn until one connects
+     */
+    private void connect(MxHost mx, int index, CompletableFuture<SmtpClientHandler> result) {
+        String mxHost = mx.getHostname();
+        InetSocketAddress address = new InetSocketAddress(mx.getAddresses().get(index), port);
+        SmtpClientHandler handler = new SmtpClientHandler(heloName, mxHost);
+
+        logger.info("Connecting to MX host: {} ({})", mxHost, address);
+        ChannelFuture connect = bootstrap.clone()
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(
+                                new ReadTimeoutHandler(timeoutSeconds),
+                                new LineBasedFrameDecoder(MAX_LINE_LENGTH),
+                                new StringDecoder(StandardCharsets.UTF_8),
+                                new StringEncoder(StandardCharsets.UTF_8),
+                                new ChunkedWriteHandler(),
+                                handler);
+                    }
+                })
+                .connect(address);
+        connect.addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                return;
             }
-            writer.write(".\r\n");
-            writer.flush();
-
-            response = readResponse(reader);
-            if (!response.startsWith("250")) {
-                logger.error("Message delivery failed: {}", response);
-                return false;
+            if (index + 1 < mx.getAddresses().size()) {
+                logger.debug("Failed to connect to {}: {}", address, future.cause().getMessage());
+                connect(mx, index + 1, result);
+            } else {
+                result.completeExceptionally(future.cause());
             }
-
-            // Send QUIT
-            sendCommand(writer, "QUIT");
-
-            logger.info("Successfully delivered email from {} to {} via {}", from, to, mxHost);
-            return true;
-
-        } catch (Exception e) {
-            logger.error("Error delivering email to {}: {}", mxHost, e.getMessage());
-            return false;
-        } finally {
-            try {
-                if (reader != null)
-                    reader.close();
-                if (writer != null)
-                    writer.close();
-                if (socket != null)
-                    socket.close();
-            } catch (IOException e) {
-                logger.warn("Error closing connection: {}", e.getMessage());
+        });
+
+        handler.ready().whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                connect.channel().close();
+            } else {
+                result.complete(handler);
             }
-        }
+        });
     }
 
-    private void sendCommand(BufferedWriter writer, String command) throws IOException {
-        logger.debug("SMTP >>> {}", command);
-        writer.write(command);
-        writer.write("\r\n");
-        writer.flush();
+    static Map<String, SmtpReply> failed(List<String> recipients, String reason) {
+        return replyToAll(recipients, SmtpReply.connectionFailed(reason));
     }
 
-    private String readResponse(BufferedReader reader) throws IOException {
-        StringBuilder response = new StringBuilder();
-        String line;
-
-        while ((line = reader.readLine()) != null) {
-            response.append(line).append("\n");
-            logger.debug("SMTP <<< {}", line);
-
-            // Multi-line responses have "-" after code, single line has space
-            if (line.length() >= 4 && line.charAt(3) == ' ') {
-                break;
-            }
+    static Map<String, SmtpReply> replyToAll(List<String> recipients, SmtpReply reply) {
+        Map<String, SmtpReply> replies = new HashMap<>();
+        for (String recipient : recipients) {
+            replies.put(recipient, reply);
         }
+        return replies;
+    }
 
-        return response.toString().trim();
+    /**
+     * Opens the content of a message to send, in stored form. The buffer is
+     * released once it has been sent.
+     */
+    public interface ContentSource {
+        ByteBuf open() throws IOException;
     }
 }
@@ -2,14 +2,15 @@ package com.email.server.delivery;
 
 import com.email.server.storage.MailStorage;
 import com.email.server.storage.MailMessage;
+import com.email.server.storage.MailStorageException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
@@ -17,7 +18,9 @@ import java.util.concurrent.atomic.AtomicLong;
 public class InMemoryDeliveryService implements MailDeliveryService {
     private static final Logger logger = LoggerFactory.getLogger(InMemoryDeliveryService.class);
 
-    private final BlockingQueue<DeliveryTask> deliveryQueue = new LinkedBlockingQueue<>();
+    // Higher priorities first, oldest first within a priority
+    private final BlockingQueue<DeliveryTask> deliveryQueue = new PriorityBlockingQueue<>(64,
+            Comparator.comparing(DeliveryTask::getPriority).thenComparing(DeliveryTask::getCreatedTime));
     private final Map<String, DeliveryTask> activeTasks = new ConcurrentHashMap<>();
     private final AtomicLong totalQueued = new AtomicLong(0);
     private final AtomicLong totalDelivered = new AtomicLong(0);
@@ -26,19 +29,46 @@ public class InMemoryDeliveryService implements MailDeliveryService {
 
     private volatile boolean running = false;
     private ScheduledExecutorService scheduler;
+    private RetryScheduler retryScheduler;
     private ExecutorService deliveryExecutor;
     private MailStorage mailStorage;
+    private final MxLookupService mxLookupService;
 
     private static final int DELIVERY_THREADS = 3;
-    private static final int RETRY_DELAY_SECONDS = 300; // 5 minutes
+    private static final Duration RETRY_DELAY = Duration.ofMinutes(5);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofHours(1);
+    private static final int MAX_RETRIES = 3;
+
+    public InMemoryDeliveryService() {
+        this(new MxLookupService());
+    }
+
+    public InMemoryDeliveryService(MxLookupService mxLookupService) {
+        this.mxLookupService = mxLookupService;
+    }
 
     @Override
-    public void queueDelivery(String messageId, List<String> recipients) {
+    public String queueDelivery(String from, List<String> recipients, Path content) throws IOException {
         if (!running) {
-            logger.warn("Delivery service not running, cannot queue message: {}", messageId);
-            return;
+            throw new IOException("Delivery service not running");
+        }
+        if (mailStorage == null) {
+            throw new IOException("Mail storage not available");
+        }
+
+        // Messages are delivered from the mail storage, so the content is kept there
+        String messageId;
+        try {
+            messageId = mailStorage.saveMail(from, recipients,
+                    new String(Files.readAllBytes(content), StandardCharsets.UTF_8));
+        } catch (MailStorageException e) {
+            throw new IOException("Failed to store message for delivery", e);
         }
+        queue(messageId, recipients);
+        return messageId;
+    }
 
+    private void queue(String messageId, List<String> recipients) {
         DeliveryTask task = new DeliveryTask(messageId, recipients);
         deliveryQueue.offer(task);
         activeTasks.put(messageId, task);
@@ -63,8 +93,7 @@ public class InMemoryDeliveryService implements MailDeliveryService {
             scheduler.submit(this::deliveryWorker);
         }
 
-        // Start retry scheduler
-        scheduler.scheduleWithFixedDelay(this::processRetries, RETRY_DELAY_SECONDS, RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+        retryScheduler = new RetryScheduler(RETRY_DELAY, 2.0, MAX_RETRY_DELAY, 0.2, MAX_RETRIES);
 
         logger.info("Mail delivery service started with {} threads", DELIVERY_THREADS);
     }
@@ -77,6 +106,10 @@ public class InMemoryDeliveryService implements MailDeliveryService {
 
         running = false;
 
+        if (retryScheduler != null) {
+            retryScheduler.stop();
+        }
+
         if (scheduler != null) {
             scheduler.shutdown();
             try {
@@ -225,44 +258,7 @@ public class InMemoryDeliveryService implements MailDeliveryService {
     }
 
     private List<String> lookupMxRecords(String domain) {
-        List<String> mxRecords = new ArrayList<>();
-
-        try {
-            Hashtable<String, String> env = new Hashtable<>();
-            env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-            DirContext ctx = new InitialDirContext(env);
-
-            Attributes attrs = ctx.getAttributes(domain, new String[]{"MX"});
-            Attribute mxAttr = attrs.get("MX");
-
-            if (mxAttr != null) {
-                for (int i = 0; i < mxAttr.size(); i++) {
-                    String mxRecord = (String) mxAttr.get(i);
-                    // MX record format: "10 mail.example.com."
-                    String[] parts = mxRecord.split("\\s+");
-                    if (parts.length >= 2) {
-                        String host = parts[1].endsWith(".") ? parts[1].substring(0, parts[1].length() - 1) : parts[1];
-                        mxRecords.add(host);
-                    }
-                }
-            }
-
-            // If no MX records, try A record
-            if (mxRecords.isEmpty()) {
-                attrs = ctx.getAttributes(domain, new String[]{"A"});
-                Attribute aAttr = attrs.get("A");
-                if (aAttr != null) {
-                    mxRecords.add(domain);
-                }
-            }
-
-            ctx.close();
-        } catch (NamingException e) {
-            logger.warn("DNS lookup failed for domain: {}", domain, e);
-        }
-
-        logger.debug("MX records for {}: {}", domain, mxRecords);
-        return mxRecords;
+        return mxLookupService.lookupMxRecords(domain);
     }
 
     private String extractDomain(String email) {
@@ -277,11 +273,10 @@ public class InMemoryDeliveryService implements MailDeliveryService {
         task.setStatus(DeliveryTask.Status.FAILED);
         task.setLastError(error);
 
-        if (task.shouldRetry()) {
-            task.incrementRetryCount();
+        if (retryScheduler.schedule(task, this::retry)) {
             totalRetries.incrementAndGet();
-            logger.info("Scheduling retry for message: {} (retry: {})",
-                       task.getMessageId(), task.getRetryCount());
+            logger.info("Scheduled retry {} of message {} for {}",
+                       task.getRetryCount(), task.getMessageId(), task.getNextAttemptTime());
         } else {
             totalFailed.incrementAndGet();
             activeTasks.remove(task.getMessageId());
@@ -290,23 +285,13 @@ public class InMemoryDeliveryService implements MailDeliveryService {
         }
     }
 
-    private void processRetries() {
+    private void retry(DeliveryTask task) {
         if (!running) {
             return;
         }
-
-        // Re-queue failed tasks that should be retried
-        List<DeliveryTask> tasksToRetry = new ArrayList<>();
-        for (DeliveryTask task : activeTasks.values()) {
-            if (task.shouldRetry()) {
-                tasksToRetry.add(task);
-            }
-        }
-
-        for (DeliveryTask task : tasksToRetry) {
-            task.setStatus(DeliveryTask.Status.QUEUED);
-            deliveryQueue.offer(task);
-            logger.debug("Re-queued failed message for retry: {}", task.getMessageId());
-        }
+        task.setStatus(DeliveryTask.Status.QUEUED);
+        task.setNextAttemptTime(null);
+        deliveryQueue.offer(task);
+        logger.debug("Re-queued failed message for retry: {}", task.getMessageId());
     }
-}
\ No newline at end of file
+}
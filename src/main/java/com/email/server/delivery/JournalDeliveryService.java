@@ -0,0 +1,312 @@
+package com.email.server.delivery;
+
+import com.email.server.config.ServerConfig;
+import com.email.server.transport.Transport;
+import com.email.server.transport.TransportRuntime;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mail delivery service backed by a {@link DeliveryJournal}.
+ *
+ * A message is accepted only once it has been synced to the journal, and any
+ * message that was not fully delivered before a shutdown or crash is picked up
+ * again on {@link #start()}. Delivery runs on an {@link OutboundEngine}, which
+ * bounds the number of transactions in flight; once too many messages are
+ * queued the service stops accepting new ones until the backlog drains.
+ */
+public class JournalDeliveryService implements MailDeliveryService {
+    private static final Logger logger = LoggerFactory.getLogger(JournalDeliveryService.class);
+
+    // Servers must accept at least 100 recipients per transaction (RFC 5321 4.5.3.1.8)
+    private static final int MAX_RECIPIENTS_PER_TRANSACTION = 100;
+
+    private final DeliveryJournal journal;
+    private final MxLookupService mxLookupService;
+    private final ServerConfig config;
+    private final TransportRuntime runtime;
+
+    private final Map<String, DeliveryTask> activeTasks = new ConcurrentHashMap<>();
+    private final Set<String> rejectedTasks = ConcurrentHashMap.newKeySet();
+    private final AtomicLong totalQueued = new AtomicLong(0);
+    private final AtomicLong totalDelivered = new AtomicLong(0);
+    private final AtomicLong totalFailed = new AtomicLong(0);
+    private final AtomicLong totalRetries = new AtomicLong(0);
+
+    private volatile boolean running = false;
+    private EventLoopGroup eventLoopGroup;
+    private ExternalSmtpClient smtpClient;
+    private OutboundEngine engine;
+    private RetryScheduler retryScheduler;
+
+    public JournalDeliveryService(ServerConfig config) {
+        this(config, null, new MxLookupService());
+    }
+
+    /**
+     * @param runtime whose worker event loops carry outbound connections, or
+     * null for event loops of the service's own
+     */
+    public JournalDeliveryService(ServerConfig config, TransportRuntime runtime) {
+        this(config, runtime, new MxLookupService());
+    }
+
+    JournalDeliveryService(ServerConfig config, TransportRuntime runtime, MxLookupService mxLookupService) {
+        this.config = config;
+        this.runtime = runtime;
+        this.journal = new DeliveryJournal(Paths.get(config.getQueuePath()), config.getQueueSegmentSize());
+        this.mxLookupService = mxLookupService;
+    }
+
+    @Override
+    public String queueDelivery(String from, List<String> recipients, Path content) throws IOException {
+        if (!isAcceptingMessages()) {
+            throw new IOException(running ? "Delivery queue full" : "Delivery service not running");
+        }
+
+        DeliveryTask task = journal.append(from, recipients, content);
+        classify(task);
+        activeTasks.put(task.getMessageId(), task);
+        totalQueued.incrementAndGet();
+        dispatch(task);
+
+        logger.info("Queued delivery for message: {} (recipients: {})", task.getMessageId(), recipients.size());
+        return task.getMessageId();
+    }
+
+    @Override
+    public boolean isAcceptingMessages() {
+        return running && journal.getPendingCount() < config.getDeliveryMaxQueued();
+    }
+
+    @Override
+    public void start() {
+        if (running) {
+            logger.warn("Delivery service already running");
+            return;
+        }
+
+        List<DeliveryTask> recovered;
+        try {
+            recovered = journal.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open delivery journal", e);
+        }
+
+        Transport transport;
+        if (runtime != null) {
+            transport = runtime.getTransport();
+            eventLoopGroup = runtime.getWorkerGroup();
+        } else {
+            transport = Transport.select(config.getTransport());
+            eventLoopGroup = transport.newEventLoopGroup(config.getDeliveryIoThreads());
+        }
+        smtpClient = new ExternalSmtpClient(eventLoopGroup, transport, config.getServerName(),
+                config.getDeliverySmtpPort(), config.getDeliveryTimeout(), config.getDeliveryMaxConnectionsPerHost(),
+                config.getDeliveryIdleTimeout());
+        engine = new OutboundEngine(mxLookupService, smtpClient, eventLoopGroup, config.getDeliveryMaxConnections(),
+                DomainThrottle.Settings.fromConfig(config));
+
+        retryScheduler = RetryScheduler.fromConfig(config);
+
+        running = true;
+
+        for (DeliveryTask task : recovered) {
+            classify(task);
+            activeTasks.put(task.getMessageId(), task);
+            dispatch(task);
+        }
+
+        logger.info("Journal delivery service started with {} connections, {} messages recovered",
+                config.getDeliveryMaxConnections(), recovered.size());
+    }
+
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        retryScheduler.stop();
+        engine.stop();
+        smtpClient.close();
+        if (runtime == null) {
+            eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+
+        // Whatever is still pending stays in the journal for the next start
+        journal.close();
+        activeTasks.clear();
+        rejectedTasks.clear();
+
+        logger.info("Journal delivery service stopped");
+    }
+
+    @Override
+    public DeliveryStats getStats() {
+        return new DeliveryStats(
+                totalQueued.get(),
+                totalDelivered.get(),
+                totalFailed.get(),
+                totalRetries.get(),
+                running);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Hand the pending recipients of a message to the engine, one transaction
+     * per destination domain
+     */
+    private void dispatch(DeliveryTask task) {
+        task.setStatus(DeliveryTask.Status.IN_PROGRESS);
+        task.setLastAttemptTime(LocalDateTime.now());
+
+        logger.info("Processing delivery for message: {} (attempt: {})",
+                task.getMessageId(), task.getRetryCount() + 1);
+
+        List<List<String>> batches = new ArrayList<>();
+        Map<String, List<String>> byDomain = new LinkedHashMap<>();
+        for (String recipient : task.getPendingRecipients()) {
+            List<String> batch = byDomain.get(extractDomain(recipient));
+            if (batch == null || batch.size() >= MAX_RECIPIENTS_PER_TRANSACTION) {
+                batch = new ArrayList<>();
+                byDomain.put(extractDomain(recipient), batch);
+                batches.add(batch);
+            }
+            batch.add(recipient);
+        }
+
+        AtomicInteger outstanding = new AtomicInteger(batches.size());
+        for (List<String> batch : batches) {
+            engine.submit(extractDomain(batch.get(0)), task.getPriority(), task.getFrom(), batch,
+                    () -> journal.mapContent(task))
+                    .whenComplete((replies, error) -> {
+                        if (!running) {
+                            return;
+                        }
+                        Throwable failure = error;
+                        if (failure == null) {
+                            try {
+                                for (String recipient : batch) {
+                                    handleReply(task, recipient, replies.get(recipient));
+                                }
+                            } catch (RuntimeException e) {
+                                failure = e;
+                            }
+                        }
+                        // Recipients left pending by a failure are retried with the rest of the attempt
+                        if (failure != null) {
+                            logger.error("Delivery attempt of {} to {} failed", task.getMessageId(), batch, failure);
+                            task.setLastError(failure.toString());
+                        }
+                        if (outstanding.decrementAndGet() == 0) {
+                            attemptFinished(task);
+                        }
+                    });
+        }
+    }
+
+    private void classify(DeliveryTask task) {
+        try {
+            ByteBuf content = journal.mapContent(task);
+            try {
+                task.setPriority(DeliveryPriority.classify(content, task.getRecipients().size()));
+            } finally {
+                content.release();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read headers of {}, delivering it with normal priority: {}",
+                    task.getMessageId(), e.getMessage());
+        }
+    }
+
+    private void handleReply(DeliveryTask task, String recipient, SmtpReply reply) {
+        if (reply.isPositive()) {
+            logger.info("Delivered {} to {}", task.getMessageId(), recipient);
+            journal.complete(task, recipient);
+        } else if (reply.isPermanent()) {
+            logger.error("Delivery of {} to {} rejected: {}", task.getMessageId(), recipient, reply);
+            rejectedTasks.add(task.getMessageId());
+            journal.complete(task, recipient);
+        } else {
+            logger.warn("Failed to deliver {} to {}: {}", task.getMessageId(), recipient, reply);
+            task.setLastError(reply.toString());
+        }
+    }
+
+    private void attemptFinished(DeliveryTask task) {
+        if (!task.isComplete()) {
+            handleDeliveryFailure(task, task.getLastError());
+            return;
+        }
+
+        activeTasks.remove(task.getMessageId());
+        if (rejectedTasks.remove(task.getMessageId())) {
+            task.setStatus(DeliveryTask.Status.FAILED);
+            totalFailed.incrementAndGet();
+        } else {
+            task.setStatus(DeliveryTask.Status.DELIVERED);
+            totalDelivered.incrementAndGet();
+            logger.info("Successfully delivered message: {}", task.getMessageId());
+        }
+    }
+
+    private String extractDomain(String email) {
+        int atIndex = email.lastIndexOf('@');
+        if (atIndex == -1 || atIndex == email.length() - 1) {
+            return email;
+        }
+        return email.substring(atIndex + 1).toLowerCase();
+    }
+
+    private void handleDeliveryFailure(DeliveryTask task, String error) {
+        task.setStatus(DeliveryTask.Status.FAILED);
+        task.setLastError(error);
+
+        if (retryScheduler.schedule(task, this::retry)) {
+            totalRetries.incrementAndGet();
+            logger.info("Scheduled retry {} of message {} for {}",
+                    task.getRetryCount(), task.getMessageId(), task.getNextAttemptTime());
+        } else {
+            totalFailed.incrementAndGet();
+            activeTasks.remove(task.getMessageId());
+            rejectedTasks.remove(task.getMessageId());
+            // Given up on, so the message no longer holds on to its journal segment
+            for (String recipient : new ArrayList<>(task.getPendingRecipients())) {
+                journal.complete(task, recipient);
+            }
+            logger.error("Delivery permanently failed for message: {} after {} retries",
+                    task.getMessageId(), task.getRetryCount());
+        }
+    }
+
+    private void retry(DeliveryTask task) {
+        if (!running) {
+            return;
+        }
+        task.setStatus(DeliveryTask.Status.QUEUED);
+        task.setNextAttemptTime(null);
+        dispatch(task);
+    }
+}
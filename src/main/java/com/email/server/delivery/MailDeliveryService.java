@@ -1,14 +1,28 @@
 package com.email.server.delivery;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 
 public interface MailDeliveryService {
     /**
-     * Queue a message for delivery
-     * @param messageId Message ID to deliver
+     * Queue a message together with its content, returning once the service has
+     * taken responsibility for it. The caller keeps ownership of the content file.
+     * @param from Envelope sender
      * @param recipients List of recipient addresses
+     * @param content File holding the message content
+     * @return Id of the queued message
      */
-    void queueDelivery(String messageId, List<String> recipients);
+    String queueDelivery(String from, List<String> recipients, Path content) throws IOException;
+
+    /**
+     * Check if new messages can be queued right now, so that SMTP can defer
+     * recipients instead of accepting mail it cannot queue
+     * @return true if the service takes new messages
+     */
+    default boolean isAcceptingMessages() {
+        return isRunning();
+    }
 
     /**
      * Start the delivery service
@@ -0,0 +1,37 @@
+package com.email.server.delivery;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Mail exchanger of a domain together with its resolved addresses
+ */
+public class MxHost {
+    private final String hostname;
+    private final int preference;
+    private final List<InetAddress> addresses;
+
+    public MxHost(String hostname, int preference, List<InetAddress> addresses) {
+        this.hostname = hostname;
+        this.preference = preference;
+        this.addresses = Collections.unmodifiableList(addresses);
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPreference() {
+        return preference;
+    }
+
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    @Override
+    public String toString() {
+        return preference + " " + hostname + " " + addresses;
+    }
+}
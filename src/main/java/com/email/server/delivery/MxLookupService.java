@@ -2,84 +2,338 @@ package com.email.server.delivery;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedResolver;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
 
-import javax.naming.NamingEnumeration;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
-import java.util.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Service for looking up MX (Mail Exchange) records via DNS
+ * Service for looking up MX (Mail Exchange) records via DNS.
+ *
+ * Lookups go through dnsjava and resolve the addresses of every mail exchanger
+ * as well. Answers are cached for their TTL, and so are negative answers (the
+ * domain does not exist or does not take mail) for the TTL its SOA record
+ * asks for. Concurrent lookups of the same domain share one query, and an
+ * entry that is used close to its expiry is refreshed in the background so
+ * that busy domains never miss the cache.
  */
 public class MxLookupService {
     private static final Logger logger = LoggerFactory.getLogger(MxLookupService.class);
 
+    private static final long MIN_TTL_SECONDS = 30;
+    private static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    private static final long DEFAULT_NEGATIVE_TTL_SECONDS = 300;
+    private static final Duration QUERY_TIMEOUT = Duration.ofSeconds(5);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Resolver resolver;
+    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<CacheEntry>> inflight = new ConcurrentHashMap<>();
+    private volatile long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+
+    public MxLookupService() {
+        this(new ExtendedResolver());
+    }
+
+    public MxLookupService(Resolver resolver) {
+        this.resolver = resolver;
+        this.resolver.setTimeout(QUERY_TIMEOUT);
+    }
+
+    /**
+     * Resolve the mail exchangers of a domain, most preferred first
+     *
+     * @return the mail exchangers, empty if the domain does not exist or does not take mail
+     * @throws IOException if DNS could not give an answer
+     */
+    public List<MxHost> resolve(String domain) throws IOException {
+        try {
+            return resolveAsync(domain).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resolving " + domain, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Failed to resolve " + domain, e.getCause());
+        }
+    }
+
+    /**
+     * @return the host names of the mail exchangers of a domain, most preferred
+     * first, or an empty list if there are none or the lookup failed
+     */
     public List<String> lookupMxRecords(String domain) {
-        List<MxRecord> mxRecords = new ArrayList<>();
+        List<String> result = new ArrayList<>();
+        try {
+            for (MxHost host : resolve(domain)) {
+                result.add(host.getHostname());
+            }
+        } catch (IOException e) {
+            logger.error("Error looking up MX records for {}: {}", domain, e.getMessage());
+        }
+        return result;
+    }
 
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Resolve the mail exchangers of a domain without blocking the caller.
+     * Cached answers complete the future at once; otherwise it completes on
+     * the resolver's I/O thread, so dependent stages must not block either.
+     *
+     * @return the mail exchangers, most preferred first, or an empty list if
+     * the domain does not exist or does not take mail; fails with an
+     * IOException if DNS could not give an answer
+     */
+    public CompletableFuture<List<MxHost>> resolveAsync(String domain) {
+        String key = domain.toLowerCase(Locale.ROOT);
+        long now = System.nanoTime();
+        sweep(now);
+
+        CacheEntry entry = cache.get(key);
+        if (entry != null && entry.expiresAt - now > 0) {
+            if (entry.expiresAt - now < entry.ttlNanos / 5) {
+                // Busy entry about to expire, refresh it before anyone misses
+                query(key);
+            }
+            return CompletableFuture.completedFuture(entry.hosts);
+        }
+        return query(key).thenApply(resolved -> resolved.hosts);
+    }
+
+    /**
+     * Query a domain, joining a query already in flight for it
+     */
+    private CompletableFuture<CacheEntry> query(String domain) {
+        CompletableFuture<CacheEntry> mine = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> running = inflight.putIfAbsent(domain, mine);
+        if (running != null) {
+            return running;
+        }
+
+        fetch(domain).whenComplete((entry, error) -> {
+            if (error == null) {
+                cache.put(domain, entry);
+                logger.info("Found {} MX records for {}: {}", entry.hosts.size(), domain, entry.hosts);
+            } else {
+                logger.warn("MX lookup for {} failed: {}", domain, unwrap(error).getMessage());
+            }
+            inflight.remove(domain, mine);
+            if (error == null) {
+                mine.complete(entry);
+            } else {
+                mine.completeExceptionally(unwrap(error));
+            }
+        });
+        return mine;
+    }
+
+    private CompletableFuture<CacheEntry> fetch(String domain) {
+        Name name;
         try {
-            Hashtable<String, String> env = new Hashtable<>();
-            env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-            DirContext ctx = new InitialDirContext(env);
+            name = Name.fromString(domain, Name.root);
+        } catch (TextParseException e) {
+            return failed(new IOException("Invalid domain: " + domain, e));
+        }
+
+        return send(name, Type.MX).thenCompose(response -> {
+            int rcode = response.getRcode();
+            if (rcode == Rcode.NXDOMAIN) {
+                return CompletableFuture.completedFuture(negative(response));
+            }
+            checkResponse(response, name, Type.MX);
+
+            List<MXRecord> records = new ArrayList<>();
+            for (Record record : response.getSection(Section.ANSWER)) {
+                if (record instanceof MXRecord) {
+                    records.add((MXRecord) record);
+                }
+            }
 
-            Attributes attrs = ctx.getAttributes(domain, new String[] { "MX" });
-            Attribute mxAttr = attrs.get("MX");
+            if (records.isEmpty()) {
+                // No MX records, the domain itself is the implicit exchanger (RFC 5321 5.1)
+                return addresses(name, response).thenApply(found -> {
+                    if (!found.addresses.isEmpty()) {
+                        return entry(Collections.singletonList(new MxHost(hostname(name), 0, found.addresses)),
+                                found.ttl);
+                    }
+                    if (found.failed) {
+                        throw new CompletionException(new IOException("Address lookup of " + domain + " failed"));
+                    }
+                    return negative(response);
+                });
+            }
+            if (records.size() == 1 && records.get(0).getTarget().equals(Name.root)) {
+                // Null MX, the domain does not accept mail (RFC 7505)
+                return CompletableFuture.completedFuture(entry(Collections.emptyList(), records.get(0).getTTL()));
+            }
 
-            if (mxAttr == null || mxAttr.size() == 0) {
-                logger.warn("No MX records found for domain: {}", domain);
-                // Fallback: try the domain itself as mail server
-                return Arrays.asList(domain);
+            records.sort(Comparator.comparingInt(MXRecord::getPriority));
+            List<CompletableFuture<Addresses>> lookups = new ArrayList<>();
+            for (MXRecord record : records) {
+                lookups.add(addresses(record.getTarget(), response));
             }
+            return CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+                List<MxHost> hosts = new ArrayList<>();
+                long ttl = MAX_TTL_SECONDS;
+                for (int i = 0; i < records.size(); i++) {
+                    MXRecord record = records.get(i);
+                    Addresses found = lookups.get(i).join();
+                    ttl = Math.min(ttl, Math.min(record.getTTL(), found.ttl));
+                    if (!found.addresses.isEmpty()) {
+                        hosts.add(new MxHost(hostname(record.getTarget()), record.getPriority(), found.addresses));
+                    }
+                }
+                if (hosts.isEmpty()) {
+                    throw new CompletionException(
+                            new IOException("No mail exchanger of " + domain + " has an address"));
+                }
+                return entry(hosts, ttl);
+            });
+        });
+    }
+
+    /**
+     * Resolve the addresses of a host, using those the server already sent
+     * along with the MX answer if there are any
+     */
+    private CompletableFuture<Addresses> addresses(Name host, Message response) {
+        Addresses additional = new Addresses();
+        for (Record record : response.getSection(Section.ADDITIONAL)) {
+            if (record.getName().equals(host)) {
+                additional.add(record);
+            }
+        }
+        if (!additional.addresses.isEmpty()) {
+            return CompletableFuture.completedFuture(additional);
+        }
 
-            NamingEnumeration<?> mxEnum = mxAttr.getAll();
-            while (mxEnum.hasMore()) {
-                String mxRecord = (String) mxEnum.next();
-                // MX record format: "priority hostname"
-                String[] parts = mxRecord.split("\\s+");
-                if (parts.length >= 2) {
-                    int priority = Integer.parseInt(parts[0]);
-                    String hostname = parts[1];
-                    // Remove trailing dot if present
-                    if (hostname.endsWith(".")) {
-                        hostname = hostname.substring(0, hostname.length() - 1);
+        CompletableFuture<Message> v4 = send(host, Type.A);
+        CompletableFuture<Message> v6 = send(host, Type.AAAA);
+        return v4.handle((a, aError) -> v6.handle((aaaa, aaaaError) -> {
+            Addresses found = new Addresses();
+            for (Message answer : new Message[] { a, aaaa }) {
+                if (answer == null || (answer.getRcode() != Rcode.NOERROR && answer.getRcode() != Rcode.NXDOMAIN)) {
+                    found.failed = true;
+                } else {
+                    for (Record record : answer.getSection(Section.ANSWER)) {
+                        found.add(record);
                     }
-                    mxRecords.add(new MxRecord(priority, hostname));
                 }
             }
+            return found;
+        })).thenCompose(found -> found);
+    }
 
-            ctx.close();
-        } catch (Exception e) {
-            logger.error("Error looking up MX records for {}: {}", domain, e.getMessage());
-            // Fallback to domain itself
-            return Arrays.asList(domain);
+    private CompletableFuture<Message> send(Name name, int type) {
+        Message query = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        return resolver.sendAsync(query).toCompletableFuture();
+    }
+
+    private static void checkResponse(Message response, Name name, int type) {
+        int rcode = response.getRcode();
+        if (rcode != Rcode.NOERROR) {
+            throw new CompletionException(new IOException(
+                    "DNS " + Type.string(type) + " lookup of " + name + " failed: " + Rcode.string(rcode)));
         }
+    }
 
-        // Sort by priority (lower number = higher priority)
-        Collections.sort(mxRecords);
+    /**
+     * Cache entry for a domain without mail exchangers, kept for the negative
+     * TTL of its zone (RFC 2308)
+     */
+    private static CacheEntry negative(Message response) {
+        long ttl = DEFAULT_NEGATIVE_TTL_SECONDS;
+        for (Record record : response.getSection(Section.AUTHORITY)) {
+            if (record instanceof SOARecord) {
+                ttl = Math.min(record.getTTL(), ((SOARecord) record).getMinimum());
+            }
+        }
+        return entry(Collections.emptyList(), ttl);
+    }
 
-        List<String> result = new ArrayList<>();
-        for (MxRecord mx : mxRecords) {
-            result.add(mx.hostname);
+    private static CacheEntry entry(List<MxHost> hosts, long ttlSeconds) {
+        long ttl = Math.max(MIN_TTL_SECONDS, Math.min(MAX_TTL_SECONDS, ttlSeconds));
+        return new CacheEntry(Collections.unmodifiableList(hosts), TimeUnit.SECONDS.toNanos(ttl));
+    }
+
+    private void sweep(long now) {
+        if (now - nextSweep < 0) {
+            return;
         }
+        nextSweep = now + SWEEP_INTERVAL_NANOS;
+        cache.values().removeIf(entry -> now - entry.expiresAt > 0);
+    }
 
-        logger.info("Found {} MX records for {}: {}", result.size(), domain, result);
-        return result;
+    private static String hostname(Name name) {
+        return name.toString(true);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
     }
 
-    private static class MxRecord implements Comparable<MxRecord> {
-        final int priority;
-        final String hostname;
+    private static final class CacheEntry {
+        final List<MxHost> hosts;
+        final long ttlNanos;
+        final long expiresAt;
 
-        MxRecord(int priority, String hostname) {
-            this.priority = priority;
-            this.hostname = hostname;
+        CacheEntry(List<MxHost> hosts, long ttlNanos) {
+            this.hosts = hosts;
+            this.ttlNanos = ttlNanos;
+            this.expiresAt = System.nanoTime() + ttlNanos;
         }
+    }
 
-        @Override
-        public int compareTo(MxRecord other) {
-            return Integer.compare(this.priority, other.priority);
+    /**
+     * Addresses of one host and the lowest TTL among them
+     */
+    private static final class Addresses {
+        final List<InetAddress> addresses = new ArrayList<>();
+        long ttl = MAX_TTL_SECONDS;
+        boolean failed;
+
+        void add(Record record) {
+            if (record instanceof ARecord) {
+                addresses.add(((ARecord) record).getAddress());
+            } else if (record instanceof AAAARecord) {
+                addresses.add(((AAAARecord) record).getAddress());
+            } else {
+                return;
+            }
+            ttl = Math.min(ttl, record.getTTL());
         }
     }
 }
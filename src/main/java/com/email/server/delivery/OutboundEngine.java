@@ -0,0 +1,364 @@
+package com.email.server.delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules outbound SMTP transactions with bounded concurrency.
+ *
+ * Submitted transactions wait in a queue per destination domain. At most
+ * {@code maxConnections} transactions are in flight in total, and each domain
+ * is held to the rate and concurrency its {@link DomainThrottle} allows, which
+ * shrinks when the domain defers us with 421 or 451. Domains with work take
+ * turns for free slots, so a large backlog for one destination, or one that
+ * is slow to answer, does not hold up the others.
+ *
+ * Each {@link DeliveryPriority} has its own turn of domains, and the classes
+ * share free slots in proportion to their weights. Bulk mail never takes the
+ * last slots overall or for a domain, so other mail can start at once even
+ * during a flood.
+ */
+class OutboundEngine {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundEngine.class);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final MxLookupService mxLookupService;
+    private final ExternalSmtpClient smtpClient;
+
+    private final int maxConnections;
+    // Slots bulk mail may take in total
+    private final int bulkLimit;
+    private final DomainThrottle.Settings throttleSettings;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private final Map<String, DomainQueue> queues = new HashMap<>();
+    private final PriorityClass[] classes = new PriorityClass[DeliveryPriority.values().length];
+    private int active;
+    private int queued;
+    private boolean stopped;
+    private long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+
+    /**
+     * @param scheduler wakes up domains once their throttle lets them go on
+     */
+    OutboundEngine(MxLookupService mxLookupService, ExternalSmtpClient smtpClient,
+            ScheduledExecutorService scheduler, int maxConnections, DomainThrottle.Settings throttleSettings) {
+        this.mxLookupService = mxLookupService;
+        this.smtpClient = smtpClient;
+        this.scheduler = scheduler;
+        this.maxConnections = maxConnections;
+        this.throttleSettings = throttleSettings;
+        this.bulkLimit = Math.max(1, maxConnections * 3 / 4);
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            classes[priority.ordinal()] = new PriorityClass(priority);
+        }
+    }
+
+    /**
+     * Queue a transaction for recipients of one domain
+     *
+     * @return the reply for each recipient once the transaction ran
+     */
+    CompletableFuture<Map<String, SmtpReply>> submit(String domain, DeliveryPriority priority, String from,
+            List<String> recipients, ExternalSmtpClient.ContentSource content) {
+        Job job = new Job(domain, priority, from, recipients, content);
+        synchronized (this) {
+            if (stopped) {
+                job.future.complete(ExternalSmtpClient.failed(recipients, "Delivery engine stopped"));
+                return job.future;
+            }
+            long now = System.nanoTime();
+            sweep(now);
+            DomainQueue queue = queues.computeIfAbsent(domain,
+                    d -> new DomainQueue(d, new DomainThrottle(throttleSettings, now)));
+            queue.jobs[priority.ordinal()].add(job);
+            queued++;
+            markRunnable(queue);
+        }
+        dispatch();
+        return job.future;
+    }
+
+    synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * Drop queued transactions, completing them with a transient failure.
+     * Transactions in flight run to completion.
+     */
+    void stop() {
+        List<Job> dropped = new ArrayList<>();
+        synchronized (this) {
+            stopped = true;
+            for (DomainQueue queue : queues.values()) {
+                for (ArrayDeque<Job> jobs : queue.jobs) {
+                    dropped.addAll(jobs);
+                    jobs.clear();
+                }
+            }
+            queued = 0;
+            for (PriorityClass priorityClass : classes) {
+                priorityClass.runnable.clear();
+            }
+        }
+        for (Job job : dropped) {
+            job.future.complete(ExternalSmtpClient.failed(job.recipients, "Delivery engine stopped"));
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                if (stopped || active >= maxConnections) {
+                    return;
+                }
+                PriorityClass next = nextClass();
+                if (next == null) {
+                    return;
+                }
+                int level = next.priority.ordinal();
+                DomainQueue queue = next.runnable.poll();
+                queue.runnable[level] = false;
+                // Another class may have taken the domain's last slot since it was queued
+                if (queue.waiting || queue.active >= slots(queue, next.priority)) {
+                    continue;
+                }
+                long wait = queue.throttle.tryAcquire(System.nanoTime());
+                if (wait > 0) {
+                    wakeUpLater(queue, wait);
+                    continue;
+                }
+                job = queue.jobs[level].poll();
+                queued--;
+                queue.active++;
+                active++;
+                // Back of the line, so other domains get the next slot
+                markRunnable(queue);
+            }
+            start(job);
+        }
+    }
+
+    /**
+     * Pick the class to start a transaction for next, by smooth weighted round
+     * robin among the classes that have runnable domains
+     */
+    private PriorityClass nextClass() {
+        PriorityClass best = null;
+        int total = 0;
+        for (PriorityClass candidate : classes) {
+            if (candidate.runnable.isEmpty() || (candidate.priority == DeliveryPriority.BULK && active >= bulkLimit)) {
+                continue;
+            }
+            candidate.credit += candidate.priority.getWeight();
+            total += candidate.priority.getWeight();
+            if (best == null || candidate.credit > best.credit) {
+                best = candidate;
+            }
+        }
+        if (best != null) {
+            best.credit -= total;
+        }
+        return best;
+    }
+
+    private void markRunnable(DomainQueue queue) {
+        if (queue.waiting) {
+            return;
+        }
+        for (PriorityClass priorityClass : classes) {
+            int level = priorityClass.priority.ordinal();
+            if (!queue.runnable[level] && !queue.jobs[level].isEmpty()
+                    && queue.active < slots(queue, priorityClass.priority)) {
+                queue.runnable[level] = true;
+                priorityClass.runnable.add(queue);
+            }
+        }
+    }
+
+    /**
+     * @return transactions mail of a priority may have in flight to a domain
+     */
+    private static int slots(DomainQueue queue, DeliveryPriority priority) {
+        int limit = queue.throttle.getLimit();
+        // Bulk mail leaves a domain's last slot to other mail
+        return priority == DeliveryPriority.BULK && limit > 1 ? limit - 1 : limit;
+    }
+
+    /**
+     * Take a domain out of turn until its throttle lets it go on
+     */
+    private void wakeUpLater(DomainQueue queue, long delayNanos) {
+        queue.waiting = true;
+        try {
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    queue.waiting = false;
+                    markRunnable(queue);
+                }
+                dispatch();
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void finished(Job job, Map<String, SmtpReply> replies) {
+        boolean throttled = replies.values().stream().anyMatch(OutboundEngine::isThrottled);
+        boolean delivered = replies.values().stream().anyMatch(SmtpReply::isPositive);
+        synchronized (this) {
+            long now = System.nanoTime();
+            DomainQueue queue = queues.get(job.domain);
+            queue.active--;
+            active--;
+            if (throttled) {
+                long pause = queue.throttle.onThrottled(now);
+                logger.warn("{} is deferring mail, pausing it for {} ms with at most {} connections", job.domain,
+                        TimeUnit.NANOSECONDS.toMillis(pause), queue.throttle.getLimit());
+            } else if (delivered) {
+                queue.throttle.onSuccess();
+            }
+            if (queue.active == 0 && queue.isEmpty() && !queue.waiting && queue.throttle.isIdle(now)) {
+                queues.remove(job.domain);
+            } else {
+                markRunnable(queue);
+            }
+        }
+        job.future.complete(replies);
+        dispatch();
+    }
+
+    private void start(Job job) {
+        mxLookupService.resolveAsync(job.domain).whenComplete((hosts, error) -> {
+            if (error != null) {
+                finished(job, ExternalSmtpClient.replyToAll(job.recipients,
+                        SmtpReply.synthesized(451, "4.4.3 MX lookup for " + job.domain + " failed")));
+            } else if (hosts.isEmpty()) {
+                finished(job, ExternalSmtpClient.replyToAll(job.recipients,
+                        SmtpReply.synthesized(550, "5.1.2 No mail exchanger for " + job.domain)));
+            } else {
+                attempt(job, hosts, 0);
+            }
+        });
+    }
+
+    /**
+     * @return true if the server asked us to slow down rather than answering
+     * for the recipient the reply was given for. Replies made up for our own
+     * failures, such as a lost connection or MX lookup, do not count.
+     */
+    private static boolean isThrottled(SmtpReply reply) {
+        return !reply.isSynthesized() && (reply.getCode() == 421 || reply.getCode() == 451);
+    }
+
+    /**
+     * Forget throttles of domains that have nothing queued and are back at
+     * full speed, at most once a minute
+     */
+    private void sweep(long now) {
+        if (now - nextSweep < 0) {
+            return;
+        }
+        nextSweep = now + SWEEP_INTERVAL_NANOS;
+        queues.values().removeIf(queue -> queue.active == 0 && queue.isEmpty() && !queue.waiting
+                && queue.throttle.isIdle(now));
+    }
+
+    /**
+     * Try the mail exchangers in order of preference until one gives a definite
+     * answer for at least one recipient
+     */
+    private void attempt(Job job, List<MxHost> hosts, int index) {
+        MxHost host = hosts.get(index);
+        logger.debug("Attempting delivery of {} recipients for {} via MX: {}", job.recipients.size(), job.domain,
+                host.getHostname());
+        smtpClient.send(host, job.from, job.recipients, job.content).whenComplete((replies, error) -> {
+            boolean allTransient = error != null
+                    || replies.values().stream().allMatch(SmtpReply::isTransient);
+            if (allTransient && index + 1 < hosts.size()) {
+                attempt(job, hosts, index + 1);
+            } else if (error != null) {
+                finished(job, ExternalSmtpClient.failed(job.recipients, error.getMessage()));
+            } else {
+                finished(job, replies);
+            }
+        });
+    }
+
+    /**
+     * Domains with runnable work of one priority, in the order they take turns
+     */
+    private static final class PriorityClass {
+        final DeliveryPriority priority;
+        final ArrayDeque<DomainQueue> runnable = new ArrayDeque<>();
+        int credit;
+
+        PriorityClass(DeliveryPriority priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static final class DomainQueue {
+        final String domain;
+        final DomainThrottle throttle;
+        // Jobs and turn of the domain by priority
+        final ArrayDeque<Job>[] jobs;
+        final boolean[] runnable = new boolean[DeliveryPriority.values().length];
+        int active;
+        boolean waiting;
+
+        @SuppressWarnings("unchecked")
+        DomainQueue(String domain, DomainThrottle throttle) {
+            this.domain = domain;
+            this.throttle = throttle;
+            this.jobs = new ArrayDeque[DeliveryPriority.values().length];
+            for (int i = 0; i < jobs.length; i++) {
+                jobs[i] = new ArrayDeque<>();
+            }
+        }
+
+        boolean isEmpty() {
+            for (ArrayDeque<Job> queued : jobs) {
+                if (!queued.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Job {
+        final String domain;
+        final DeliveryPriority priority;
+        final String from;
+        final List<String> recipients;
+        final ExternalSmtpClient.ContentSource content;
+        final CompletableFuture<Map<String, SmtpReply>> future = new CompletableFuture<>();
+
+        Job(String domain, DeliveryPriority priority, String from, List<String> recipients,
+                ExternalSmtpClient.ContentSource content) {
+            this.domain = domain;
+            this.priority = priority;
+            this.from = from;
+            this.recipients = recipients;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.email.server.delivery;
+
+import com.email.server.config.ServerConfig;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Schedules retries of failed deliveries on a hashed timer wheel.
+ *
+ * Each retry of a message waits {@code multiplier} times longer than the one
+ * before, from the initial delay up to the maximum, and every delay is varied
+ * at random by up to the jitter fraction so that messages that failed together
+ * do not all come back at once. Scheduling a retry and firing it take constant
+ * time however many messages are waiting.
+ */
+class RetryScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    private static final long TICK_MILLIS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final long initialDelayMillis;
+    private final double multiplier;
+    private final long maxDelayMillis;
+    private final double jitter;
+    private final int maxRetries;
+    private final HashedWheelTimer timer = new HashedWheelTimer(new DefaultThreadFactory("delivery-retry", true),
+            TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+
+    RetryScheduler(Duration initialDelay, double multiplier, Duration maxDelay, double jitter, int maxRetries) {
+        this.initialDelayMillis = initialDelay.toMillis();
+        this.multiplier = multiplier;
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.jitter = jitter;
+        this.maxRetries = maxRetries;
+    }
+
+    static RetryScheduler fromConfig(ServerConfig config) {
+        return new RetryScheduler(config.getDeliveryRetryInitialDelay(), config.getDeliveryRetryMultiplier(),
+                config.getDeliveryRetryMaxDelay(), config.getDeliveryRetryJitter(), config.getDeliveryMaxRetries());
+    }
+
+    /**
+     * Schedule the next attempt of a failed task
+     *
+     * @param retry called on the timer thread once the task is due, must not block
+     * @return false if the task has used up its retries
+     */
+    boolean schedule(DeliveryTask task, Consumer<DeliveryTask> retry) {
+        if (!task.shouldRetry(maxRetries)) {
+            return false;
+        }
+
+        task.incrementRetryCount();
+        long delay = delayMillis(task.getRetryCount());
+        task.setStatus(DeliveryTask.Status.RETRY);
+        task.setNextAttemptTime(LocalDateTime.now().plus(Duration.ofMillis(delay)));
+        try {
+            timer.newTimeout(timeout -> retry.accept(task), delay, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // Shutting down, the task is picked up again on the next start
+            logger.debug("Retry of {} not scheduled: {}", task.getMessageId(), e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * @return milliseconds to wait before the given retry, counting from 1
+     */
+    long delayMillis(int retry) {
+        double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, retry - 1));
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(0, Math.round(Math.min(maxDelayMillis, delay * factor)));
+    }
+
+    long getPendingCount() {
+        return timer.pendingTimeouts();
+    }
+
+    /**
+     * Cancel all scheduled retries
+     */
+    void stop() {
+        timer.stop();
+    }
+}
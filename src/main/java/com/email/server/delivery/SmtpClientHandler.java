@@ -0,0 +1,339 @@
+package com.email.server.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client side of one outbound SMTP connection.
+ *
+ * The handler greets the server on connect and then runs transactions one at a
+ * time. A transaction completes with a reply for every recipient once the
+ * connection is back in a state where the next transaction can start, so a
+ * transaction that failed half-way is reset before it completes. Pooled
+ * connections are reset with {@link #rset()} before they are used again.
+ */
+class SmtpClientHandler extends SimpleChannelInboundHandler<String> {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpClientHandler.class);
+
+    private enum State {
+        GREETING,
+        HELO,
+        READY,
+        MAIL,
+        RCPT,
+        DATA,
+        CONTENT,
+        RSET,
+        QUIT
+    }
+
+    private final String heloName;
+    private final String host;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private final StringBuilder replyText = new StringBuilder();
+
+    private Channel channel;
+    private volatile State state = State.GREETING;
+    private boolean ehlo = true;
+    private Transaction transaction;
+    private CompletableFuture<Void> pendingReset;
+
+    SmtpClientHandler(String heloName, String host) {
+        this.heloName = heloName;
+        this.host = host;
+    }
+
+    /**
+     * @return completed once the server accepted the greeting, failed if it did not
+     */
+    CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    /**
+     * Run a transaction on this connection, which must be ready and idle
+     *
+     * @return the reply for each recipient
+     */
+    CompletableFuture<Map<String, SmtpReply>> send(String from, List<String> recipients,
+            ExternalSmtpClient.ContentSource content) {
+        Transaction next = new Transaction(recipients, content);
+        channel.eventLoop().execute(() -> {
+            if (state != State.READY || transaction != null || pendingReset != null) {
+                next.fail("Connection to " + host + " is not ready");
+                return;
+            }
+            transaction = next;
+            state = State.MAIL;
+            write("MAIL FROM:<" + (from != null ? from : "") + ">");
+        });
+        return next.future;
+    }
+
+    /**
+     * Reset an idle connection before reusing it, which also makes sure the
+     * server is still there
+     *
+     * @return completed once the server acknowledged, failed if the connection is gone
+     */
+    CompletableFuture<Void> rset() {
+        CompletableFuture<Void> reset = new CompletableFuture<>();
+        channel.eventLoop().execute(() -> {
+            if (state != State.READY || transaction != null || pendingReset != null || !channel.isActive()) {
+                reset.completeExceptionally(new IOException("Connection to " + host + " is not idle"));
+                return;
+            }
+            pendingReset = reset;
+            sendRset();
+        });
+        return reset;
+    }
+
+    /**
+     * @return true if the connection is open with no transaction in progress
+     */
+    boolean isIdle() {
+        return state == State.READY && channel.isActive();
+    }
+
+    Channel channel() {
+        return channel;
+    }
+
+    /**
+     * End the session, closing the connection once the server answered
+     */
+    void quit() {
+        channel.eventLoop().execute(() -> {
+            if (channel.isActive()) {
+                state = State.QUIT;
+                write("QUIT");
+            }
+        });
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        channel = ctx.channel();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        String reason = "Connection to " + host + " lost";
+        ready.completeExceptionally(new IOException(reason));
+        if (pendingReset != null) {
+            pendingReset.completeExceptionally(new IOException(reason));
+            pendingReset = null;
+        }
+        if (transaction != null) {
+            Transaction failed = transaction;
+            transaction = null;
+            failed.fail(reason);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.debug("Outbound connection to {} failed: {}", host, cause.toString());
+        ctx.close();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, String line) {
+        logger.debug("SMTP <<< {}", line);
+        if (replyText.length() > 0) {
+            replyText.append('\n');
+        }
+        replyText.append(line.length() > 4 ? line.substring(4) : "");
+
+        // Multi-line replies have "-" after the code, the last line has a space
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            return;
+        }
+
+        SmtpReply reply;
+        try {
+            reply = new SmtpReply(Integer.parseInt(line.substring(0, 3)), replyText.toString());
+        } catch (RuntimeException e) {
+            logger.warn("Malformed reply from {}: {}", host, line);
+            ctx.close();
+            return;
+        } finally {
+            replyText.setLength(0);
+        }
+        handleReply(ctx, reply);
+    }
+
+    private void handleReply(ChannelHandlerContext ctx, SmtpReply reply) {
+        switch (state) {
+            case GREETING:
+                if (reply.getCode() == 220) {
+                    state = State.HELO;
+                    write("EHLO " + heloName);
+                } else {
+                    refuse(ctx, reply);
+                }
+                break;
+
+            case HELO:
+                if (reply.getCode() == 250) {
+                    state = State.READY;
+                    ready.complete(null);
+                } else if (ehlo && reply.isPermanent()) {
+                    // Server does not speak ESMTP
+                    ehlo = false;
+                    write("HELO " + heloName);
+                } else {
+                    refuse(ctx, reply);
+                }
+                break;
+
+            case MAIL:
+                if (reply.isPositive()) {
+                    state = State.RCPT;
+                    write("RCPT TO:<" + transaction.recipients.get(0) + ">");
+                } else {
+                    transaction.replyToRemaining(reply);
+                    sendRset();
+                }
+                break;
+
+            case RCPT:
+                String recipient = transaction.recipients.get(transaction.rcptIndex++);
+                if (reply.isPositive()) {
+                    transaction.accepted.add(recipient);
+                } else {
+                    transaction.replies.put(recipient, reply);
+                }
+                if (transaction.rcptIndex < transaction.recipients.size()) {
+                    write("RCPT TO:<" + transaction.recipients.get(transaction.rcptIndex) + ">");
+                } else if (transaction.accepted.isEmpty()) {
+                    sendRset();
+                } else {
+                    state = State.DATA;
+                    write("DATA");
+                }
+                break;
+
+            case DATA:
+                if (reply.getCode() == 354) {
+                    sendContent(ctx);
+                } else {
+                    transaction.replyToRemaining(reply);
+                    sendRset();
+                }
+                break;
+
+            case CONTENT:
+                transaction.replyToRemaining(reply);
+                state = State.READY;
+                complete();
+                break;
+
+            case RSET:
+                if (reply.isPositive()) {
+                    state = State.READY;
+                    if (transaction != null) {
+                        complete();
+                    } else if (pendingReset != null) {
+                        CompletableFuture<Void> reset = pendingReset;
+                        pendingReset = null;
+                        reset.complete(null);
+                    }
+                } else {
+                    ctx.close();
+                }
+                break;
+
+            case QUIT:
+                ctx.close();
+                break;
+
+            default:
+                logger.warn("Unexpected reply from {}: {}", host, reply);
+                ctx.close();
+        }
+    }
+
+    private void sendContent(ChannelHandlerContext ctx) {
+        ByteBuf content;
+        try {
+            content = transaction.content.open();
+        } catch (IOException e) {
+            // There is no way to abort DATA, so the connection has to go
+            logger.error("Failed to open content for {}: {}", host, e.getMessage());
+            ctx.close();
+            return;
+        }
+        state = State.CONTENT;
+        ctx.writeAndFlush(new DotStuffedContent(content)).addListener(future -> {
+            if (!future.isSuccess()) {
+                ctx.close();
+            }
+        });
+    }
+
+    private void refuse(ChannelHandlerContext ctx, SmtpReply reply) {
+        logger.warn("Server {} refused session: {}", host, reply);
+        ready.completeExceptionally(new IOException(reply.toString()));
+        ctx.close();
+    }
+
+    private void sendRset() {
+        state = State.RSET;
+        write("RSET");
+    }
+
+    private void complete() {
+        Transaction done = transaction;
+        transaction = null;
+        done.future.complete(done.replies);
+    }
+
+    private void write(String command) {
+        logger.debug("SMTP >>> {}", command);
+        channel.writeAndFlush(command + "\r\n");
+    }
+
+    /**
+     * One message sent to one or more recipients
+     */
+    private static final class Transaction {
+        final List<String> recipients;
+        final ExternalSmtpClient.ContentSource content;
+        final Map<String, SmtpReply> replies = new LinkedHashMap<>();
+        final List<String> accepted = new ArrayList<>();
+        final CompletableFuture<Map<String, SmtpReply>> future = new CompletableFuture<>();
+        int rcptIndex;
+
+        Transaction(List<String> recipients, ExternalSmtpClient.ContentSource content) {
+            this.recipients = recipients;
+            this.content = content;
+        }
+
+        /**
+         * Give every recipient without a reply of its own the given one
+         */
+        void replyToRemaining(SmtpReply reply) {
+            for (String recipient : recipients) {
+                replies.putIfAbsent(recipient, reply);
+            }
+        }
+
+        void fail(String reason) {
+            replyToRemaining(SmtpReply.connectionFailed(reason));
+            future.complete(replies);
+        }
+    }
+}
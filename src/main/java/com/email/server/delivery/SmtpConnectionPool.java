@@ -0,0 +1,227 @@
+package com.email.server.delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Outbound SMTP connections kept open per mail exchanger.
+ *
+ * A connection that finished a transaction goes back to the pool of its host
+ * and is reset with RSET before it carries the next message, saving the TCP
+ * and EHLO round trips. At most {@code maxPerHost} connections are open to one
+ * host; further requests wait for a connection to be released. Connections
+ * that stay idle for {@code idleTimeoutSeconds} are closed with QUIT.
+ */
+class SmtpConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpConnectionPool.class);
+
+    private final Function<MxHost, CompletableFuture<SmtpClientHandler>> connector;
+    private final int maxPerHost;
+    private final long idleTimeoutSeconds;
+
+    // Guarded by this
+    private final Map<String, HostPool> hosts = new HashMap<>();
+    private boolean closed;
+
+    SmtpConnectionPool(Function<MxHost, CompletableFuture<SmtpClientHandler>> connector, int maxPerHost,
+            long idleTimeoutSeconds) {
+        this.connector = connector;
+        this.maxPerHost = maxPerHost;
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    /**
+     * Get a ready connection to a host, reusing an idle one if possible
+     */
+    CompletableFuture<SmtpClientHandler> acquire(MxHost mx) {
+        String host = mx.getHostname();
+        SmtpClientHandler idle;
+        synchronized (this) {
+            if (closed) {
+                CompletableFuture<SmtpClientHandler> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("Connection pool closed"));
+                return failed;
+            }
+            HostPool pool = hosts.computeIfAbsent(host, h -> new HostPool());
+            // Connections opened for waiters use the latest addresses
+            pool.target = mx;
+            idle = pool.idle.poll();
+            if (idle != null) {
+                pool.idleSince.remove(idle);
+            } else {
+                if (pool.open >= maxPerHost) {
+                    CompletableFuture<SmtpClientHandler> waiter = new CompletableFuture<>();
+                    pool.waiters.add(waiter);
+                    return waiter;
+                }
+                pool.open++;
+            }
+        }
+        return idle != null ? reuse(host, idle) : open(host);
+    }
+
+    /**
+     * Give a connection back once its transaction completed. Connections that
+     * are no longer usable are closed.
+     */
+    void release(String host, SmtpClientHandler handler) {
+        CompletableFuture<SmtpClientHandler> waiter;
+        synchronized (this) {
+            HostPool pool = hosts.get(host);
+            if (closed || !handler.isIdle()) {
+                handler.channel().close();
+                return;
+            }
+            waiter = pool.waiters.poll();
+            if (waiter == null) {
+                pool.idle.push(handler);
+                pool.idleSince.put(handler, System.nanoTime());
+                scheduleIdleCheck(host, handler);
+                return;
+            }
+        }
+        reuse(host, handler).whenComplete((reused, error) -> {
+            if (error != null) {
+                waiter.completeExceptionally(error);
+            } else {
+                waiter.complete(reused);
+            }
+        });
+    }
+
+    /**
+     * Close all idle connections and fail waiting requests
+     */
+    void close() {
+        List<SmtpClientHandler> idle = new ArrayList<>();
+        List<CompletableFuture<SmtpClientHandler>> waiters = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (HostPool pool : hosts.values()) {
+                idle.addAll(pool.idle);
+                waiters.addAll(pool.waiters);
+                pool.idle.clear();
+                pool.idleSince.clear();
+                pool.waiters.clear();
+            }
+        }
+        for (SmtpClientHandler handler : idle) {
+            handler.quit();
+        }
+        for (CompletableFuture<SmtpClientHandler> waiter : waiters) {
+            waiter.completeExceptionally(new IOException("Connection pool closed"));
+        }
+    }
+
+    private CompletableFuture<SmtpClientHandler> open(String host) {
+        MxHost target;
+        synchronized (this) {
+            target = hosts.get(host).target;
+        }
+        return connector.apply(target).whenComplete((handler, error) -> {
+            if (error != null) {
+                closed(host, null);
+            } else {
+                handler.channel().closeFuture().addListener(future -> closed(host, handler));
+            }
+        });
+    }
+
+    /**
+     * Reset an idle connection for its next transaction, falling back to a new
+     * connection if the server has gone away in the meantime
+     */
+    private CompletableFuture<SmtpClientHandler> reuse(String host, SmtpClientHandler handler) {
+        MxHost target;
+        synchronized (this) {
+            target = hosts.get(host).target;
+        }
+        return handler.rset()
+                .thenApply(ignored -> handler)
+                .exceptionally(error -> null)
+                .thenCompose(reset -> {
+                    if (reset != null) {
+                        logger.debug("Reusing connection to {}", host);
+                        return CompletableFuture.completedFuture(reset);
+                    }
+                    // Take the replacement's slot first: closing may run closed(), which drops a host
+                    // pool once nothing is open
+                    synchronized (this) {
+                        HostPool pool = hosts.computeIfAbsent(host, h -> new HostPool());
+                        if (pool.target == null) {
+                            pool.target = target;
+                        }
+                        pool.open++;
+                    }
+                    handler.channel().close();
+                    return open(host);
+                });
+    }
+
+    /**
+     * Account for a closed connection, opening a new one for the next waiter
+     */
+    private void closed(String host, SmtpClientHandler handler) {
+        CompletableFuture<SmtpClientHandler> waiter;
+        synchronized (this) {
+            HostPool pool = hosts.get(host);
+            pool.open--;
+            if (handler != null) {
+                pool.idle.remove(handler);
+                pool.idleSince.remove(handler);
+            }
+            waiter = pool.waiters.poll();
+            if (waiter == null) {
+                if (pool.open == 0) {
+                    hosts.remove(host);
+                }
+                return;
+            }
+            pool.open++;
+        }
+        open(host).whenComplete((opened, error) -> {
+            if (error != null) {
+                waiter.completeExceptionally(error);
+            } else {
+                waiter.complete(opened);
+            }
+        });
+    }
+
+    private void scheduleIdleCheck(String host, SmtpClientHandler handler) {
+        handler.channel().eventLoop().schedule(() -> {
+            synchronized (this) {
+                HostPool pool = hosts.get(host);
+                Long since = pool != null ? pool.idleSince.get(handler) : null;
+                // Reused and released again since this check was scheduled
+                if (since == null
+                        || System.nanoTime() - since < TimeUnit.SECONDS.toNanos(idleTimeoutSeconds)) {
+                    return;
+                }
+                pool.idle.remove(handler);
+                pool.idleSince.remove(handler);
+            }
+            logger.debug("Closing idle connection to {}", host);
+            handler.quit();
+        }, idleTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    private static final class HostPool {
+        // Most recently released first, so the oldest connections go idle
+        final ArrayDeque<SmtpClientHandler> idle = new ArrayDeque<>();
+        final Map<SmtpClientHandler, Long> idleSince = new HashMap<>();
+        final ArrayDeque<CompletableFuture<SmtpClientHandler>> waiters = new ArrayDeque<>();
+        MxHost target;
+        int open;
+    }
+}
@@ -0,0 +1,68 @@
+package com.email.server.delivery;
+
+/**
+ * Reply of a remote SMTP server, or a synthesized one when the server could
+ * not be talked to at all
+ */
+public class SmtpReply {
+    private final int code;
+    private final String text;
+    private final boolean synthesized;
+
+    public SmtpReply(int code, String text) {
+        this(code, text, false);
+    }
+
+    private SmtpReply(int code, String text, boolean synthesized) {
+        this.code = code;
+        this.text = text;
+        this.synthesized = synthesized;
+    }
+
+    /**
+     * Reply made up here for a failure that left no server to answer
+     */
+    public static SmtpReply synthesized(int code, String text) {
+        return new SmtpReply(code, text, true);
+    }
+
+    /**
+     * Reply standing in for a connection that failed or was lost, which is a
+     * temporary failure like any 4xx reply
+     */
+    public static SmtpReply connectionFailed(String reason) {
+        return synthesized(421, "4.4.1 " + reason);
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if the reply was made up here rather than received from the server
+     */
+    public boolean isSynthesized() {
+        return synthesized;
+    }
+
+    public boolean isPositive() {
+        return code >= 200 && code < 400;
+    }
+
+    public boolean isTransient() {
+        return code >= 400 && code < 500;
+    }
+
+    public boolean isPermanent() {
+        return code >= 500;
+    }
+
+    @Override
+    public String toString() {
+        return code + " " + text;
+    }
+}
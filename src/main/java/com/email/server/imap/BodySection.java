@@ -0,0 +1,220 @@
+package com.email.server.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A FETCH data item asking for message content: BODY[section]&lt;partial&gt;,
+ * its BODY.PEEK form, or one of RFC822, RFC822.HEADER and RFC822.TEXT.
+ *
+ * Whole content, HEADER and TEXT are byte ranges of the stored message split
+ * at the end of the header, so they are served without reading the content.
+ * HEADER.FIELDS and HEADER.FIELDS.NOT are built from the header bytes alone.
+ * MIME part numbers are not supported, as messages are not parsed.
+ */
+final class BodySection {
+    private static final Pattern BODY = Pattern.compile("BODY(?:\\.PEEK)?\\[([^\\]]*)\\](?:<(\\d+)\\.(\\d+)>)?");
+    private static final Pattern FIELDS = Pattern.compile("HEADER\\.FIELDS(\\.NOT)?\\s*\\(([^)]*)\\)");
+
+    private enum Part {
+        ALL,
+        HEADER,
+        TEXT,
+        HEADER_FIELDS,
+        HEADER_FIELDS_NOT
+    }
+
+    private final String name;
+    private final Part part;
+    private final Set<String> fields;
+    private final long origin;
+    private final long count;
+
+    private BodySection(String name, Part part, Set<String> fields, long origin, long count) {
+        this.name = name;
+        this.part = part;
+        this.fields = fields;
+        this.origin = origin;
+        this.count = count;
+    }
+
+    /**
+     * @param item a data item in upper case
+     * @return true if the item asks for message content
+     */
+    static boolean isBodyItem(String item) {
+        return item.startsWith("BODY[") || item.startsWith("BODY.PEEK[")
+                || (item.startsWith("RFC822") && !item.equals("RFC822.SIZE"));
+    }
+
+    /**
+     * @param item a data item in upper case for which {@link #isBodyItem} holds
+     * @throws IllegalArgumentException if the item is malformed or names an unsupported section
+     */
+    static BodySection parse(String item) {
+        switch (item) {
+            case "RFC822":
+                return new BodySection(item, Part.ALL, null, -1, 0);
+            case "RFC822.HEADER":
+                return new BodySection(item, Part.HEADER, null, -1, 0);
+            case "RFC822.TEXT":
+                return new BodySection(item, Part.TEXT, null, -1, 0);
+            default:
+                break;
+        }
+
+        Matcher matcher = BODY.matcher(item);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid data item " + item);
+        }
+        String section = matcher.group(1).trim();
+        long origin = matcher.group(2) != null ? Long.parseLong(matcher.group(2)) : -1;
+        long count = matcher.group(3) != null ? Long.parseLong(matcher.group(3)) : 0;
+        if (origin >= 0 && count == 0) {
+            throw new IllegalArgumentException("Invalid partial in " + item);
+        }
+
+        Part part;
+        Set<String> fields = null;
+        Matcher fieldList = FIELDS.matcher(section);
+        if (section.isEmpty()) {
+            part = Part.ALL;
+        } else if (section.equals("HEADER")) {
+            part = Part.HEADER;
+        } else if (section.equals("TEXT")) {
+            part = Part.TEXT;
+        } else if (fieldList.matches()) {
+            part = fieldList.group(1) != null ? Part.HEADER_FIELDS_NOT : Part.HEADER_FIELDS;
+            String names = fieldList.group(2).trim();
+            if (names.isEmpty()) {
+                throw new IllegalArgumentException("Empty header field list in " + item);
+            }
+            fields = new HashSet<>(Arrays.asList(names.split("\\s+")));
+            section = "HEADER.FIELDS" + (fieldList.group(1) != null ? ".NOT" : "") + " (" + names + ")";
+        } else {
+            throw new IllegalArgumentException("Unsupported section " + section);
+        }
+        // The response names BODY.PEEK as BODY
+        return new BodySection("BODY[" + section + "]", part, fields, origin, count);
+    }
+
+    /**
+     * @return true if the section starts or ends at the end of the header
+     */
+    boolean needsHeaderLength() {
+        return part != Part.ALL;
+    }
+
+    /**
+     * @return true if the section is built from the header bytes rather than
+     * being a range of the content
+     */
+    boolean needsHeader() {
+        return part == Part.HEADER_FIELDS || part == Part.HEADER_FIELDS_NOT;
+    }
+
+    /**
+     * @return the item as named in the FETCH response, with the origin of a partial
+     */
+    String responseName() {
+        return origin >= 0 ? name + "<" + origin + ">" : name;
+    }
+
+    /**
+     * Byte range of the content to send, for sections other than the header fields
+     *
+     * @return offset and length
+     */
+    long[] range(long headerLength, long size) {
+        long start;
+        long length;
+        switch (part) {
+            case HEADER:
+                start = 0;
+                length = headerLength;
+                break;
+            case TEXT:
+                start = headerLength;
+                length = size - headerLength;
+                break;
+            default:
+                start = 0;
+                length = size;
+        }
+        return partial(start, length);
+    }
+
+    /**
+     * @param header the header including the blank line ending it
+     * @return the selected header fields followed by a blank line, cut to the partial
+     */
+    byte[] headerFields(byte[] header) {
+        ByteArrayOutputStream selected = new ByteArrayOutputStream(256);
+        boolean include = false;
+        int lineStart = 0;
+        for (int i = 0; i < header.length; i++) {
+            if (header[i] != '\n') {
+                continue;
+            }
+            int lineEnd = i + 1;
+            int contentEnd = i > lineStart && header[i - 1] == '\r' ? i - 1 : i;
+            if (contentEnd == lineStart) {
+                break;
+            }
+            // Folded lines belong to the field before them
+            byte first = header[lineStart];
+            if (first != ' ' && first != '\t') {
+                include = fields.contains(fieldName(header, lineStart, contentEnd))
+                        == (part == Part.HEADER_FIELDS);
+            }
+            if (include) {
+                selected.write(header, lineStart, lineEnd - lineStart);
+            }
+            lineStart = lineEnd;
+        }
+        selected.write('\r');
+        selected.write('\n');
+
+        byte[] fieldBytes = selected.toByteArray();
+        long[] range = partial(0, fieldBytes.length);
+        return Arrays.copyOfRange(fieldBytes, (int) range[0], (int) (range[0] + range[1]));
+    }
+
+    /**
+     * @return the length of the header including the blank line ending it,
+     * or -1 if the bytes hold no blank line
+     */
+    static int headerLength(byte[] content, int length) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (content[i] == '\n') {
+                if (i == lineStart || (i == lineStart + 1 && content[lineStart] == '\r')) {
+                    return i + 1;
+                }
+                lineStart = i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private long[] partial(long start, long length) {
+        if (origin < 0) {
+            return new long[] {start, length};
+        }
+        long skip = Math.min(origin, length);
+        return new long[] {start + skip, Math.min(count, length - skip)};
+    }
+
+    private static String fieldName(byte[] header, int start, int end) {
+        int colon = start;
+        while (colon < end && header[colon] != ':') {
+            colon++;
+        }
+        return new String(header, start, colon - start, StandardCharsets.US_ASCII).trim().toUpperCase();
+    }
+}
@@ -3,12 +3,16 @@ package com.email.server.imap;
 public enum ImapCommand {
     LOGIN,
     CAPABILITY,
+    ENABLE,
     LIST,
     SELECT,
     FETCH,
     STORE,
+    SEARCH,
+    UID,
     EXPUNGE,
     NOOP,
+    IDLE,
     LOGOUT,
     UNKNOWN;
 
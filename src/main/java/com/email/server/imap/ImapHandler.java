@@ -1,20 +1,64 @@
 package com.email.server.imap;
 
 import com.email.server.storage.MailMessage;
+import com.email.server.mailbox.FolderStatus;
+import com.email.server.mailbox.MailboxEvent;
+import com.email.server.mailbox.MailboxEventBus;
 import com.email.server.mailbox.MailboxStorage;
+import com.email.server.transport.InboundQueue;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class ImapHandler extends SimpleChannelInboundHandler<String> {
     private static final Logger logger = LoggerFactory.getLogger(ImapHandler.class);
 
+    // Search keys matching messages with a system flag, UN... matches those without it
+    private static final Map<String, String> SEARCH_FLAGS = Map.of(
+            "SEEN", "\\Seen",
+            "ANSWERED", "\\Answered",
+            "FLAGGED", "\\Flagged",
+            "DELETED", "\\Deleted",
+            "DRAFT", "\\Draft");
+
+    // RFC 7162 parameters of SELECT and FETCH
+    private static final Pattern QRESYNC = Pattern.compile(
+            "\\(QRESYNC\\s*\\(\\s*(\\d+)\\s+(\\d+)(?:\\s+([0-9:,*]+))?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CHANGEDSINCE = Pattern.compile("\\(CHANGEDSINCE\\s+(\\d+)(\\s+VANISHED)?\\s*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    // FETCH data items served from the index, besides the body items of BodySection
+    private static final Set<String> FETCH_ITEMS = Set.of("UID", "FLAGS", "INTERNALDATE", "RFC822.SIZE", "MODSEQ");
+
+    private static final DateTimeFormatter INTERNAL_DATE = DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z",
+            Locale.US);
+
     private final MailboxStorage mailboxStorage;
     private final ImapSession session;
+    private final InboundQueue inbound = new InboundQueue((ctx, msg) -> channelRead0(ctx, (String) msg));
+
+    // Changes to the selected folder not yet told to the client, and the tag of a running IDLE
+    private final ArrayDeque<MailboxEvent> pending = new ArrayDeque<>();
+    private MailboxEventBus.Subscription subscription;
+    private String idleTag;
 
     public ImapHandler(MailboxStorage mailboxStorage) {
         this.mailboxStorage = mailboxStorage;
@@ -26,8 +70,27 @@ public class ImapHandler extends SimpleChannelInboundHandler<String> {
         ctx.writeAndFlush("* OK IMAP4rev1 Service Ready\r\n");
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        inbound.clear();
+        unwatch();
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, String msg) {
+        if (inbound.hold(msg)) {
+            return;
+        }
+        if (idleTag != null) {
+            // The only thing a client may send during IDLE
+            if (msg.trim().equalsIgnoreCase("DONE")) {
+                ctx.writeAndFlush(idleTag + " OK IDLE terminated\r\n");
+            } else {
+                ctx.writeAndFlush(idleTag + " BAD Expected DONE\r\n");
+            }
+            idleTag = null;
+            return;
+        }
         String[] parts = msg.trim().split("\\s+", 3);
         if (parts.length < 2) {
             return; // Ignore invalid lines
@@ -41,6 +104,9 @@ public class ImapHandler extends SimpleChannelInboundHandler<String> {
 
         try {
             handleCommand(ctx, tag, command, args);
+        } catch (IllegalArgumentException e) {
+            // Malformed arguments, such as a sequence set
+            ctx.writeAndFlush(tag + " BAD " + e.getMessage() + "\r\n");
         } catch (Exception e) {
             logger.error("Error handling command: " + command, e);
             ctx.writeAndFlush(tag + " BAD Internal server error\r\n");
@@ -54,7 +120,11 @@ public class ImapHandler extends SimpleChannelInboundHandler<String> {
                 handleLogin(ctx, tag, args);
                 break;
             case CAPABILITY:
-                ctx.writeAndFlush("* CAPABILITY IMAP4rev1 AUTH=PLAIN\r\n" + tag + " OK CAPABILITY completed\r\n");
+                ctx.writeAndFlush("* CAPABILITY IMAP4rev1 AUTH=PLAIN ENABLE IDLE CONDSTORE QRESYNC\r\n"
+                        + tag + " OK CAPABILITY completed\r\n");
+                break;
+            case ENABLE:
+                handleEnable(ctx, tag, args);
                 break;
             case LIST:
                 handleList(ctx, tag, args);
@@ -63,17 +133,27 @@ public class ImapHandler extends SimpleChannelInboundHandler<String> {
                 handleSelect(ctx, tag, args);
                 break;
             case FETCH:
-                handleFetch(ctx, tag, args);
+                handleFetch(ctx, tag, args, false);
                 break;
             case STORE:
-                handleStore(ctx, tag, args);
+                handleStore(ctx, tag, args, false);
+                break;
+            case SEARCH:
+                handleSearch(ctx, tag, args, false);
+                break;
+            case UID:
+                handleUid(ctx, tag, args);
                 break;
             case EXPUNGE:
                 handleExpunge(ctx, tag);
                 break;
             case NOOP:
+                writePending(ctx);
                 ctx.writeAndFlush(tag + " OK NOOP completed\r\n");
                 break;
+            case IDLE:
+                handleIdle(ctx, tag);
+                break;
             case LOGOUT:
                 ctx.writeAndFlush("* BYE IMAP4rev1 Server logging out\r\n" + tag + " OK LOGOUT completed\r\n")
                         .addListener(ChannelFutureListener.CLOSE);
@@ -113,100 +193,673 @@ public class ImapHandler extends SimpleChannelInboundHandler<String> {
         ctx.writeAndFlush("* LIST (\\HasNoChildren) \"/\" \"INBOX\"\r\n" + tag + " OK LIST completed\r\n");
     }
 
+    private void handleEnable(ChannelHandlerContext ctx, String tag, String args) {
+        if (session.getState() == ImapSession.State.NOT_AUTHENTICATED) {
+            ctx.writeAndFlush(tag + " NO Not authenticated\r\n");
+            return;
+        }
+
+        // Only extensions not enabled before are listed
+        StringBuilder enabled = new StringBuilder("* ENABLED");
+        for (String extension : args.trim().toUpperCase().split("\\s+")) {
+            if (extension.equals("CONDSTORE") && !session.isCondStore()) {
+                session.setCondStore(true);
+                enabled.append(" CONDSTORE");
+            } else if (extension.equals("QRESYNC") && !session.isQresync()) {
+                session.setQresync(true);
+                enabled.append(" QRESYNC");
+            }
+        }
+        ctx.write(enabled.append("\r\n").toString());
+        ctx.writeAndFlush(tag + " OK ENABLE completed\r\n");
+    }
+
     private void handleSelect(ChannelHandlerContext ctx, String tag, String args) {
         if (session.getState() == ImapSession.State.NOT_AUTHENTICATED) {
             ctx.writeAndFlush(tag + " NO Not authenticated\r\n");
             return;
         }
 
-        String mailbox = args.replace("\"", "");
+        // SELECT mailbox [(CONDSTORE) | (QRESYNC (uidvalidity modseq ...))]
+        String[] parts = args.trim().split("\\s+", 2);
+        String mailbox = parts[0].replace("\"", "");
+        String parameters = parts.length > 1 ? parts[1] : "";
         if (!"INBOX".equalsIgnoreCase(mailbox)) {
             ctx.writeAndFlush(tag + " NO Mailbox doesn't exist\r\n");
             return;
         }
 
-        try {
-            List<MailMessage> messages = mailboxStorage.getMessages(session.getUsername(), "INBOX");
-            session.setMessages(messages);
+        long[] resync = null;
+        String knownUids = null;
+        Matcher qresync = QRESYNC.matcher(parameters);
+        if (qresync.find()) {
+            if (!session.isQresync()) {
+                ctx.writeAndFlush(tag + " BAD QRESYNC not enabled\r\n");
+                return;
+            }
+            resync = new long[] { Long.parseLong(qresync.group(1)), Long.parseLong(qresync.group(2)) };
+            knownUids = qresync.group(3);
+            if (knownUids != null) {
+                // Rejected before the folder is watched or loaded
+                SequenceSet.parse(knownUids, 1);
+            }
+        } else if (parameters.toUpperCase().contains("CONDSTORE")) {
+            session.setCondStore(true);
+        }
+
+        // Changes made while the folder loads are kept and told once they are not in the listing
+        String username = session.getUsername();
+        watch(ctx, username, "INBOX");
+
+        // The status is read after the messages, so UIDNEXT is above every UID the client sees
+        CompletableFuture<List<MailMessage>> messages = mailboxStorage.getMessagesAsync(username, "INBOX");
+        CompletableFuture<FolderStatus> status = messages.thenCompose(
+                loaded -> mailboxStorage.getFolderStatusAsync(username, "INBOX"));
+        long[] known = resync;
+        String knownSet = knownUids;
+        CompletableFuture<List<Long>> expunged = status.thenCompose(folder -> known != null
+                && folder.getUidValidity() == known[0]
+                        ? mailboxStorage.getExpungedUidsAsync(username, "INBOX", known[1])
+                        : CompletableFuture.completedFuture(null));
+        inbound.await(ctx, expunged, (vanished, error) -> {
+            if (error != null) {
+                logger.error("Error selecting mailbox", error);
+                unwatch();
+                if (session.getState() == ImapSession.State.SELECTED) {
+                    session.setState(ImapSession.State.AUTHENTICATED);
+                }
+                ctx.writeAndFlush(tag + " NO Select failed\r\n");
+                return;
+            }
+            List<MailMessage> selected = messages.join();
+            FolderStatus folder = status.join();
+            session.setMessages(selected);
             session.setSelectedMailbox("INBOX");
             session.setState(ImapSession.State.SELECTED);
 
-            ctx.writeAndFlush("* " + messages.size() + " EXISTS\r\n");
-            ctx.writeAndFlush("* " + messages.size() + " RECENT\r\n");
-            ctx.writeAndFlush("* OK [UIDVALIDITY " + System.currentTimeMillis() + "] UIDs valid\r\n");
+            ctx.write("* " + selected.size() + " EXISTS\r\n");
+            ctx.write("* " + selected.size() + " RECENT\r\n");
+            ctx.write("* OK [UIDVALIDITY " + folder.getUidValidity() + "] UIDs valid\r\n");
+            ctx.write("* OK [UIDNEXT " + folder.getUidNext() + "] Predicted next UID\r\n");
+            if (session.isCondStore()) {
+                ctx.write("* OK [HIGHESTMODSEQ " + folder.getHighestModSeq() + "] Highest\r\n");
+            }
+            if (known != null && folder.getUidValidity() == known[0]) {
+                // Only UIDs the client says it knows are reported as vanished
+                SequenceSet scope = knownSet != null ? SequenceSet.parse(knownSet, folder.getUidNext() - 1)
+                        : new SequenceSet.Builder().add(1, folder.getUidNext() - 1).build();
+                writeResync(ctx, selected, scope, vanished, known[1]);
+            }
             ctx.writeAndFlush(tag + " OK [READ-WRITE] SELECT completed\r\n");
-        } catch (Exception e) {
-            logger.error("Error selecting mailbox", e);
-            ctx.writeAndFlush(tag + " NO Select failed\r\n");
+        });
+    }
+
+    /**
+     * Start receiving the changes of a folder, dropping those of the folder
+     * selected before
+     */
+    private void watch(ChannelHandlerContext ctx, String username, String folder) {
+        unwatch();
+        subscription = mailboxStorage.getEventBus().subscribe(username, folder, event -> {
+            try {
+                ctx.executor().execute(() -> onMailboxEvent(ctx, event));
+            } catch (RejectedExecutionException e) {
+                // Event loop shut down, the connection is gone
+            }
+        });
+    }
+
+    private void unwatch() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        pending.clear();
+    }
+
+    private void onMailboxEvent(ChannelHandlerContext ctx, MailboxEvent event) {
+        if (subscription == null) {
+            return;
+        }
+        pending.add(event);
+        if (idleTag != null) {
+            writePending(ctx);
+            ctx.flush();
+        }
+    }
+
+    private void handleIdle(ChannelHandlerContext ctx, String tag) {
+        if (session.getState() == ImapSession.State.NOT_AUTHENTICATED) {
+            ctx.writeAndFlush(tag + " NO Not authenticated\r\n");
+            return;
         }
+        idleTag = tag;
+        ctx.write("+ idling\r\n");
+        writePending(ctx);
+        ctx.flush();
     }
 
-    private void handleFetch(ChannelHandlerContext ctx, String tag, String args) {
+    /**
+     * Apply the changes received since the last time to the selected messages
+     * and tell the client about them. Changes the listing already had are
+     * skipped.
+     */
+    private void writePending(ChannelHandlerContext ctx) {
         if (session.getState() != ImapSession.State.SELECTED) {
-            ctx.writeAndFlush(tag + " NO No mailbox selected\r\n");
             return;
         }
+        List<MailMessage> messages = session.getMessages();
+        MailboxEvent event;
+        while ((event = pending.poll()) != null) {
+            int index = indexOfUid(messages, event.getUid());
+            switch (event.getType()) {
+                case ADDED:
+                    if (messages.isEmpty() || event.getUid() > messages.get(messages.size() - 1).getUid()) {
+                        messages.add(event.getMessage());
+                        ctx.write("* " + messages.size() + " EXISTS\r\n");
+                    }
+                    break;
+                case FLAGS:
+                    if (index >= 0 && messages.get(index).getModSeq() < event.getModSeq()) {
+                        MailMessage msg = messages.get(index);
+                        msg.setFlags(event.getFlags());
+                        msg.setModSeq(event.getModSeq());
+                        StringBuilder response = new StringBuilder("* " + (index + 1) + " FETCH (UID "
+                                + msg.getUid() + " FLAGS (" + String.join(" ", msg.getFlags()) + ")");
+                        if (session.isCondStore()) {
+                            response.append(" MODSEQ (").append(msg.getModSeq()).append(')');
+                        }
+                        ctx.write(response.append(")\r\n").toString());
+                    }
+                    break;
+                case EXPUNGED:
+                    if (index >= 0) {
+                        messages.remove(index);
+                        // QRESYNC clients are told the UID instead of the shifting sequence number
+                        ctx.write(session.isQresync() ? "* VANISHED " + event.getUid() + "\r\n"
+                                : "* " + (index + 1) + " EXPUNGE\r\n");
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the position of the message with the UID, or a negative value
+     */
+    private static int indexOfUid(List<MailMessage> messages, long uid) {
+        int index = firstWithUid(messages, uid);
+        return index < messages.size() && messages.get(index).getUid() == uid ? index : -1;
+    }
+
+    /**
+     * @return the position of the first message whose UID is at least the
+     * given one, found by binary search as messages are in UID order
+     */
+    private static int firstWithUid(List<MailMessage> messages, long uid) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (messages.get(middle).getUid() < uid) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Tell a QRESYNC client what changed since the modification sequence it
+     * last saw: the UIDs expunged meanwhile, then the flags of changed messages
+     *
+     * @param scope UIDs the client may have seen
+     * @param vanished UIDs expunged since, or null if the folder no longer knows
+     */
+    private void writeResync(ChannelHandlerContext ctx, List<MailMessage> messages, SequenceSet scope,
+            List<Long> vanished, long modSeq) {
+        // Without the exact list every UID in scope that is not in the folder may have gone
+        SequenceSet uids = vanished != null ? SequenceSet.of(filter(vanished, scope)) : missingUids(messages, scope);
+        if (!uids.isEmpty()) {
+            ctx.write("* VANISHED (EARLIER) " + uids + "\r\n");
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            MailMessage msg = messages.get(i);
+            if (msg.getModSeq() > modSeq) {
+                ctx.write("* " + (i + 1) + " FETCH (UID " + msg.getUid() + " FLAGS ("
+                        + String.join(" ", msg.getFlags()) + ") MODSEQ (" + msg.getModSeq() + "))\r\n");
+            }
+        }
+    }
+
+    private static List<Long> filter(List<Long> uids, SequenceSet set) {
+        return uids.stream().filter(set::contains).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the UIDs of the set that none of the messages has
+     */
+    private static SequenceSet missingUids(List<MailMessage> messages, SequenceSet set) {
+        SequenceSet.Builder missing = new SequenceSet.Builder();
+        for (int range = 0; range < set.ranges(); range++) {
+            long next = set.start(range);
+            long last = set.end(range);
+            for (int i = firstWithUid(messages, next); i < messages.size() && messages.get(i).getUid() <= last; i++) {
+                long uid = messages.get(i).getUid();
+                if (uid > next) {
+                    missing.add(next, uid - 1);
+                }
+                next = uid + 1;
+            }
+            if (next <= last) {
+                missing.add(next, last);
+            }
+        }
+        return missing.build();
+    }
+
+    /**
+     * UID FETCH, UID STORE and UID SEARCH: the same commands with UIDs in place
+     * of sequence numbers
+     */
+    private void handleUid(ChannelHandlerContext ctx, String tag, String args) {
+        String[] parts = args.split("\\s+", 2);
+        String rest = parts.length > 1 ? parts[1] : "";
+        switch (ImapCommand.fromString(parts[0])) {
+            case FETCH:
+                handleFetch(ctx, tag, rest, true);
+                break;
+            case STORE:
+                handleStore(ctx, tag, rest, true);
+                break;
+            case SEARCH:
+                handleSearch(ctx, tag, rest, true);
+                break;
+            default:
+                ctx.writeAndFlush(tag + " BAD Unknown UID command\r\n");
+        }
+    }
 
-        // Simplified FETCH parsing: assumes "1:*" or "1" and "(FLAGS)" or "(BODY[...])"
-        // Real IMAP parsing is much more complex.
+    /**
+     * Resolve a sequence set or UID set to the sequence numbers of the selected
+     * messages it names, in ascending order. Only the ranges of the set are
+     * walked, so a short set costs little in a large folder.
+     *
+     * @param byUid whether the set holds UIDs rather than sequence numbers
+     * @throws IllegalArgumentException if the set is malformed
+     */
+    private List<Integer> select(String set, boolean byUid) {
+        return select(parseSet(set, byUid), byUid);
+    }
 
+    private List<Integer> select(SequenceSet set, boolean byUid) {
         List<MailMessage> messages = session.getMessages();
-        // For now, just return all messages if range is 1:* or similar, or specific
-        // message
+        List<Integer> result = new ArrayList<>();
+        for (int range = 0; range < set.ranges(); range++) {
+            long end = set.end(range);
+            if (byUid) {
+                for (int i = firstWithUid(messages, set.start(range));
+                        i < messages.size() && messages.get(i).getUid() <= end; i++) {
+                    result.add(i + 1);
+                }
+            } else {
+                // * is 0 in an empty folder
+                long first = Math.max(1, set.start(range));
+                for (long sequence = first; sequence <= Math.min(end, messages.size()); sequence++) {
+                    result.add((int) sequence);
+                }
+            }
+        }
+        return result;
+    }
 
-        // Very basic parsing
+    /**
+     * @param byUid whether * stands for the highest UID rather than the highest sequence number
+     */
+    private SequenceSet parseSet(String set, boolean byUid) {
+        List<MailMessage> messages = session.getMessages();
+        long largest = messages.isEmpty() ? 0
+                : byUid ? messages.get(messages.size() - 1).getUid() : messages.size();
+        return SequenceSet.parse(set, largest);
+    }
+
+    /**
+     * Data items of a FETCH in upper case, with the macros expanded. Sections
+     * such as BODY[HEADER.FIELDS (FROM TO)] stay one item.
+     *
+     * @throws IllegalArgumentException for items that are not served, such as
+     * ENVELOPE and BODYSTRUCTURE, and the ALL and FULL macros that include them
+     */
+    private static List<String> fetchItems(String dataItems) {
+        String list = dataItems.trim();
+        if (list.startsWith("(") && list.endsWith(")")) {
+            list = list.substring(1, list.length() - 1);
+        }
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= list.length(); i++) {
+            char c = i < list.length() ? list.charAt(i) : ' ';
+            if (c == '[' || c == '(') {
+                depth++;
+            } else if (c == ']' || c == ')') {
+                depth--;
+            } else if (c == ' ' && depth <= 0) {
+                String item = list.substring(start, i).toUpperCase();
+                start = i + 1;
+                switch (item) {
+                    case "":
+                        break;
+                    case "FAST":
+                        items.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+                        break;
+                    default:
+                        if (!FETCH_ITEMS.contains(item) && !BodySection.isBodyItem(item)) {
+                            throw new IllegalArgumentException("Unsupported data item " + item);
+                        }
+                        items.add(item);
+                }
+            }
+        }
+        return items;
+    }
+
+    private void handleFetch(ChannelHandlerContext ctx, String tag, String args, boolean byUid) {
+        if (session.getState() != ImapSession.State.SELECTED) {
+            ctx.writeAndFlush(tag + " NO No mailbox selected\r\n");
+            return;
+        }
+
+        // FETCH set items [(CHANGEDSINCE modseq [VANISHED])]
         String[] parts = args.split("\\s+", 2);
-        String sequenceSet = parts[0];
+        SequenceSet sequenceSet = parseSet(parts[0], byUid);
         String dataItems = parts.length > 1 ? parts[1] : "";
 
-        int start = 1;
-        int end = messages.size();
+        // (CHANGEDSINCE modseq [VANISHED]) limits the response to messages changed since
+        long changedSince = -1;
+        boolean vanished = false;
+        Matcher modifier = CHANGEDSINCE.matcher(dataItems);
+        if (modifier.find()) {
+            changedSince = Long.parseLong(modifier.group(1));
+            vanished = modifier.group(2) != null;
+            dataItems = dataItems.substring(0, modifier.start());
+            if (vanished && (!byUid || !session.isQresync())) {
+                ctx.writeAndFlush(tag + " BAD VANISHED needs UID FETCH and QRESYNC\r\n");
+                return;
+            }
+        }
+        List<String> items = fetchItems(dataItems);
+        List<BodySection> sections = new ArrayList<>();
+        for (String item : items) {
+            if (BodySection.isBodyItem(item)) {
+                sections.add(BodySection.parse(item));
+            }
+        }
+        boolean withModSeq = changedSince >= 0 || items.contains("MODSEQ");
+        if (withModSeq) {
+            session.setCondStore(true);
+        }
 
-        if (!sequenceSet.equals("*") && !sequenceSet.equals("1:*")) {
-            try {
-                if (sequenceSet.contains(":")) {
-                    String[] range = sequenceSet.split(":");
-                    start = Integer.parseInt(range[0]);
-                    if (!range[1].equals("*")) {
-                        end = Integer.parseInt(range[1]);
+        if (vanished) {
+            long since = changedSince;
+            inbound.await(ctx, mailboxStorage.getExpungedUidsAsync(session.getUsername(), "INBOX", since),
+                    (expunged, error) -> {
+                        if (error != null) {
+                            logger.error("Error fetching expunged messages", error);
+                            ctx.writeAndFlush(tag + " NO Fetch failed\r\n");
+                            return;
+                        }
+                        SequenceSet uids = expunged != null ? SequenceSet.of(filter(expunged, sequenceSet))
+                                : missingUids(session.getMessages(), sequenceSet);
+                        if (!uids.isEmpty()) {
+                            ctx.write("* VANISHED (EARLIER) " + uids + "\r\n");
+                        }
+                        writeFetch(ctx, tag, sequenceSet, items, sections, true, since, true);
+                    });
+            return;
+        }
+        writeFetch(ctx, tag, sequenceSet, items, sections, byUid, changedSince, withModSeq);
+    }
+
+    /**
+     * Write the FETCH responses. Everything but the body comes from the index
+     * metadata the session loaded on SELECT; message files are only opened
+     * for body items, and only header sections read any content.
+     *
+     * @param changedSince only messages changed after this modification sequence, or -1 for all
+     */
+    private void writeFetch(ChannelHandlerContext ctx, String tag, SequenceSet sequenceSet, List<String> items,
+            List<BodySection> sections, boolean byUid, long changedSince, boolean withModSeq) {
+        List<MailMessage> messages = session.getMessages();
+        List<Integer> selected = new ArrayList<>();
+        for (int sequence : select(sequenceSet, byUid)) {
+            if (messages.get(sequence - 1).getModSeq() > changedSince) {
+                selected.add(sequence);
+            }
+        }
+
+        // Header fields, and sections of messages indexed before header lengths were recorded, need the header
+        boolean needsHeader = sections.stream().anyMatch(BodySection::needsHeader);
+        boolean needsHeaderLength = sections.stream().anyMatch(BodySection::needsHeaderLength);
+        List<MailMessage> unread = new ArrayList<>();
+        for (int sequence : selected) {
+            MailMessage msg = messages.get(sequence - 1);
+            if (msg.getContentPath() != null && (needsHeader || (needsHeaderLength && msg.getHeaderLength() == 0))) {
+                unread.add(msg);
+            }
+        }
+        if (unread.isEmpty()) {
+            writeFetch(ctx, tag, selected, items, sections, byUid, withModSeq, Collections.emptyMap());
+            return;
+        }
+        inbound.await(ctx, CompletableFuture.supplyAsync(() -> readHeaders(unread), mailboxStorage.getIoExecutor()),
+                (headers, error) -> {
+                    if (error != null) {
+                        logger.error("Error reading message headers", error);
+                        ctx.writeAndFlush(tag + " NO Fetch failed\r\n");
+                        return;
                     }
-                } else {
-                    start = Integer.parseInt(sequenceSet);
-                    end = start;
+                    writeFetch(ctx, tag, selected, items, sections, byUid, withModSeq, headers);
+                });
+    }
+
+    /**
+     * @param headers headers read for the FETCH by message id
+     */
+    private void writeFetch(ChannelHandlerContext ctx, String tag, List<Integer> selected, List<String> items,
+            List<BodySection> sections, boolean byUid, boolean withModSeq, Map<String, byte[]> headers) {
+        // UID FETCH always reports the UID
+        boolean withUid = byUid || items.contains("UID");
+        boolean withFlags = items.contains("FLAGS");
+        boolean withDate = items.contains("INTERNALDATE");
+        boolean withSize = items.contains("RFC822.SIZE");
+
+        List<MailMessage> messages = session.getMessages();
+        boolean complete = true;
+        for (int sequence : selected) {
+            MailMessage msg = messages.get(sequence - 1);
+            StringBuilder response = new StringBuilder("* " + sequence + " FETCH (");
+            if (withUid) {
+                response.append("UID ").append(msg.getUid()).append(' ');
+            }
+            if (withFlags) {
+                response.append("FLAGS (").append(String.join(" ", msg.getFlags())).append(") ");
+            }
+            if (withDate) {
+                response.append("INTERNALDATE \"")
+                        .append(INTERNAL_DATE.format(msg.getReceivedTime().atZone(ZoneId.systemDefault())))
+                        .append("\" ");
+            }
+            if (withSize) {
+                response.append("RFC822.SIZE ").append(msg.getSize()).append(' ');
+            }
+            if (withModSeq) {
+                response.append("MODSEQ (").append(msg.getModSeq()).append(") ");
+            }
+
+            if (!sections.isEmpty()) {
+                // Literals are sent straight from the stored file
+                if (writeBodyLiterals(ctx, response, msg, sections, headers.get(msg.getMessageId()))) {
+                    ctx.write(")\r\n");
+                    continue;
+                }
+                // Content missing, so send what the index has and fail the command
+                complete = false;
+                if (response.charAt(response.length() - 1) == '(') {
+                    continue;
                 }
-            } catch (NumberFormatException e) {
-                // Ignore invalid range, default to all
             }
+
+            response.setLength(response.length() - 1);
+            response.append(")\r\n");
+            ctx.write(response.toString());
         }
 
-        for (int i = start - 1; i < end && i < messages.size(); i++) {
-            if (i < 0)
-                continue;
-            MailMessage msg = messages.get(i);
-            StringBuilder response = new StringBuilder("* " + (i + 1) + " FETCH (");
+        if (complete) {
+            ctx.writeAndFlush(tag + " OK FETCH completed\r\n");
+        } else {
+            ctx.writeAndFlush(tag + " NO Some message content could not be read\r\n");
+        }
+    }
 
-            if (dataItems.contains("FLAGS")) {
-                response.append("FLAGS (");
-                response.append(String.join(" ", msg.getFlags()));
-                response.append(") ");
+    /**
+     * Write the FETCH response so far followed by a literal for each section.
+     * Ranges of a stored file are sent as file regions.
+     *
+     * @param header the header read for the FETCH, or null
+     * @return false if the content could not be opened and nothing was written
+     */
+    private boolean writeBodyLiterals(ChannelHandlerContext ctx, StringBuilder response, MailMessage msg,
+            List<BodySection> sections, byte[] header) {
+        byte[] data = null;
+        long size;
+        long headerLength;
+        if (msg.getContentPath() == null) {
+            data = msg.getData().getBytes(StandardCharsets.UTF_8);
+            size = data.length;
+            int end = BodySection.headerLength(data, data.length);
+            headerLength = end >= 0 ? end : size;
+            header = Arrays.copyOf(data, (int) headerLength);
+        } else {
+            size = msg.getSize();
+            headerLength = header != null ? header.length : msg.getHeaderLength();
+            long known = headerLength;
+            if (header == null && sections.stream().anyMatch(section -> section.needsHeader()
+                    || (section.needsHeaderLength() && known == 0))) {
+                return false;
             }
+        }
 
-            if (dataItems.contains("BODY") || dataItems.contains("RFC822")) {
-                response.append("BODY[] {").append(msg.getData().length()).append("}\r\n");
-                response.append(msg.getData());
-            } else if (dataItems.contains("UID")) {
-                // Simple UID using hashcode or similar if not real UID
-                response.append(" UID ").append(i + 1);
+        // Open every file region first, so a failure leaves nothing half written
+        List<FileChannel> channels = new ArrayList<>();
+        if (data == null) {
+            for (BodySection section : sections) {
+                FileChannel channel = null;
+                if (!section.needsHeader() && section.range(headerLength, size)[1] > 0) {
+                    try {
+                        channel = FileChannel.open(msg.getContentPath(), StandardOpenOption.READ);
+                    } catch (IOException e) {
+                        logger.error("Failed to open message: " + msg.getMessageId(), e);
+                        closeAll(channels);
+                        return false;
+                    }
+                }
+                channels.add(channel);
             }
+        }
 
-            response.append(")\r\n");
-            ctx.writeAndFlush(response.toString());
+        for (int i = 0; i < sections.size(); i++) {
+            BodySection section = sections.get(i);
+            if (i > 0) {
+                response.append(' ');
+            }
+            response.append(section.responseName()).append(" {");
+            if (section.needsHeader()) {
+                byte[] fields = section.headerFields(header);
+                response.append(fields.length).append("}\r\n");
+                ctx.write(response.toString());
+                ctx.write(Unpooled.wrappedBuffer(fields));
+            } else {
+                long[] range = section.range(headerLength, size);
+                response.append(range[1]).append("}\r\n");
+                ctx.write(response.toString());
+                if (data != null) {
+                    ctx.write(Unpooled.wrappedBuffer(data, (int) range[0], (int) range[1]));
+                } else if (channels.get(i) != null) {
+                    ctx.write(new DefaultFileRegion(channels.get(i), range[0], range[1]));
+                }
+            }
+            response.setLength(0);
         }
+        return true;
+    }
 
-        ctx.writeAndFlush(tag + " OK FETCH completed\r\n");
+    /**
+     * Read the headers of stored messages, on the storage I/O pool
+     *
+     * @return the header of each message by id, without those that could not be read
+     */
+    private static Map<String, byte[]> readHeaders(List<MailMessage> messages) {
+        Map<String, byte[]> headers = new HashMap<>();
+        for (MailMessage msg : messages) {
+            try {
+                headers.put(msg.getMessageId(), readHeader(msg));
+            } catch (IOException e) {
+                logger.error("Failed to read header of message: " + msg.getMessageId(), e);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @return the header including the blank line ending it, or the whole content if it has none
+     */
+    private static byte[] readHeader(MailMessage msg) throws IOException {
+        try (FileChannel channel = FileChannel.open(msg.getContentPath(), StandardOpenOption.READ)) {
+            if (msg.getHeaderLength() > 0) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) msg.getHeaderLength());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Read up to the recorded length
+                }
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            }
+
+            // Indexed before header lengths were recorded, so look for the blank line
+            byte[] content = new byte[8192];
+            int length = 0;
+            while (true) {
+                if (length == content.length) {
+                    content = Arrays.copyOf(content, length * 2);
+                }
+                int read = channel.read(ByteBuffer.wrap(content, length, content.length - length));
+                if (read < 0) {
+                    return Arrays.copyOf(content, length);
+                }
+                int end = BodySection.headerLength(content, length + read);
+                if (end >= 0) {
+                    return Arrays.copyOf(content, end);
+                }
+                length += read;
+            }
+        }
     }
 
-    private void handleStore(ChannelHandlerContext ctx, String tag, String args) {
+    private static void closeAll(List<FileChannel> channels) {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing was written from it
+                }
+            }
+        }
+    }
+
+    private void handleStore(ChannelHandlerContext ctx, String tag, String args, boolean byUid) {
         if (session.getState() != ImapSession.State.SELECTED) {
             ctx.writeAndFlush(tag + " NO No mailbox selected\r\n");
             return;
@@ -214,62 +867,140 @@ public class ImapHandler extends SimpleChannelInboundHandler<String> {
 
         // STORE 1 +FLAGS (\Seen)
         String[] parts = args.split("\\s+");
-        if (parts.length < 3) {
+        if (parts.length < 3 || args.indexOf('(') < 0 || args.indexOf(')') < args.indexOf('(')) {
             ctx.writeAndFlush(tag + " BAD Invalid arguments\r\n");
             return;
         }
 
         String sequenceSet = parts[0];
-        String operation = parts[1]; // +FLAGS, -FLAGS, FLAGS
-        String flagsStr = args.substring(args.indexOf("(") + 1, args.indexOf(")"));
-        Set<String> flags = new HashSet<>(Arrays.asList(flagsStr.split("\\s+")));
+        // +FLAGS, -FLAGS or FLAGS, with .SILENT leaving out the untagged FETCH responses
+        String operation = parts[1].toUpperCase();
+        boolean silent = operation.endsWith(".SILENT");
+        if (silent) {
+            operation = operation.substring(0, operation.length() - ".SILENT".length());
+        }
+        if (!operation.equals("FLAGS") && !operation.equals("+FLAGS") && !operation.equals("-FLAGS")) {
+            ctx.writeAndFlush(tag + " BAD Invalid arguments\r\n");
+            return;
+        }
+        String flagsStr = args.substring(args.indexOf("(") + 1, args.indexOf(")")).trim();
+        Set<String> flags = flagsStr.isEmpty() ? new HashSet<>() : new HashSet<>(Arrays.asList(flagsStr.split("\\s+")));
 
-        try {
-            int msgNum = Integer.parseInt(sequenceSet);
-            int index = msgNum - 1;
-            List<MailMessage> messages = session.getMessages();
-
-            if (index >= 0 && index < messages.size()) {
-                MailMessage msg = messages.get(index);
-                // boolean replace = operation.equalsIgnoreCase("FLAGS");
-
-                // Handle +FLAGS and -FLAGS logic if needed, but MailStorage.updateFlags handles
-                // replace vs add
-                // Actually MailStorage.updateFlags logic:
-                // if replace=true, set flags.
-                // if replace=false, add flags.
-                // We need to handle -FLAGS (remove) separately or update MailStorage.
-
-                // For simplicity, let's assume +FLAGS (add) or FLAGS (replace).
-                // -FLAGS is tricky with current MailStorage.updateFlags.
-                // Let's update MailStorage.updateFlags to support remove?
-                // Or just read, modify, replace.
-
-                // Since I can't easily change MailStorage interface again without more steps, I
-                // will implement logic here
-                // and use replace=true.
-
-                Set<String> currentFlags = msg.getFlags();
-                if (operation.equalsIgnoreCase("+FLAGS")) {
-                    currentFlags.addAll(flags);
-                } else if (operation.equalsIgnoreCase("-FLAGS")) {
-                    currentFlags.removeAll(flags);
-                } else {
-                    currentFlags = flags;
+        List<Integer> selected = select(sequenceSet, byUid);
+        if (selected.isEmpty()) {
+            if (byUid) {
+                // UIDs of expunged messages are not an error
+                ctx.writeAndFlush(tag + " OK STORE completed\r\n");
+            } else {
+                ctx.writeAndFlush(tag + " NO No such message\r\n");
+            }
+            return;
+        }
+
+        // Storage merges additions and removals with the current flags, which may
+        // have been changed by another session since this one last heard of them
+        String username = session.getUsername();
+        List<MailMessage> messages = session.getMessages();
+        List<CompletableFuture<MailboxEvent>> updates = new ArrayList<>();
+        for (int sequence : selected) {
+            MailMessage msg = messages.get(sequence - 1);
+            if (operation.equals("FLAGS")) {
+                updates.add(mailboxStorage.updateFlagsAsync(username, "INBOX", msg.getMessageId(), flags, true)
+                        .thenApply(modSeq -> MailboxEvent.flagsChanged(username, "INBOX", msg.getUid(), modSeq,
+                                flags)));
+            } else {
+                Set<String> none = Collections.emptySet();
+                boolean add = operation.equals("+FLAGS");
+                updates.add(mailboxStorage.changeFlagsAsync(username, "INBOX", msg.getMessageId(),
+                        add ? flags : none, add ? none : flags));
+            }
+        }
+
+        inbound.await(ctx, CompletableFuture.allOf(updates.toArray(new CompletableFuture[0])), (done, error) -> {
+            if (error != null) {
+                logger.error("Error storing flags", error);
+                ctx.writeAndFlush(tag + " NO Store failed\r\n");
+                return;
+            }
+            for (int i = 0; i < selected.size(); i++) {
+                int sequence = selected.get(i);
+                MailboxEvent update = updates.get(i).join();
+                MailMessage msg = messages.get(sequence - 1);
+                msg.setFlags(update.getFlags());
+                msg.setModSeq(update.getModSeq());
+                if (silent) {
+                    continue;
                 }
+                StringBuilder response = new StringBuilder("* " + sequence + " FETCH (");
+                if (byUid) {
+                    response.append("UID ").append(msg.getUid()).append(' ');
+                }
+                response.append("FLAGS (").append(String.join(" ", msg.getFlags())).append(')');
+                if (session.isCondStore()) {
+                    response.append(" MODSEQ (").append(msg.getModSeq()).append(')');
+                }
+                ctx.write(response.append(")\r\n").toString());
+            }
+            ctx.writeAndFlush(tag + " OK STORE completed\r\n");
+        });
+    }
+
+    /**
+     * SEARCH over the flags and numbers of the selected messages. All keys
+     * given must match; UID SEARCH answers with UIDs.
+     */
+    private void handleSearch(ChannelHandlerContext ctx, String tag, String args, boolean byUid) {
+        if (session.getState() != ImapSession.State.SELECTED) {
+            ctx.writeAndFlush(tag + " NO No mailbox selected\r\n");
+            return;
+        }
 
-                mailboxStorage.updateFlags(session.getUsername(), "INBOX", msg.getMessageId(), currentFlags, true);
+        List<MailMessage> messages = session.getMessages();
+        Set<Integer> matches = new TreeSet<>();
+        for (int i = 1; i <= messages.size(); i++) {
+            matches.add(i);
+        }
 
-                // Send untagged response
-                ctx.writeAndFlush("* " + msgNum + " FETCH (FLAGS (" + String.join(" ", currentFlags) + "))\r\n");
-                ctx.writeAndFlush(tag + " OK STORE completed\r\n");
+        String[] keys = args.trim().isEmpty() ? new String[0] : args.trim().split("\\s+");
+        boolean byModSeq = false;
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i].toUpperCase();
+            if (key.equals("ALL")) {
+                continue;
+            }
+            if (key.equals("MODSEQ") && i + 1 < keys.length && keys[i + 1].matches("\\d+")) {
+                long modSeq = Long.parseLong(keys[++i]);
+                matches.removeIf(sequence -> messages.get(sequence - 1).getModSeq() < modSeq);
+                byModSeq = true;
+                session.setCondStore(true);
+            } else if (key.equals("UID") && i + 1 < keys.length) {
+                matches.retainAll(select(keys[++i], true));
+            } else if (!key.isEmpty() && (Character.isDigit(key.charAt(0)) || key.charAt(0) == '*')) {
+                matches.retainAll(select(key, false));
+            } else if (SEARCH_FLAGS.containsKey(key)) {
+                String flag = SEARCH_FLAGS.get(key);
+                matches.removeIf(sequence -> !messages.get(sequence - 1).getFlags().contains(flag));
+            } else if (key.startsWith("UN") && SEARCH_FLAGS.containsKey(key.substring(2))) {
+                String flag = SEARCH_FLAGS.get(key.substring(2));
+                matches.removeIf(sequence -> messages.get(sequence - 1).getFlags().contains(flag));
             } else {
-                ctx.writeAndFlush(tag + " NO No such message\r\n");
+                ctx.writeAndFlush(tag + " BAD Unsupported search key " + keys[i] + "\r\n");
+                return;
             }
-        } catch (Exception e) {
-            logger.error("Error storing flags", e);
-            ctx.writeAndFlush(tag + " NO Store failed\r\n");
         }
+
+        StringBuilder response = new StringBuilder("* SEARCH");
+        long highest = 0;
+        for (int sequence : matches) {
+            response.append(' ').append(byUid ? messages.get(sequence - 1).getUid() : sequence);
+            highest = Math.max(highest, messages.get(sequence - 1).getModSeq());
+        }
+        // A MODSEQ search reports the highest modification sequence among the matches
+        if (byModSeq && highest > 0) {
+            response.append(" (MODSEQ ").append(highest).append(')');
+        }
+        ctx.write(response.append("\r\n").toString());
+        ctx.writeAndFlush(tag + " OK SEARCH completed\r\n");
     }
 
     private void handleExpunge(ChannelHandlerContext ctx, String tag) {
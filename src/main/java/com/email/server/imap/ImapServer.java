@@ -2,14 +2,12 @@ package com.email.server.imap;
 
 import com.email.server.config.ServerConfig;
 import com.email.server.mailbox.MailboxStorage;
+import com.email.server.transport.TransportRuntime;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.Delimiters;
 import io.netty.handler.codec.string.StringDecoder;
@@ -18,6 +16,8 @@ import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class ImapServer {
@@ -25,24 +25,31 @@ public class ImapServer {
 
     private final ServerConfig config;
     private final MailboxStorage mailboxStorage;
-    private final EventLoopGroup bossGroup;
-    private final EventLoopGroup workerGroup;
-    private final io.netty.util.concurrent.EventExecutorGroup businessGroup;
-    private ChannelFuture channelFuture;
+    private final TransportRuntime runtime;
+    // Created for this server alone, so stopped along with it
+    private final boolean ownsRuntime;
+    private List<Channel> serverChannels = Collections.emptyList();
 
     public ImapServer(ServerConfig config, MailboxStorage mailboxStorage) {
+        this(config, null, mailboxStorage);
+    }
+
+    /**
+     * @param runtime shared with the other servers of the process, or null
+     * for threads of this server's own
+     */
+    public ImapServer(ServerConfig config, TransportRuntime runtime, MailboxStorage mailboxStorage) {
         this.config = config;
         this.mailboxStorage = mailboxStorage;
-        this.bossGroup = new NioEventLoopGroup(config.getIoThreads());
-        this.workerGroup = new NioEventLoopGroup(config.getWorkerThreads());
-        this.businessGroup = new io.netty.util.concurrent.DefaultEventExecutorGroup(config.getBusinessThreads());
+        this.ownsRuntime = runtime == null;
+        this.runtime = ownsRuntime ? new TransportRuntime(config) : runtime;
     }
 
     public void start() throws InterruptedException {
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+            bootstrap.group(runtime.getBossGroup(), runtime.getWorkerGroup())
+                    .channel(runtime.getTransport().serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -60,14 +67,17 @@ public class ImapServer {
                             pipeline.addLast(new StringEncoder());
 
                             // Add IMAP handler
-                            pipeline.addLast(businessGroup, new ImapHandler(mailboxStorage));
+                            pipeline.addLast(new ImapHandler(mailboxStorage));
                         }
                     });
 
             // Bind and start to accept incoming connections
-            channelFuture = bootstrap.bind(config.getImapBindAddress(), config.getImapPort()).sync();
+            serverChannels = runtime.getTransport().bind(bootstrap, config.getImapBindAddress(), config.getImapPort(),
+                    runtime.getAcceptors());
 
-            logger.info("IMAP server started on {}:{}", config.getImapBindAddress(), config.getImapPort());
+            logger.info("IMAP server started on {}:{} ({}, {} acceptors)",
+                    config.getImapBindAddress(), config.getImapPort(), runtime.getTransport(),
+                    serverChannels.size());
         } catch (InterruptedException e) {
             logger.error("Failed to start IMAP server", e);
             throw e;
@@ -78,16 +88,16 @@ public class ImapServer {
         logger.info("Stopping IMAP server...");
 
         try {
-            if (channelFuture != null) {
-                channelFuture.channel().close().sync();
+            for (Channel channel : serverChannels) {
+                channel.close().sync();
             }
         } catch (InterruptedException e) {
             logger.error("Error closing server channel", e);
         }
 
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
-        businessGroup.shutdownGracefully();
+        if (ownsRuntime) {
+            runtime.shutdown();
+        }
 
         logger.info("IMAP server stopped");
     }
@@ -16,6 +16,9 @@ public class ImapSession {
     private String username;
     private String selectedMailbox;
     private List<MailMessage> messages;
+    // RFC 7162 extensions the client enabled
+    private boolean condStore;
+    private boolean qresync;
 
     public State getState() {
         return state;
@@ -48,4 +51,26 @@ public class ImapSession {
     public void setMessages(List<MailMessage> messages) {
         this.messages = messages;
     }
+
+    public boolean isCondStore() {
+        return condStore;
+    }
+
+    public void setCondStore(boolean condStore) {
+        this.condStore = condStore;
+    }
+
+    public boolean isQresync() {
+        return qresync;
+    }
+
+    /**
+     * QRESYNC implies CONDSTORE
+     */
+    public void setQresync(boolean qresync) {
+        this.qresync = qresync;
+        if (qresync) {
+            this.condStore = true;
+        }
+    }
 }
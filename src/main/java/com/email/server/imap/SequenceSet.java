@@ -0,0 +1,150 @@
+package com.email.server.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An IMAP sequence set or UID set (RFC 3501 section 9, sequence-set), held as
+ * sorted, disjoint ranges so that membership and iteration cost depend on the
+ * number of ranges rather than on the numbers they cover.
+ */
+final class SequenceSet {
+    private final long[] starts;
+    private final long[] ends;
+
+    private SequenceSet(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Parse a set such as 1,5:9,12:*
+     *
+     * @param largest what * stands for: the highest sequence number or UID in use
+     * @throws IllegalArgumentException if the set is malformed
+     */
+    static SequenceSet parse(String text, long largest) {
+        if (text == null || text.isEmpty()) {
+            throw new IllegalArgumentException("Empty sequence set");
+        }
+        Builder builder = new Builder();
+        for (String part : text.split(",", -1)) {
+            int colon = part.indexOf(':');
+            long start = number(colon < 0 ? part : part.substring(0, colon), largest);
+            long end = colon < 0 ? start : number(part.substring(colon + 1), largest);
+            // n:m and m:n name the same messages
+            builder.add(Math.min(start, end), Math.max(start, end));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the set of the given numbers
+     */
+    static SequenceSet of(Collection<Long> values) {
+        Builder builder = new Builder();
+        for (long value : values) {
+            builder.add(value, value);
+        }
+        return builder.build();
+    }
+
+    private static long number(String text, long largest) {
+        if (text.equals("*")) {
+            return largest;
+        }
+        if (text.isEmpty() || text.length() > 10 || !text.chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("Invalid sequence set");
+        }
+        long value = Long.parseLong(text);
+        if (value == 0 || value > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Invalid sequence set");
+        }
+        return value;
+    }
+
+    boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    boolean contains(long value) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] < value) {
+                low = middle + 1;
+            } else if (starts[middle] > value) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of ranges
+     */
+    int ranges() {
+        return starts.length;
+    }
+
+    long start(int range) {
+        return starts[range];
+    }
+
+    long end(int range) {
+        return ends[range];
+    }
+
+    /**
+     * @return the compact form, e.g. 1,5:9
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(starts[i]);
+            if (ends[i] > starts[i]) {
+                text.append(':').append(ends[i]);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Collects ranges in any order, merging those that overlap or touch
+     */
+    static final class Builder {
+        private final List<long[]> ranges = new ArrayList<>();
+
+        Builder add(long start, long end) {
+            ranges.add(new long[] { start, end });
+            return this;
+        }
+
+        SequenceSet build() {
+            long[][] sorted = ranges.toArray(new long[0][]);
+            Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+            long[] starts = new long[sorted.length];
+            long[] ends = new long[sorted.length];
+            int count = 0;
+            for (long[] range : sorted) {
+                if (count > 0 && range[0] <= ends[count - 1] + 1) {
+                    ends[count - 1] = Math.max(ends[count - 1], range[1]);
+                } else {
+                    starts[count] = range[0];
+                    ends[count] = range[1];
+                    count++;
+                }
+            }
+            return new SequenceSet(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+        }
+    }
+}
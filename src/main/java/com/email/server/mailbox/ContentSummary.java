@@ -0,0 +1,124 @@
+package com.email.server.mailbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Properties of a message content, computed in a single pass when the message is
+ * stored so that readers never have to scan the body again.
+ */
+final class ContentSummary {
+    private static final String NO_SUBJECT = "(no subject)";
+    private static final byte[] SUBJECT_PREFIX = "subject:".getBytes(StandardCharsets.US_ASCII);
+
+    private final String subject;
+    private final long size;
+    private final boolean wireSafe;
+    private final long headerLength;
+
+    private ContentSummary(String subject, long size, boolean wireSafe, long headerLength) {
+        this.subject = subject;
+        this.size = size;
+        this.wireSafe = wireSafe;
+        this.headerLength = headerLength;
+    }
+
+    static ContentSummary scan(Path file) throws IOException {
+        String subject = null;
+        long size = 0;
+        boolean wireSafe = true;
+        boolean inHeaders = true;
+        long headerLength = -1;
+        boolean atLineStart = true;
+        int previous = -1;
+        int beforePrevious = -1;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        if (previous != '\r') {
+                            wireSafe = false;
+                        }
+                        if (inHeaders) {
+                            int length = line.size();
+                            if (length == 0) {
+                                inHeaders = false;
+                                headerLength = size + i + 1;
+                            } else if (subject == null && isSubject(line.toByteArray())) {
+                                subject = new String(line.toByteArray(), SUBJECT_PREFIX.length,
+                                        length - SUBJECT_PREFIX.length, StandardCharsets.UTF_8).trim();
+                            }
+                            line.reset();
+                        }
+                        atLineStart = true;
+                    } else {
+                        if (atLineStart && b == '.') {
+                            wireSafe = false;
+                        }
+                        atLineStart = false;
+                        if (inHeaders && b != '\r') {
+                            line.write(b);
+                        }
+                    }
+                    beforePrevious = previous;
+                    previous = b;
+                }
+                size += read;
+            }
+        }
+
+        // A POP3 response needs the content to end with a line break before its terminator
+        if (previous != '\n' || beforePrevious != '\r') {
+            wireSafe = false;
+        }
+        // Without a blank line the whole content is header
+        return new ContentSummary(subject != null ? subject : NO_SUBJECT, size, wireSafe,
+                headerLength >= 0 ? headerLength : size);
+    }
+
+    private static boolean isSubject(byte[] line) {
+        if (line.length < SUBJECT_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < SUBJECT_PREFIX.length; i++) {
+            int c = line[i] >= 'A' && line[i] <= 'Z' ? line[i] + 32 : line[i];
+            if (c != SUBJECT_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the length of the header including the blank line ending it,
+     * which is also where the body starts
+     */
+    long getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * @return true if the content only has CRLF line breaks, ends with one and has
+     * no line starting with a dot, so it can be sent as-is in a POP3 response
+     */
+    boolean isWireSafe() {
+        return wireSafe;
+    }
+}
@@ -0,0 +1,869 @@
+package com.email.server.mailbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * Append-only message index of one folder.
+ *
+ * The index is a log of fixed-width binary records in {@value #RECORD_FILE}, whose
+ * strings (message id, sender, subject, keywords) live in the string table
+ * {@value #STRING_FILE} and are referenced by offset. Deliveries, flag changes and
+ * deletions each append a single record, so the cost of an update does not
+ * depend on the size of the folder. Both files are memory-mapped and replayed
+ * when the folder is opened; the resulting state is kept in memory for reads.
+ *
+ * Once superseded records outnumber live ones the log is compacted in the
+ * background: the live state is written to new files without holding the lock,
+ * and records appended meanwhile are replayed onto them before they replace the
+ * old ones.
+ *
+ * Every message gets the next IMAP UID of the folder when it is added. A log
+ * starts with a FOLDER record holding the folder's UIDVALIDITY and the next UID
+ * at the time it was written, so UIDs of deleted messages are not handed out
+ * again once compaction drops their records. Logs written before UIDs existed
+ * are rewritten with UIDs in delivery order when they are opened.
+ *
+ * Every change also takes the next modification sequence of the folder
+ * (RFC 7162), recorded with the message it changed. Deletions are remembered
+ * by UID and modification sequence until compaction drops their records; the
+ * FOLDER record then notes the highest one dropped, so a client asking for
+ * expunges older than that can be told the answer is no longer known.
+ *
+ * Record layout (64 bytes, big endian):
+ * <pre>
+ *  0  type            byte   ADD, FLAGS, DELETE or FOLDER
+ *  1  system flags    byte   bitmask, see {@link #SYSTEM_FLAGS}
+ *  2  content flags   byte   CONTENT_WIRE_SAFE (ADD only)
+ *  3  (reserved)      byte
+ *  4  message id      int    string table offset
+ *  8  from            int    string table offset (ADD only)
+ * 12  subject         int    string table offset (ADD only)
+ * 16  keywords        int    string table offset of space separated keywords, or -1
+ * 20  (reserved)      int
+ * 24  received time   long   epoch millis (ADD only); UIDVALIDITY (FOLDER only)
+ * 32  size            long   (ADD only); next UID (FOLDER only)
+ * 40  uid             int    (ADD and DELETE); highest modseq (FOLDER only, long)
+ * 44  (reserved)      int
+ * 48  modseq          long   modification sequence of the change;
+ *                            highest modseq of dropped deletions (FOLDER only)
+ * 56  header length   long   offset of the body in the content, 0 if unknown (ADD only)
+ * </pre>
+ */
+class FolderIndex {
+    private static final Logger logger = LoggerFactory.getLogger(FolderIndex.class);
+
+    static final String RECORD_FILE = "index.dat";
+    static final String STRING_FILE = "index.str";
+    static final String LEGACY_FILE = "index";
+
+    static final int RECORD_SIZE = 64;
+    private static final byte ADD = 1;
+    private static final byte FLAGS = 2;
+    private static final byte DELETE = 3;
+    private static final byte FOLDER = 4;
+    private static final int NO_STRING = -1;
+    private static final byte CONTENT_WIRE_SAFE = 1;
+
+    private static final String[] SYSTEM_FLAGS = {
+            "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent" };
+
+    // Compaction pays off only once a log holds a fair number of dead records
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final Path folderPath;
+    private final Executor compactionExecutor;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Live messages in delivery order, with the string table offset of their id
+    private final Map<String, MessageMetadata> messages = new LinkedHashMap<>();
+    private final Map<String, Integer> idRefs = new HashMap<>();
+
+    private FileChannel records;
+    private FileChannel strings;
+    private long recordCount;
+    private boolean compacting;
+    private long uidValidity;
+    private long uidNext = 1;
+    private long highestModSeq = 1;
+    // Modseq of deletions since the last compaction, and the highest one compaction dropped
+    private final NavigableMap<Long, Long> expunged = new TreeMap<>();
+    private long expungeHorizon;
+
+    private FolderIndex(Path folderPath, Executor compactionExecutor) {
+        this.folderPath = folderPath;
+        this.compactionExecutor = compactionExecutor;
+    }
+
+    /**
+     * Open the index of a folder, migrating a legacy text index if present
+     */
+    static FolderIndex open(Path folderPath, Executor compactionExecutor) throws IOException {
+        FolderIndex index = new FolderIndex(folderPath, compactionExecutor);
+        Files.createDirectories(folderPath);
+
+        Path legacyPath = folderPath.resolve(LEGACY_FILE);
+        if (Files.exists(legacyPath) && !Files.exists(folderPath.resolve(RECORD_FILE))) {
+            index.migrate(legacyPath);
+        } else {
+            index.load();
+        }
+        return index;
+    }
+
+    List<MessageMetadata> list() {
+        lock.readLock().lock();
+        try {
+            List<MessageMetadata> result = new ArrayList<>(messages.size());
+            for (MessageMetadata metadata : messages.values()) {
+                result.add(copy(metadata));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    MessageMetadata get(String messageId) {
+        lock.readLock().lock();
+        try {
+            MessageMetadata metadata = messages.get(messageId);
+            return metadata != null ? copy(metadata) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return message count, UIDVALIDITY and next UID, read together
+     */
+    FolderStatus status() {
+        lock.readLock().lock();
+        try {
+            return new FolderStatus(messages.size(), uidValidity, uidNext, highestModSeq);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return UIDs of the messages deleted after the given modification
+     * sequence, or null if compaction has dropped some of them
+     */
+    List<Long> expungedSince(long modSeq) {
+        lock.readLock().lock();
+        try {
+            if (modSeq < expungeHorizon) {
+                return null;
+            }
+            return new ArrayList<>(expunged.tailMap(modSeq, false).values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add a message, assigning it the next UID and modification sequence of the folder
+     */
+    void add(MessageMetadata metadata) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            metadata.setUid(uidNext);
+            metadata.setModSeq(highestModSeq + 1);
+            int idRef = appendString(metadata.getMessageId());
+            ByteBuffer record = newRecord(ADD, metadata.getFlags(), idRef);
+            record.putInt(8, appendString(metadata.getFrom()));
+            record.putInt(12, appendString(metadata.getSubject()));
+            record.put(2, metadata.isWireSafe() ? CONTENT_WIRE_SAFE : 0);
+            record.putInt(16, appendKeywords(metadata.getFlags()));
+            record.putLong(24, metadata.getReceivedTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            record.putLong(32, metadata.getSize());
+            record.putInt(40, (int) metadata.getUid());
+            record.putLong(48, metadata.getModSeq());
+            record.putLong(56, metadata.getHeaderLength());
+            appendRecord(record);
+            uidNext++;
+            highestModSeq++;
+
+            messages.put(metadata.getMessageId(), copy(metadata));
+            idRefs.put(metadata.getMessageId(), idRef);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Change the flags of a message. The new flags are worked out from the
+     * current ones under the index lock, so concurrent changes are merged
+     * rather than lost.
+     *
+     * @param change computes the new flags from a copy of the current ones
+     * @return the message after the change, or null if it is not in the index
+     */
+    MessageMetadata updateFlags(String messageId, UnaryOperator<Set<String>> change) throws IOException {
+        MessageMetadata updated;
+        lock.writeLock().lock();
+        try {
+            MessageMetadata metadata = messages.get(messageId);
+            if (metadata == null) {
+                return null;
+            }
+            Set<String> flags = change.apply(metadata.getFlags());
+            long modSeq = highestModSeq + 1;
+            ByteBuffer record = newRecord(FLAGS, flags, idRefs.get(messageId));
+            record.putInt(16, appendKeywords(flags));
+            record.putLong(48, modSeq);
+            appendRecord(record);
+            highestModSeq = modSeq;
+            metadata.setFlags(flags);
+            metadata.setModSeq(modSeq);
+            updated = copy(metadata);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return updated;
+    }
+
+    /**
+     * @return the modification sequence of the deletion, or 0 if the message
+     * is not in the index
+     */
+    long remove(String messageId) throws IOException {
+        long modSeq;
+        lock.writeLock().lock();
+        try {
+            MessageMetadata metadata = messages.get(messageId);
+            if (metadata == null) {
+                return 0;
+            }
+            modSeq = highestModSeq + 1;
+            ByteBuffer record = newRecord(DELETE, null, idRefs.get(messageId));
+            record.putInt(40, (int) metadata.getUid());
+            record.putLong(48, modSeq);
+            appendRecord(record);
+            highestModSeq = modSeq;
+            expunged.put(modSeq, metadata.getUid());
+            messages.remove(messageId);
+            idRefs.remove(messageId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return modSeq;
+    }
+
+    void close() {
+        lock.writeLock().lock();
+        try {
+            closeQuietly(records);
+            closeQuietly(strings);
+            records = null;
+            strings = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Loading
+
+    private void load() throws IOException {
+        Path recordPath = folderPath.resolve(RECORD_FILE);
+        Path stringPath = folderPath.resolve(STRING_FILE);
+        openFiles(recordPath, stringPath);
+
+        ByteBuffer recordMap = map(records);
+        ByteBuffer stringMap = map(strings);
+        long complete = recordMap.capacity() / RECORD_SIZE;
+        uidValidity = 0;
+        uidNext = 1;
+        highestModSeq = 1;
+        expunged.clear();
+        expungeHorizon = 0;
+        for (int i = 0; i < complete; i++) {
+            Record record = Record.read(recordMap, i * RECORD_SIZE, stringMap);
+            if (record == null) {
+                // Torn write at the end of the log, everything after it is lost as well
+                complete = i;
+                break;
+            }
+            apply(record);
+        }
+
+        // Drop a partially written tail so new records stay aligned
+        if (records.size() != complete * RECORD_SIZE) {
+            logger.warn("Truncating damaged index tail in {}", folderPath);
+            records.truncate(complete * RECORD_SIZE);
+        }
+        recordCount = complete;
+
+        // Everything is appended from here on
+        records.position(records.size());
+        strings.position(strings.size());
+
+        if (uidValidity == 0) {
+            assignUids();
+        }
+        logger.debug("Loaded index for {} ({} messages, {} records)", folderPath, messages.size(), recordCount);
+    }
+
+    /**
+     * Start the UIDs of a new folder, or of a log written before UIDs existed
+     */
+    private void assignUids() throws IOException {
+        uidValidity = newUidValidity();
+        if (recordCount == 0) {
+            appendRecord(folderRecord());
+            return;
+        }
+
+        List<MessageMetadata> live = new ArrayList<>(messages.values());
+        uidNext = 1;
+        for (MessageMetadata metadata : live) {
+            metadata.setUid(uidNext++);
+        }
+        Path recordTemp = folderPath.resolve(RECORD_FILE + ".tmp");
+        Path stringTemp = folderPath.resolve(STRING_FILE + ".tmp");
+        writeCompacted(recordTemp, stringTemp, Record.folder(uidValidity, uidNext, highestModSeq, 0), live);
+        closeQuietly(records);
+        closeQuietly(strings);
+        Files.move(stringTemp, folderPath.resolve(STRING_FILE), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(recordTemp, folderPath.resolve(RECORD_FILE), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Assigned UIDs to {} messages in {}", live.size(), folderPath);
+
+        messages.clear();
+        idRefs.clear();
+        load();
+    }
+
+    /**
+     * UIDVALIDITY for a folder whose UIDs start over: the current time in
+     * seconds, which fits the 32 bits IMAP allows until 2106
+     */
+    private static long newUidValidity() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private void apply(Record record) {
+        // Logs written before modification sequences count as a single change
+        long modSeq = Math.max(1, record.modSeq);
+        highestModSeq = Math.max(highestModSeq, record.type == FOLDER ? record.highestModSeq : modSeq);
+        switch (record.type) {
+            case ADD:
+                MessageMetadata added = new MessageMetadata(record.messageId, record.from, record.subject,
+                        LocalDateTime.ofInstant(Instant.ofEpochMilli(record.receivedTime), ZoneId.systemDefault()),
+                        record.size, record.flags);
+                added.setWireSafe((record.contentFlags & CONTENT_WIRE_SAFE) != 0);
+                added.setUid(record.uid);
+                added.setModSeq(modSeq);
+                added.setHeaderLength(record.headerLength);
+                messages.put(record.messageId, added);
+                idRefs.put(record.messageId, record.messageIdRef);
+                uidNext = Math.max(uidNext, record.uid + 1);
+                break;
+            case FLAGS:
+                MessageMetadata metadata = messages.get(record.messageId);
+                if (metadata != null) {
+                    metadata.setFlags(record.flags);
+                    metadata.setModSeq(modSeq);
+                }
+                break;
+            case DELETE:
+                messages.remove(record.messageId);
+                idRefs.remove(record.messageId);
+                if (record.uid != 0) {
+                    expunged.put(modSeq, record.uid);
+                }
+                break;
+            case FOLDER:
+                uidValidity = record.uidValidity;
+                uidNext = Math.max(uidNext, record.uidNext);
+                expungeHorizon = record.expungeHorizon;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void migrate(Path legacyPath) throws IOException {
+        List<MessageMetadata> legacy = new ArrayList<>();
+        for (String line : Files.readAllLines(legacyPath, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\|", -1);
+            if (parts.length < 6) {
+                continue;
+            }
+            try {
+                // Older versions wrote size and time in either order
+                boolean timeFirst = parts[3].contains("T");
+                LocalDateTime receivedTime = LocalDateTime.parse(timeFirst ? parts[3] : parts[4]);
+                long size = Long.parseLong(timeFirst ? parts[4] : parts[3]);
+                Set<String> flags = new HashSet<>(Arrays.asList(parts[5].split(",")));
+                flags.remove("");
+                legacy.add(new MessageMetadata(parts[0], parts[1], parts[2], receivedTime, size, flags));
+            } catch (RuntimeException e) {
+                logger.warn("Skipping malformed index line in {}: {}", legacyPath, line);
+            }
+        }
+
+        long nextUid = 1;
+        for (MessageMetadata metadata : legacy) {
+            metadata.setUid(nextUid++);
+        }
+
+        Path recordTemp = folderPath.resolve(RECORD_FILE + ".tmp");
+        Path stringTemp = folderPath.resolve(STRING_FILE + ".tmp");
+        writeCompacted(recordTemp, stringTemp, Record.folder(newUidValidity(), nextUid, 1, 0), legacy);
+        Files.move(stringTemp, folderPath.resolve(STRING_FILE), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(recordTemp, folderPath.resolve(RECORD_FILE), StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(legacyPath);
+        logger.info("Migrated legacy index of {} ({} messages)", folderPath, legacy.size());
+
+        load();
+    }
+
+    // Appending
+
+    private ByteBuffer folderRecord() {
+        ByteBuffer record = newRecord(FOLDER, null, NO_STRING);
+        record.putLong(24, uidValidity);
+        record.putLong(32, uidNext);
+        record.putLong(40, highestModSeq);
+        record.putLong(48, expungeHorizon);
+        return record;
+    }
+
+    private ByteBuffer newRecord(byte type, Set<String> flags, int idRef) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        record.put(0, type);
+        record.put(1, systemFlagBits(flags));
+        record.putInt(4, idRef);
+        record.putInt(16, NO_STRING);
+        return record;
+    }
+
+    private void appendRecord(ByteBuffer record) throws IOException {
+        ensureOpen();
+        record.clear();
+        while (record.hasRemaining()) {
+            records.write(record);
+        }
+        recordCount++;
+    }
+
+    private int appendString(String value) throws IOException {
+        ensureOpen();
+        return writeString(strings, value);
+    }
+
+    private int appendKeywords(Set<String> flags) throws IOException {
+        String keywords = keywords(flags);
+        return keywords.isEmpty() ? NO_STRING : appendString(keywords);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (records == null) {
+            throw new IOException("Index of " + folderPath + " is closed");
+        }
+    }
+
+    private static int writeString(FileChannel channel, String value) throws IOException {
+        long offset = channel.size();
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("String table exceeds 2 GB");
+        }
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return (int) offset;
+    }
+
+    // Compaction
+
+    private void scheduleCompaction() {
+        lock.writeLock().lock();
+        try {
+            long dead = recordCount - messages.size();
+            if (compacting || records == null || dead < MIN_COMPACTION_RECORDS || dead < messages.size()) {
+                return;
+            }
+            compacting = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        compactionExecutor.execute(this::compact);
+    }
+
+    private void compact() {
+        Path recordTemp = folderPath.resolve(RECORD_FILE + ".compact");
+        Path stringTemp = folderPath.resolve(STRING_FILE + ".compact");
+        try {
+            List<MessageMetadata> snapshot;
+            long snapshotRecords;
+            Record header;
+            lock.readLock().lock();
+            try {
+                snapshot = list();
+                snapshotRecords = recordCount;
+                // Deletions up to here lose their records
+                long horizon = expunged.isEmpty() ? expungeHorizon : expunged.lastKey();
+                header = Record.folder(uidValidity, uidNext, highestModSeq, horizon);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // The bulk of the work happens while deliveries keep appending to the old log
+            writeCompacted(recordTemp, stringTemp, header, snapshot);
+
+            lock.writeLock().lock();
+            try {
+                if (records == null) {
+                    return;
+                }
+                replayTail(snapshotRecords, recordTemp, stringTemp);
+                closeQuietly(records);
+                closeQuietly(strings);
+                Files.move(stringTemp, folderPath.resolve(STRING_FILE), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(recordTemp, folderPath.resolve(RECORD_FILE), StandardCopyOption.REPLACE_EXISTING);
+
+                messages.clear();
+                idRefs.clear();
+                load();
+                logger.info("Compacted index of {} from {} to {} records",
+                        folderPath, snapshotRecords, recordCount);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to compact index of " + folderPath, e);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                compacting = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                Files.deleteIfExists(recordTemp);
+                Files.deleteIfExists(stringTemp);
+            } catch (IOException e) {
+                logger.debug("Failed to remove compaction files of {}", folderPath, e);
+            }
+        }
+    }
+
+    /**
+     * Copy the records appended since the snapshot onto the compacted files,
+     * re-writing their strings into the new string table
+     */
+    private void replayTail(long fromRecord, Path recordPath, Path stringPath) throws IOException {
+        if (fromRecord == recordCount) {
+            return;
+        }
+        ByteBuffer recordMap = map(records);
+        ByteBuffer stringMap = map(strings);
+        try (FileChannel newRecords = FileChannel.open(recordPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                FileChannel newStrings = FileChannel.open(stringPath, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+            for (long i = fromRecord; i < recordCount; i++) {
+                Record record = Record.read(recordMap, (int) (i * RECORD_SIZE), stringMap);
+                if (record != null) {
+                    record.write(newRecords, newStrings);
+                }
+            }
+        }
+    }
+
+    private static void writeCompacted(Path recordPath, Path stringPath, Record header,
+            List<MessageMetadata> metadataList) throws IOException {
+        try (FileChannel newRecords = FileChannel.open(recordPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                FileChannel newStrings = FileChannel.open(stringPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            header.write(newRecords, newStrings);
+            for (MessageMetadata metadata : metadataList) {
+                Record.of(metadata).write(newRecords, newStrings);
+            }
+            newRecords.force(false);
+            newStrings.force(false);
+        }
+    }
+
+    // Helpers
+
+    private void openFiles(Path recordPath, Path stringPath) throws IOException {
+        strings = FileChannel.open(stringPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        records = FileChannel.open(recordPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Index file exceeds 2 GB");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static byte systemFlagBits(Set<String> flags) {
+        int bits = 0;
+        if (flags != null) {
+            for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+                for (String flag : flags) {
+                    if (SYSTEM_FLAGS[i].equalsIgnoreCase(flag)) {
+                        bits |= 1 << i;
+                    }
+                }
+            }
+        }
+        return (byte) bits;
+    }
+
+    private static boolean isSystemFlag(String flag) {
+        for (String systemFlag : SYSTEM_FLAGS) {
+            if (systemFlag.equalsIgnoreCase(flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String keywords(Set<String> flags) {
+        StringBuilder keywords = new StringBuilder();
+        for (String flag : flags) {
+            if (!flag.isEmpty() && !isSystemFlag(flag)) {
+                if (keywords.length() > 0) {
+                    keywords.append(' ');
+                }
+                keywords.append(flag);
+            }
+        }
+        return keywords.toString();
+    }
+
+    private static Set<String> decodeFlags(int bits, String keywords) {
+        Set<String> flags = new HashSet<>();
+        for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+            if ((bits & (1 << i)) != 0) {
+                flags.add(SYSTEM_FLAGS[i]);
+            }
+        }
+        if (keywords != null && !keywords.isEmpty()) {
+            flags.addAll(Arrays.asList(keywords.split(" ")));
+        }
+        return flags;
+    }
+
+    private static MessageMetadata copy(MessageMetadata metadata) {
+        MessageMetadata copy = new MessageMetadata(metadata.getMessageId(), metadata.getFrom(),
+                metadata.getSubject(), metadata.getReceivedTime(), metadata.getSize(), metadata.getFlags());
+        copy.setWireSafe(metadata.isWireSafe());
+        copy.setUid(metadata.getUid());
+        copy.setModSeq(metadata.getModSeq());
+        copy.setHeaderLength(metadata.getHeaderLength());
+        return copy;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close index file", e);
+            }
+        }
+    }
+
+    /**
+     * A decoded index record
+     */
+    private static final class Record {
+        byte type;
+        byte contentFlags;
+        int messageIdRef;
+        String messageId;
+        String from;
+        String subject;
+        Set<String> flags;
+        long receivedTime;
+        long size;
+        long uid;
+        long modSeq;
+        long headerLength;
+        long uidValidity;
+        long uidNext;
+        long highestModSeq;
+        long expungeHorizon;
+
+        static Record folder(long uidValidity, long uidNext, long highestModSeq, long expungeHorizon) {
+            Record record = new Record();
+            record.type = FOLDER;
+            record.uidValidity = uidValidity;
+            record.uidNext = uidNext;
+            record.highestModSeq = highestModSeq;
+            record.expungeHorizon = expungeHorizon;
+            return record;
+        }
+
+        static Record of(MessageMetadata metadata) {
+            Record record = new Record();
+            record.type = ADD;
+            record.messageId = metadata.getMessageId();
+            record.from = metadata.getFrom();
+            record.subject = metadata.getSubject();
+            record.flags = metadata.getFlags();
+            record.receivedTime = metadata.getReceivedTime().atZone(ZoneId.systemDefault()).toInstant()
+                    .toEpochMilli();
+            record.size = metadata.getSize();
+            record.contentFlags = metadata.isWireSafe() ? CONTENT_WIRE_SAFE : 0;
+            record.uid = metadata.getUid();
+            record.modSeq = metadata.getModSeq();
+            record.headerLength = metadata.getHeaderLength();
+            return record;
+        }
+
+        /**
+         * @return the record at the given position, or null if it is incomplete
+         */
+        static Record read(ByteBuffer recordMap, int position, ByteBuffer stringMap) {
+            Record record = new Record();
+            record.type = recordMap.get(position);
+            if (record.type == FOLDER) {
+                record.uidValidity = recordMap.getLong(position + 24);
+                record.uidNext = recordMap.getLong(position + 32);
+                record.highestModSeq = recordMap.getLong(position + 40);
+                record.expungeHorizon = recordMap.getLong(position + 48);
+                return record;
+            }
+            if (record.type != ADD && record.type != FLAGS && record.type != DELETE) {
+                return null;
+            }
+            record.messageIdRef = recordMap.getInt(position + 4);
+            record.messageId = readString(stringMap, record.messageIdRef);
+            if (record.messageId == null) {
+                return null;
+            }
+            int keywordsRef = recordMap.getInt(position + 16);
+            String keywords = keywordsRef != NO_STRING ? readString(stringMap, keywordsRef) : null;
+            if (keywordsRef != NO_STRING && keywords == null) {
+                return null;
+            }
+            record.flags = decodeFlags(recordMap.get(position + 1), keywords);
+            record.modSeq = recordMap.getLong(position + 48);
+            if (record.type != FLAGS) {
+                record.uid = Integer.toUnsignedLong(recordMap.getInt(position + 40));
+            }
+            if (record.type == ADD) {
+                record.from = readString(stringMap, recordMap.getInt(position + 8));
+                record.subject = readString(stringMap, recordMap.getInt(position + 12));
+                record.receivedTime = recordMap.getLong(position + 24);
+                record.size = recordMap.getLong(position + 32);
+                record.contentFlags = recordMap.get(position + 2);
+                record.headerLength = recordMap.getLong(position + 56);
+                if (record.from == null || record.subject == null) {
+                    return null;
+                }
+            }
+            return record;
+        }
+
+        void write(FileChannel records, FileChannel strings) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+            buffer.put(0, type);
+            if (type == FOLDER) {
+                buffer.putInt(4, NO_STRING);
+                buffer.putInt(16, NO_STRING);
+                buffer.putLong(24, uidValidity);
+                buffer.putLong(32, uidNext);
+                buffer.putLong(40, highestModSeq);
+                buffer.putLong(48, expungeHorizon);
+                writeFully(records, buffer);
+                return;
+            }
+            buffer.put(1, systemFlagBits(flags));
+            buffer.putInt(4, writeString(strings, messageId));
+            String keywords = type != DELETE ? keywords(flags) : "";
+            buffer.putInt(16, keywords.isEmpty() ? NO_STRING : writeString(strings, keywords));
+            if (type == ADD) {
+                buffer.putInt(8, writeString(strings, from));
+                buffer.putInt(12, writeString(strings, subject));
+                buffer.putLong(24, receivedTime);
+                buffer.putLong(32, size);
+                buffer.put(2, contentFlags);
+                buffer.putLong(56, headerLength);
+            }
+            if (type != FLAGS) {
+                buffer.putInt(40, (int) uid);
+            }
+            buffer.putLong(48, modSeq);
+            writeFully(records, buffer);
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private static String readString(ByteBuffer stringMap, int offset) {
+            if (offset < 0 || offset > stringMap.capacity() - 4) {
+                return null;
+            }
+            int length = stringMap.getInt(offset);
+            if (length < 0 || length > stringMap.capacity() - offset - 4) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer slice = stringMap.duplicate();
+            slice.position(offset + 4);
+            slice.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.email.server.mailbox;
+
+/**
+ * What a client needs to know about a folder to tell whether the UIDs it
+ * remembers are still valid and which messages are new to it.
+ */
+public class FolderStatus {
+    private final int messageCount;
+    private final long uidValidity;
+    private final long uidNext;
+    private final long highestModSeq;
+
+    public FolderStatus(int messageCount, long uidValidity, long uidNext, long highestModSeq) {
+        this.messageCount = messageCount;
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return the value UIDs of the folder are valid for; it only changes when
+     * the folder's UIDs start over
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * @return the UID the next message added to the folder will get
+     */
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    /**
+     * @return the modification sequence of the latest change to the folder
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return "FolderStatus{messages=" + messageCount + ", uidValidity=" + uidValidity + ", uidNext=" + uidNext
+                + ", highestModSeq=" + highestModSeq + "}";
+    }
+}
@@ -8,34 +8,59 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 public class LocalMailboxStorage implements MailboxStorage {
     private static final Logger logger = LoggerFactory.getLogger(LocalMailboxStorage.class);
     private static final String MAILBOX_META_FILE = ".meta";
-    private static final String FOLDER_INDEX_FILE = "index";
     private static final String MESSAGE_ID_PREFIX = "MSG";
     private static final String CONTENT_EXTENSION = ".eml";
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final int DEFAULT_IO_THREADS = 16;
 
     private final String basePath;
+    private final MessageContentStore contentStore;
     private final Map<String, Mailbox> mailboxCache = new ConcurrentHashMap<>();
 
-    // Index caching with thread-safe locks
-    private final Map<String, List<MessageMetadata>> indexCache = new ConcurrentHashMap<>();
-    private final Map<String, ReadWriteLock> indexLocks = new ConcurrentHashMap<>();
+    // Open folder indexes, keyed by email/folder
+    private final Map<String, FolderIndex> folderIndexes = new ConcurrentHashMap<>();
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "index-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Runs the asynchronous variants of the storage calls
+    private final ExecutorService ioExecutor;
+    private final MailboxEventBus eventBus = new MailboxEventBus();
 
     public LocalMailboxStorage(String basePath) {
+        this(basePath, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * @param ioThreads threads doing disk I/O for the asynchronous calls
+     */
+    public LocalMailboxStorage(String basePath, int ioThreads) {
         this.basePath = basePath;
+        this.contentStore = new MessageContentStore(Paths.get(basePath));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.ioExecutor = Executors.newFixedThreadPool(ioThreads, r -> {
+            Thread thread = new Thread(r, "mailbox-io-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
@@ -46,6 +71,7 @@ public class LocalMailboxStorage implements MailboxStorage {
                 Files.createDirectories(path);
                 logger.info("Created mailboxes directory: {}", basePath);
             }
+            contentStore.initialize();
 
             // Load existing mailboxes
             loadExistingMailboxes();
@@ -58,9 +84,32 @@ public class LocalMailboxStorage implements MailboxStorage {
     @Override
     public void shutdown() {
         logger.info("Shutting down mailbox storage ({} mailboxes)", mailboxCache.size());
+        // Let calls in progress finish before their indexes are closed
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                ioExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            ioExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        compactionExecutor.shutdown();
+        folderIndexes.values().forEach(FolderIndex::close);
+        folderIndexes.clear();
         mailboxCache.clear();
     }
 
+    @Override
+    public Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    @Override
+    public MailboxEventBus getEventBus() {
+        return eventBus;
+    }
+
     @Override
     public Mailbox getOrCreateMailbox(String email, String recipientEmail) throws MailStorageException {
         Mailbox mailbox = mailboxCache.get(email);
@@ -85,33 +134,44 @@ public class LocalMailboxStorage implements MailboxStorage {
 
     @Override
     public String saveMessage(String email, String folder, MailMessage message) throws MailStorageException {
+        String messageId = resolveMessageId(message);
+        Path blob = storeContent(messageId, message);
         try {
-            Mailbox mailbox = getOrCreateMailbox(email, email);
-            if (!mailbox.hasFolder(folder)) {
-                throw new MailStorageException("Folder does not exist: " + folder);
-            }
+            saveCopy(email, folder, message, messageId, blob, ContentSummary.scan(blob));
+            return messageId;
+        } catch (IOException e) {
+            throw new MailStorageException("Failed to save message", e);
+        } finally {
+            contentStore.release(blob);
+        }
+    }
 
-            String messageId = message.getMessageId();
-            if (messageId == null || messageId.isEmpty()) {
-                messageId = generateMessageId();
-            }
+    @Override
+    public Map<String, String> saveMessage(List<String> emails, String folder, MailMessage message)
+            throws MailStorageException {
+        Map<String, String> saved = new LinkedHashMap<>();
+        if (emails.isEmpty()) {
+            return saved;
+        }
 
-            Path folderPath = getFolderPath(email, folder);
-            if (!Files.exists(folderPath)) {
-                Files.createDirectories(folderPath);
+        // Write the content and parse the headers once, then link every copy to it
+        String messageId = resolveMessageId(message);
+        Path blob = storeContent(messageId, message);
+        try {
+            ContentSummary summary = ContentSummary.scan(blob);
+            for (String email : emails) {
+                try {
+                    saveCopy(email, folder, message, messageId, blob, summary);
+                    saved.put(email, messageId);
+                } catch (IOException | MailStorageException e) {
+                    logger.error("Failed to save message " + messageId + " to " + email + "/" + folder, e);
+                }
             }
-
-            // Save .eml file
-            Path emlPath = folderPath.resolve(messageId + CONTENT_EXTENSION);
-            Files.write(emlPath, message.getData().getBytes(StandardCharsets.UTF_8));
-
-            // Update index
-            updateFolderIndex(email, folder, message, messageId);
-
-            logger.info("Saved message {} to {}/{}", messageId, email, folder);
-            return messageId;
+            return saved;
         } catch (IOException e) {
             throw new MailStorageException("Failed to save message", e);
+        } finally {
+            contentStore.release(blob);
         }
     }
 
@@ -125,13 +185,11 @@ public class LocalMailboxStorage implements MailboxStorage {
                 return messages;
             }
 
-            List<MessageMetadata> metadataList = loadFolderIndex(email, folder);
+            // Built from the index alone, message content is read on demand
+            List<MessageMetadata> metadataList = getFolderIndex(email, folder).list();
             for (MessageMetadata metadata : metadataList) {
                 Path emlPath = folderPath.resolve(metadata.getMessageId() + CONTENT_EXTENSION);
-                if (Files.exists(emlPath)) {
-                    MailMessage message = loadMessage(emlPath, metadata);
-                    messages.add(message);
-                }
+                messages.add(loadMessage(emlPath, metadata));
             }
 
             return messages;
@@ -148,12 +206,7 @@ public class LocalMailboxStorage implements MailboxStorage {
                 return null;
             }
 
-            List<MessageMetadata> metadataList = loadFolderIndex(email, folder);
-            MessageMetadata metadata = metadataList.stream()
-                    .filter(m -> m.getMessageId().equals(messageId))
-                    .findFirst()
-                    .orElse(null);
-
+            MessageMetadata metadata = getFolderIndex(email, folder).get(messageId);
             if (metadata == null) {
                 return null;
             }
@@ -168,10 +221,21 @@ public class LocalMailboxStorage implements MailboxStorage {
     public boolean deleteMessage(String email, String folder, String messageId) throws MailStorageException {
         try {
             Path emlPath = getFolderPath(email, folder).resolve(messageId + CONTENT_EXTENSION);
+
+            // Copies delivered together share their content, deleting one only drops its link
+            long references = Files.exists(emlPath) ? contentStore.referenceCount(emlPath) : 0;
             boolean deleted = Files.deleteIfExists(emlPath);
 
             if (deleted) {
-                removeFromFolderIndex(email, folder, messageId);
+                if (references > 1) {
+                    logger.debug("Content of {} still shared by {} other copies", messageId, references - 1);
+                }
+                FolderIndex index = getFolderIndex(email, folder);
+                MessageMetadata metadata = index.get(messageId);
+                long modSeq = index.remove(messageId);
+                if (modSeq != 0) {
+                    eventBus.publish(MailboxEvent.expunged(email, folder, metadata.getUid(), modSeq));
+                }
                 logger.info("Deleted message {} from {}/{}", messageId, email, folder);
             }
 
@@ -182,28 +246,39 @@ public class LocalMailboxStorage implements MailboxStorage {
     }
 
     @Override
-    public void updateFlags(String email, String folder, String messageId, Set<String> flags, boolean replace)
+    public long updateFlags(String email, String folder, String messageId, Set<String> flags, boolean replace)
             throws MailStorageException {
-        try {
-            List<MessageMetadata> metadataList = loadFolderIndex(email, folder);
-            MessageMetadata metadata = metadataList.stream()
-                    .filter(m -> m.getMessageId().equals(messageId))
-                    .findFirst()
-                    .orElse(null);
+        return updateFlags(email, folder, messageId, current -> {
+            if (replace) {
+                return new HashSet<>(flags);
+            }
+            current.addAll(flags);
+            return current;
+        }).getModSeq();
+    }
 
+    @Override
+    public MailboxEvent changeFlags(String email, String folder, String messageId, Set<String> added,
+            Set<String> removed) throws MailStorageException {
+        return updateFlags(email, folder, messageId, current -> {
+            current.addAll(added);
+            current.removeAll(removed);
+            return current;
+        });
+    }
+
+    private MailboxEvent updateFlags(String email, String folder, String messageId,
+            UnaryOperator<Set<String>> change) throws MailStorageException {
+        try {
+            // A concurrent expunge may remove the message at any time
+            MessageMetadata metadata = getFolderIndex(email, folder).updateFlags(messageId, change);
             if (metadata == null) {
                 throw new MailStorageException("Message not found: " + messageId);
             }
-
-            if (replace) {
-                metadata.setFlags(flags);
-            } else {
-                for (String flag : flags) {
-                    metadata.addFlag(flag);
-                }
-            }
-
-            saveFolderIndex(email, folder, metadataList);
+            MailboxEvent event = MailboxEvent.flagsChanged(email, folder, metadata.getUid(), metadata.getModSeq(),
+                    metadata.getFlags());
+            eventBus.publish(event);
+            return event;
         } catch (IOException e) {
             throw new MailStorageException("Failed to update flags", e);
         }
@@ -249,6 +324,11 @@ public class LocalMailboxStorage implements MailboxStorage {
             mailbox.removeFolder(folderName);
             Path folderPath = getFolderPath(email, folderName);
 
+            FolderIndex index = folderIndexes.remove(email + "/" + folderName);
+            if (index != null) {
+                index.close();
+            }
+
             // Delete all files in folder
             if (Files.exists(folderPath)) {
                 try (Stream<Path> files = Files.walk(folderPath)) {
@@ -274,13 +354,35 @@ public class LocalMailboxStorage implements MailboxStorage {
     @Override
     public int getMessageCount(String email, String folder) throws MailStorageException {
         try {
-            List<MessageMetadata> metadataList = loadFolderIndex(email, folder);
-            return metadataList.size();
+            if (!Files.exists(getFolderPath(email, folder))) {
+                return 0;
+            }
+            return getFolderIndex(email, folder).size();
         } catch (IOException e) {
             throw new MailStorageException("Failed to get message count", e);
         }
     }
 
+    @Override
+    public FolderStatus getFolderStatus(String email, String folder) throws MailStorageException {
+        try {
+            // Opening the index of a folder that has no messages yet fixes its UIDVALIDITY
+            FolderIndex index = getFolderIndex(email, folder);
+            return index.status();
+        } catch (IOException e) {
+            throw new MailStorageException("Failed to get folder status", e);
+        }
+    }
+
+    @Override
+    public List<Long> getExpungedUids(String email, String folder, long modSeq) throws MailStorageException {
+        try {
+            return getFolderIndex(email, folder).expungedSince(modSeq);
+        } catch (IOException e) {
+            throw new MailStorageException("Failed to get expunged messages", e);
+        }
+    }
+
     // Helper methods
 
     private Path getMailboxPath(String email) {
@@ -371,176 +473,90 @@ public class LocalMailboxStorage implements MailboxStorage {
         return MESSAGE_ID_PREFIX + date + time + String.format("%04d", random);
     }
 
-    private void updateFolderIndex(String email, String folder, MailMessage message, String messageId)
-            throws IOException {
-        String cacheKey = email + "/" + folder;
-        ReadWriteLock lock = indexLocks.computeIfAbsent(cacheKey, k -> new ReentrantReadWriteLock());
+    private String resolveMessageId(MailMessage message) {
+        String messageId = message.getMessageId();
+        return messageId == null || messageId.isEmpty() ? generateMessageId() : messageId;
+    }
 
-        lock.writeLock().lock();
+    private Path storeContent(String messageId, MailMessage message) throws MailStorageException {
         try {
-            List<MessageMetadata> metadata = loadFolderIndex(email, folder);
-
-            MessageMetadata newMeta = new MessageMetadata(
-                    messageId,
-                    message.getFrom(),
-                    extractSubject(message.getData()),
-                    LocalDateTime.now(),
-                    (long) message.getData().length(),
-                    new HashSet<>());
-            metadata.add(newMeta);
-
-            saveFolderIndex(email, folder, metadata);
-        } finally {
-            lock.writeLock().unlock();
+            return contentStore.put(messageId, message);
+        } catch (IOException e) {
+            throw new MailStorageException("Failed to store message content", e);
         }
     }
 
-    private void removeFromFolderIndex(String email, String folder, String messageId) throws IOException {
-        List<MessageMetadata> metadataList = loadFolderIndex(email, folder);
-        metadataList.removeIf(m -> m.getMessageId().equals(messageId));
-        saveFolderIndex(email, folder, metadataList);
-    }
-
-    private List<MessageMetadata> loadFolderIndex(String email, String folder) throws IOException {
-        String cacheKey = email + "/" + folder;
-
-        // Get or create lock for this folder
-        ReadWriteLock lock = indexLocks.computeIfAbsent(cacheKey, k -> new ReentrantReadWriteLock());
+    private void saveCopy(String email, String folder, MailMessage message, String messageId, Path blob,
+            ContentSummary summary) throws IOException, MailStorageException {
+        Mailbox mailbox = getOrCreateMailbox(email, email);
+        if (!mailbox.hasFolder(folder)) {
+            throw new MailStorageException("Folder does not exist: " + folder);
+        }
 
-        // Try reading from cache first
-        lock.readLock().lock();
-        try {
-            List<MessageMetadata> cached = indexCache.get(cacheKey);
-            if (cached != null) {
-                logger.debug("Index cache hit for {}", cacheKey);
-                return new ArrayList<>(cached); // Return copy for safety
-            }
-        } finally {
-            lock.readLock().unlock();
+        Path folderPath = getFolderPath(email, folder);
+        if (!Files.exists(folderPath)) {
+            Files.createDirectories(folderPath);
         }
 
-        // Cache miss - load from disk with write lock
-        lock.writeLock().lock();
-        try {
-            // Double-check cache (another thread might have loaded it)
-            List<MessageMetadata> cached = indexCache.get(cacheKey);
-            if (cached != null) {
-                return new ArrayList<>(cached);
-            }
+        // Save .eml file as a link to the shared content
+        contentStore.link(blob, folderPath.resolve(messageId + CONTENT_EXTENSION));
 
-            // Load from disk
-            Path indexPath = getFolderPath(email, folder).resolve(FOLDER_INDEX_FILE);
-            List<MessageMetadata> metadata = new ArrayList<>();
-
-            if (Files.exists(indexPath)) {
-                List<String> lines = Files.readAllLines(indexPath);
-                for (String line : lines) {
-                    if (line.trim().isEmpty() || line.startsWith("#")) {
-                        continue;
-                    }
-                    String[] parts = line.split("\\|", -1);
-                    if (parts.length >= 6) {
-                        MessageMetadata meta = new MessageMetadata(
-                                parts[0], // messageId
-                                parts[1], // from
-                                parts[2], // subject
-                                LocalDateTime.parse(parts[3]), // receivedTime
-                                Long.parseLong(parts[4]), // size
-                                new HashSet<>(Arrays.asList(parts[5].split(","))) // flags
-                        );
-                        metadata.add(meta);
-                    }
-                }
-            }
+        // Update index
+        MessageMetadata metadata = updateFolderIndex(email, folder, message, messageId, summary);
+        eventBus.publish(MailboxEvent.added(email, folder,
+                loadMessage(folderPath.resolve(messageId + CONTENT_EXTENSION), metadata)));
 
-            // Cache it
-            indexCache.put(cacheKey, new ArrayList<>(metadata));
-            logger.debug("Loaded and cached index for {} ({} messages)", cacheKey, metadata.size());
+        logger.info("Saved message {} to {}/{}", messageId, email, folder);
+    }
 
-            return metadata;
-        } finally {
-            lock.writeLock().unlock();
-        }
+    private MessageMetadata updateFolderIndex(String email, String folder, MailMessage message, String messageId,
+            ContentSummary summary) throws IOException {
+        MessageMetadata metadata = new MessageMetadata(
+                messageId,
+                message.getFrom(),
+                summary.getSubject(),
+                LocalDateTime.now(),
+                summary.getSize(),
+                new HashSet<>());
+        metadata.setWireSafe(summary.isWireSafe());
+        metadata.setHeaderLength(summary.getHeaderLength());
+        getFolderIndex(email, folder).add(metadata);
+        return metadata;
     }
 
-    private void saveFolderIndex(String email, String folder, List<MessageMetadata> metadataList)
-            throws IOException {
+    private FolderIndex getFolderIndex(String email, String folder) throws IOException {
         String cacheKey = email + "/" + folder;
-        ReadWriteLock lock = indexLocks.computeIfAbsent(cacheKey, k -> new ReentrantReadWriteLock());
+        FolderIndex index = folderIndexes.get(cacheKey);
+        if (index != null) {
+            return index;
+        }
 
-        lock.writeLock().lock();
-        try {
-            Path indexPath = getFolderPath(email, folder).resolve(FOLDER_INDEX_FILE);
-            List<String> lines = metadataList.stream()
-                    .map(meta -> String.format("%s|%s|%s|%d|%s|%s",
-                            meta.getMessageId(),
-                            meta.getFrom(),
-                            meta.getSubject(),
-                            meta.getSize(),
-                            meta.getReceivedTime().toString(), // Changed to getReceivedTime()
-                            String.join(",", meta.getFlags())))
-                    .collect(Collectors.toList());
-
-            Files.write(indexPath, lines, StandardCharsets.UTF_8);
-
-            // Update cache
-            indexCache.put(cacheKey, new ArrayList<>(metadataList));
-            logger.debug("Saved and cached index for {} ({} messages)", cacheKey, metadataList.size());
-        } finally {
-            lock.writeLock().unlock();
+        synchronized (folderIndexes) {
+            index = folderIndexes.get(cacheKey);
+            if (index == null) {
+                index = FolderIndex.open(getFolderPath(email, folder), compactionExecutor);
+                folderIndexes.put(cacheKey, index);
+                logger.debug("Opened index for {} ({} messages)", cacheKey, index.size());
+            }
+            return index;
         }
     }
 
-    private MailMessage loadMessage(Path emlPath, MessageMetadata metadata) throws IOException {
-        String data = new String(Files.readAllBytes(emlPath), StandardCharsets.UTF_8);
-
-        // Reconstruct recipients from metadata (we'll need to store this in index too)
-        // For now, use empty list or extract from headers
-        List<String> recipients = extractRecipients(data);
-
+    private MailMessage loadMessage(Path emlPath, MessageMetadata metadata) {
+        // Envelope recipients are not kept with a mailbox copy
         MailMessage message = new MailMessage(
                 metadata.getMessageId(),
                 metadata.getFrom(),
-                recipients,
-                data,
+                Collections.emptyList(),
+                emlPath,
+                metadata.getSize(),
                 metadata.getReceivedTime());
 
         message.setFlags(metadata.getFlags());
+        message.setWireSafe(metadata.isWireSafe());
+        message.setUid(metadata.getUid());
+        message.setModSeq(metadata.getModSeq());
+        message.setHeaderLength(metadata.getHeaderLength());
         return message;
     }
-
-    private String extractSubject(String data) {
-        try {
-            String[] lines = data.split("\r?\n");
-            for (String line : lines) {
-                if (line.toLowerCase().startsWith("subject:")) {
-                    return line.substring(8).trim();
-                }
-            }
-        } catch (Exception e) {
-            logger.debug("Failed to extract subject", e);
-        }
-        return "(no subject)";
-    }
-
-    private List<String> extractRecipients(String data) {
-        List<String> recipients = new ArrayList<>();
-        try {
-            String[] lines = data.split("\r?\n");
-            for (String line : lines) {
-                if (line.toLowerCase().startsWith("to:")) {
-                    String toLine = line.substring(3).trim();
-                    // Simple parsing - just split by comma
-                    String[] addrs = toLine.split(",");
-                    for (String addr : addrs) {
-                        recipients.add(addr.trim());
-                    }
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            logger.debug("Failed to extract recipients", e);
-        }
-        return recipients;
-    }
 }
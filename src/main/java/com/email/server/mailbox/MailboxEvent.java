@@ -0,0 +1,98 @@
+package com.email.server.mailbox;
+
+import com.email.server.storage.MailMessage;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A change to a folder, published by the storage once it is on disk.
+ */
+public class MailboxEvent {
+    public enum Type {
+        ADDED,
+        FLAGS,
+        EXPUNGED
+    }
+
+    private final Type type;
+    private final String username;
+    private final String folder;
+    private final long uid;
+    private final long modSeq;
+    private final Set<String> flags;
+    private final MailMessage message;
+
+    private MailboxEvent(Type type, String username, String folder, long uid, long modSeq, Set<String> flags,
+            MailMessage message) {
+        this.type = type;
+        this.username = username;
+        this.folder = folder;
+        this.uid = uid;
+        this.modSeq = modSeq;
+        this.flags = flags;
+        this.message = message;
+    }
+
+    public static MailboxEvent added(String username, String folder, MailMessage message) {
+        return new MailboxEvent(Type.ADDED, username, folder, message.getUid(), message.getModSeq(),
+                message.getFlags(), message);
+    }
+
+    public static MailboxEvent flagsChanged(String username, String folder, long uid, long modSeq,
+            Set<String> flags) {
+        return new MailboxEvent(Type.FLAGS, username, folder, uid, modSeq, new HashSet<>(flags), null);
+    }
+
+    public static MailboxEvent expunged(String username, String folder, long uid, long modSeq) {
+        return new MailboxEvent(Type.EXPUNGED, username, folder, uid, modSeq, Collections.emptySet(), null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    public long getModSeq() {
+        return modSeq;
+    }
+
+    public Set<String> getFlags() {
+        return new HashSet<>(flags);
+    }
+
+    /**
+     * @return the message as listed by the storage, for ADDED only. Every
+     * call returns a copy, so each session can change its own.
+     */
+    public MailMessage getMessage() {
+        if (message == null) {
+            return null;
+        }
+        MailMessage copy = new MailMessage(message.getMessageId(), message.getFrom(), message.getRecipients(),
+                message.getContentPath(), message.getSize(), message.getReceivedTime());
+        copy.setFlags(message.getFlags());
+        copy.setWireSafe(message.isWireSafe());
+        copy.setUid(message.getUid());
+        copy.setModSeq(message.getModSeq());
+        copy.setHeaderLength(message.getHeaderLength());
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "MailboxEvent{" + type + " " + username + "/" + folder + " uid=" + uid + ", modSeq=" + modSeq + "}";
+    }
+}
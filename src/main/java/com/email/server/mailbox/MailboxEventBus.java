@@ -0,0 +1,71 @@
+package com.email.server.mailbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers changes of a folder to the sessions watching it, so they learn about
+ * new mail and flag changes without asking the storage again.
+ *
+ * Listeners are called on the thread that made the change, usually a storage
+ * I/O thread, and must hand the event over to their own thread.
+ */
+public class MailboxEventBus {
+    private static final Logger logger = LoggerFactory.getLogger(MailboxEventBus.class);
+
+    /**
+     * Receives the events of one folder
+     */
+    public interface Listener {
+        void onEvent(MailboxEvent event);
+    }
+
+    /**
+     * Stops the events of a folder reaching a listener
+     */
+    public interface Subscription {
+        void cancel();
+    }
+
+    // Listeners keyed by username/folder
+    private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+
+    public Subscription subscribe(String username, String folder, Listener listener) {
+        String key = key(username, folder);
+        // Added inside the mapping so a concurrent cancel cannot drop the list first
+        listeners.compute(key, (k, current) -> {
+            if (current == null) {
+                current = new CopyOnWriteArrayList<>();
+            }
+            current.add(listener);
+            return current;
+        });
+        return () -> listeners.computeIfPresent(key, (k, current) -> {
+            current.remove(listener);
+            return current.isEmpty() ? null : current;
+        });
+    }
+
+    public void publish(MailboxEvent event) {
+        List<Listener> current = listeners.get(key(event.getUsername(), event.getFolder()));
+        if (current == null) {
+            return;
+        }
+        for (Listener listener : current) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                logger.error("Mailbox listener failed on " + event, e);
+            }
+        }
+    }
+
+    private static String key(String username, String folder) {
+        return username + "/" + folder;
+    }
+}
@@ -3,9 +3,23 @@ package com.email.server.mailbox;
 import com.email.server.storage.MailMessage;
 import com.email.server.storage.MailStorageException;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
+/**
+ * Mailboxes and their folders.
+ *
+ * Every call may block on the disk. Protocol handlers running on an event loop
+ * use the asynchronous variants, which run the call on {@link #getIoExecutor()}
+ * and complete with its result, or exceptionally with the
+ * {@link MailStorageException} it threw.
+ */
 public interface MailboxStorage {
     /**
      * Initialize the mailbox storage
@@ -27,6 +41,25 @@ public interface MailboxStorage {
      */
     String saveMessage(String username, String folder, MailMessage message) throws MailStorageException;
 
+    /**
+     * Save one message to the same folder of several users. Users whose copy could
+     * not be stored are left out of the result.
+     *
+     * @return the message id of each stored copy, keyed by username
+     */
+    default Map<String, String> saveMessage(List<String> usernames, String folder, MailMessage message)
+            throws MailStorageException {
+        Map<String, String> saved = new LinkedHashMap<>();
+        for (String username : usernames) {
+            try {
+                saved.put(username, saveMessage(username, folder, message));
+            } catch (MailStorageException e) {
+                // Reported to the caller by the missing entry
+            }
+        }
+        return saved;
+    }
+
     /**
      * Get all messages in a folder
      */
@@ -44,10 +77,21 @@ public interface MailboxStorage {
 
     /**
      * Update message flags
+     *
+     * @return the modification sequence of the change
      */
-    void updateFlags(String username, String folder, String messageId, Set<String> flags, boolean replace)
+    long updateFlags(String username, String folder, String messageId, Set<String> flags, boolean replace)
             throws MailStorageException;
 
+    /**
+     * Add and remove flags of a message. The change is merged with the flags the
+     * message has at that moment, so changes made meanwhile by others are kept.
+     *
+     * @return the change as published on the event bus, with the resulting flags
+     */
+    MailboxEvent changeFlags(String username, String folder, String messageId, Set<String> added,
+            Set<String> removed) throws MailStorageException;
+
     /**
      * List all folders for a user
      */
@@ -67,4 +111,90 @@ public interface MailboxStorage {
      * Get message count in a folder
      */
     int getMessageCount(String username, String folder) throws MailStorageException;
+
+    /**
+     * Get the message count, UIDVALIDITY and next UID of a folder
+     */
+    FolderStatus getFolderStatus(String username, String folder) throws MailStorageException;
+
+    /**
+     * Get the UIDs of messages deleted from a folder after a modification sequence
+     *
+     * @return the UIDs, or null if the folder no longer knows all of them
+     */
+    List<Long> getExpungedUids(String username, String folder, long modSeq) throws MailStorageException;
+
+    /**
+     * Bus on which saved, flagged and deleted messages are announced
+     */
+    MailboxEventBus getEventBus();
+
+    /**
+     * Executor the asynchronous variants run on
+     */
+    Executor getIoExecutor();
+
+    /**
+     * {@link #saveMessage(List, String, MailMessage)} on the I/O executor
+     */
+    default CompletableFuture<Map<String, String>> saveMessageAsync(List<String> usernames, String folder,
+            MailMessage message) {
+        return supplyAsync(() -> saveMessage(usernames, folder, message));
+    }
+
+    /**
+     * {@link #getMessages(String, String)} on the I/O executor
+     */
+    default CompletableFuture<List<MailMessage>> getMessagesAsync(String username, String folder) {
+        return supplyAsync(() -> getMessages(username, folder));
+    }
+
+    /**
+     * {@link #deleteMessage(String, String, String)} on the I/O executor
+     */
+    default CompletableFuture<Boolean> deleteMessageAsync(String username, String folder, String messageId) {
+        return supplyAsync(() -> deleteMessage(username, folder, messageId));
+    }
+
+    /**
+     * {@link #updateFlags(String, String, String, Set, boolean)} on the I/O executor
+     */
+    default CompletableFuture<Long> updateFlagsAsync(String username, String folder, String messageId,
+            Set<String> flags, boolean replace) {
+        return supplyAsync(() -> updateFlags(username, folder, messageId, flags, replace));
+    }
+
+    /**
+     * {@link #changeFlags(String, String, String, Set, Set)} on the I/O executor
+     */
+    default CompletableFuture<MailboxEvent> changeFlagsAsync(String username, String folder, String messageId,
+            Set<String> added, Set<String> removed) {
+        return supplyAsync(() -> changeFlags(username, folder, messageId, added, removed));
+    }
+
+    /**
+     * {@link #getFolderStatus(String, String)} on the I/O executor
+     */
+    default CompletableFuture<FolderStatus> getFolderStatusAsync(String username, String folder) {
+        return supplyAsync(() -> getFolderStatus(username, folder));
+    }
+
+    /**
+     * {@link #getExpungedUids(String, String, long)} on the I/O executor
+     */
+    default CompletableFuture<List<Long>> getExpungedUidsAsync(String username, String folder, long modSeq) {
+        return supplyAsync(() -> getExpungedUids(username, folder, modSeq));
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Callable<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getIoExecutor());
+    }
 }
@@ -0,0 +1,110 @@
+package com.email.server.mailbox;
+
+import com.email.server.storage.MailMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Shared content store used to deliver one message to many mailboxes while
+ * writing its content only once.
+ *
+ * The content is first written to a blob inside the mailboxes directory, and each
+ * recipient's .eml file is created as a hard link to that blob. The reference
+ * count of the content is therefore the file system link count: deleting one
+ * recipient's copy only drops its link, and the data is freed together with the
+ * last link. On file systems without hard links every copy falls back to a
+ * plain file copy.
+ */
+class MessageContentStore {
+    private static final Logger logger = LoggerFactory.getLogger(MessageContentStore.class);
+    private static final String STORE_DIRECTORY = ".store";
+
+    private final Path root;
+    private volatile boolean hardLinksSupported = true;
+
+    MessageContentStore(Path basePath) {
+        this.root = basePath.resolve(STORE_DIRECTORY);
+    }
+
+    void initialize() throws IOException {
+        Files.createDirectories(root);
+
+        // Blobs are released as soon as a delivery has been fanned out, anything
+        // left over was interrupted by a crash and is referenced by the links only
+        try (Stream<Path> leftovers = Files.list(root)) {
+            leftovers.forEach(this::release);
+        }
+    }
+
+    /**
+     * Write the content of a message into a new blob. Blobs get a name of
+     * their own, so deliveries that share a message id never share content.
+     */
+    Path put(String messageId, MailMessage message) throws IOException {
+        Path blob = root.resolve(messageId + "." + UUID.randomUUID());
+        if (message.getContentPath() != null) {
+            link(message.getContentPath(), blob);
+        } else {
+            Files.write(blob, message.getData().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        }
+        return blob;
+    }
+
+    /**
+     * Make the content of a blob available at the target path
+     *
+     * @throws FileAlreadyExistsException if something is already at the target, which is never replaced
+     */
+    void link(Path blob, Path target) throws IOException {
+        if (hardLinksSupported) {
+            try {
+                Files.createLink(target, blob);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // Cross-device or no hard link support, keep working with copies
+                logger.debug("Hard link from {} to {} failed: {}", blob, target, e.toString());
+                if (blob.startsWith(root)) {
+                    logger.warn("Hard links are not supported for {}, falling back to copies", root);
+                    hardLinksSupported = false;
+                }
+            }
+        }
+        Files.copy(blob, target);
+    }
+
+    /**
+     * Drop the store's own reference to a blob; copies linked to it stay intact
+     */
+    void release(Path blob) {
+        try {
+            Files.deleteIfExists(blob);
+        } catch (IOException e) {
+            logger.warn("Failed to release blob {}: {}", blob, e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of paths sharing the content of the given file
+     */
+    long referenceCount(Path file) {
+        try {
+            Object count = Files.getAttribute(file, "unix:nlink");
+            return ((Number) count).longValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return 1;
+        }
+    }
+}
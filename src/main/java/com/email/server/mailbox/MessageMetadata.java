@@ -11,6 +11,10 @@ public class MessageMetadata {
     private final LocalDateTime receivedTime;
     private final long size;
     private Set<String> flags;
+    private boolean wireSafe;
+    private long uid;
+    private long modSeq;
+    private long headerLength;
 
     public MessageMetadata(String messageId, String from, String subject, LocalDateTime receivedTime, long size) {
         this.messageId = messageId;
@@ -67,6 +71,53 @@ public class MessageMetadata {
         this.flags.remove(flag);
     }
 
+    /**
+     * @return true if the stored content can be sent as-is in a POP3 multi-line
+     * response (CRLF line breaks only, no line starting with a dot)
+     */
+    public boolean isWireSafe() {
+        return wireSafe;
+    }
+
+    public void setWireSafe(boolean wireSafe) {
+        this.wireSafe = wireSafe;
+    }
+
+    /**
+     * @return the IMAP UID of the message within its folder, 0 until the
+     * folder index assigned one
+     */
+    public long getUid() {
+        return uid;
+    }
+
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    /**
+     * @return the modification sequence of the last change to the message
+     */
+    public long getModSeq() {
+        return modSeq;
+    }
+
+    public void setModSeq(long modSeq) {
+        this.modSeq = modSeq;
+    }
+
+    /**
+     * @return the length of the header including the blank line ending it, 0
+     * if unknown for messages indexed before it was recorded
+     */
+    public long getHeaderLength() {
+        return headerLength;
+    }
+
+    public void setHeaderLength(long headerLength) {
+        this.headerLength = headerLength;
+    }
+
     public boolean hasFlag(String flag) {
         return flags.contains(flag);
     }
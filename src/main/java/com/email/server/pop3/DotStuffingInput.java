@@ -0,0 +1,96 @@
+package com.email.server.pop3;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams stored message content as the body of a POP3 multi-line response.
+ *
+ * Lines starting with a dot are stuffed, bare line feeds are turned into CRLF
+ * and the terminating ".\r\n" is appended, one chunk at a time. Only used for
+ * content that was not stored in wire form; anything else is sent as a file
+ * region without passing through user space.
+ */
+class DotStuffingInput implements ChunkedInput<ByteBuf> {
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] TERMINATOR = { '.', '\r', '\n' };
+
+    private final FileChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private long progress;
+    private int previous = '\n';
+    private boolean endOfInput;
+
+    DotStuffingInput(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return endOfInput;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws IOException {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws IOException {
+        if (endOfInput) {
+            return null;
+        }
+
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            endOfInput = true;
+            ByteBuf last = allocator.buffer(5);
+            if (previous != '\n') {
+                if (previous != '\r') {
+                    last.writeByte('\r');
+                }
+                last.writeByte('\n');
+            }
+            return last.writeBytes(TERMINATOR);
+        }
+
+        // Worst case every byte is a bare line feed or a line-leading dot
+        ByteBuf chunk = allocator.buffer(read + read / 8 + 16);
+        byte[] bytes = readBuffer.array();
+        for (int i = 0; i < read; i++) {
+            byte b = bytes[i];
+            if (b == '\n' && previous != '\r') {
+                chunk.writeByte('\r');
+            } else if (b == '.' && previous == '\n') {
+                chunk.writeByte('.');
+            }
+            chunk.writeByte(b);
+            previous = b;
+        }
+        progress += read;
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -2,19 +2,27 @@ package com.email.server.pop3;
 
 import com.email.server.storage.MailMessage;
 import com.email.server.mailbox.MailboxStorage;
+import com.email.server.transport.InboundQueue;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Pop3Handler extends SimpleChannelInboundHandler<String> {
     private static final Logger logger = LoggerFactory.getLogger(Pop3Handler.class);
 
     private final MailboxStorage mailboxStorage;
     private final Pop3Session session;
+    private final InboundQueue inbound = new InboundQueue((ctx, msg) -> channelRead0(ctx, (String) msg));
 
     public Pop3Handler(MailboxStorage mailboxStorage) {
         this.mailboxStorage = mailboxStorage;
@@ -26,8 +34,16 @@ public class Pop3Handler extends SimpleChannelInboundHandler<String> {
         ctx.writeAndFlush("+OK POP3 server ready\r\n");
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        inbound.clear();
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, String msg) {
+        if (inbound.hold(msg)) {
+            return;
+        }
         String[] parts = msg.trim().split("\\s+", 2);
         String commandName = parts[0];
         String args = parts.length > 1 ? parts[1] : "";
@@ -103,15 +119,16 @@ public class Pop3Handler extends SimpleChannelInboundHandler<String> {
         }
 
         // Use full email for mailbox lookup
-        try {
-            List<MailMessage> messages = mailboxStorage.getMessages(session.getUsername(), "INBOX");
+        inbound.await(ctx, mailboxStorage.getMessagesAsync(session.getUsername(), "INBOX"), (messages, error) -> {
+            if (error != null) {
+                logger.error("Error loading messages for user: " + session.getUsername(), error);
+                ctx.writeAndFlush("-ERR Authentication failed\r\n");
+                return;
+            }
             session.setMessages(messages);
             session.setState(Pop3Session.State.TRANSACTION);
             ctx.writeAndFlush("+OK Mailbox locked and ready\r\n");
-        } catch (Exception e) {
-            logger.error("Error loading messages for user: " + session.getUsername(), e);
-            ctx.writeAndFlush("-ERR Authentication failed\r\n");
-        }
+        });
     }
 
     private void handleStat(ChannelHandlerContext ctx) {
@@ -189,9 +206,7 @@ public class Pop3Handler extends SimpleChannelInboundHandler<String> {
             List<MailMessage> messages = session.getMessages();
 
             if (index >= 0 && index < messages.size() && !session.isDeleted(index)) {
-                MailMessage message = messages.get(index);
-                ctx.writeAndFlush("+OK " + message.getSize() + " octets\r\n");
-                ctx.writeAndFlush(message.getData() + "\r\n.\r\n");
+                sendMessage(ctx, messages.get(index));
             } else {
                 ctx.writeAndFlush("-ERR No such message\r\n");
             }
@@ -200,6 +215,35 @@ public class Pop3Handler extends SimpleChannelInboundHandler<String> {
         }
     }
 
+    private void sendMessage(ChannelHandlerContext ctx, MailMessage message) {
+        if (message.getContentPath() == null) {
+            ctx.writeAndFlush("+OK " + message.getSize() + " octets\r\n");
+            ctx.writeAndFlush(message.getData() + "\r\n.\r\n");
+            return;
+        }
+
+        // Opened up front so a concurrent delete cannot pull the file away mid-transfer
+        FileChannel channel;
+        long size;
+        try {
+            channel = FileChannel.open(message.getContentPath(), StandardOpenOption.READ);
+            size = channel.size();
+        } catch (IOException e) {
+            logger.error("Failed to open message: " + message.getMessageId(), e);
+            ctx.writeAndFlush("-ERR Message unavailable\r\n");
+            return;
+        }
+
+        ctx.write("+OK " + size + " octets\r\n");
+        if (message.isWireSafe()) {
+            // Stored in wire form, sent straight from the page cache
+            ctx.write(new DefaultFileRegion(channel, 0, size));
+            ctx.writeAndFlush(".\r\n");
+        } else {
+            ctx.writeAndFlush(new DotStuffingInput(channel));
+        }
+    }
+
     private void handleDele(ChannelHandlerContext ctx, String args) {
         if (session.getState() != Pop3Session.State.TRANSACTION) {
             ctx.writeAndFlush("-ERR Command not allowed in current state\r\n");
@@ -237,21 +281,28 @@ public class Pop3Handler extends SimpleChannelInboundHandler<String> {
     }
 
     private void handleQuit(ChannelHandlerContext ctx) {
-        if (session.getState() == Pop3Session.State.TRANSACTION) {
-            session.setState(Pop3Session.State.UPDATE);
-            List<MailMessage> messages = session.getMessages();
-            String username = session.getUsername();
-            for (int index : session.getDeletedMessageIndices()) {
-                if (index >= 0 && index < messages.size()) {
-                    try {
-                        mailboxStorage.deleteMessage(username, "INBOX", messages.get(index).getMessageId());
-                    } catch (Exception e) {
-                        logger.error("Error deleting message: " + messages.get(index).getMessageId(), e);
-                    }
-                }
+        if (session.getState() != Pop3Session.State.TRANSACTION) {
+            ctx.writeAndFlush("+OK Bye\r\n").addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
+        session.setState(Pop3Session.State.UPDATE);
+        List<MailMessage> messages = session.getMessages();
+        String username = session.getUsername();
+        List<CompletableFuture<Boolean>> deletions = new ArrayList<>();
+        for (int index : session.getDeletedMessageIndices()) {
+            if (index >= 0 && index < messages.size()) {
+                String messageId = messages.get(index).getMessageId();
+                deletions.add(mailboxStorage.deleteMessageAsync(username, "INBOX", messageId)
+                        .exceptionally(e -> {
+                            logger.error("Error deleting message: " + messageId, e);
+                            return false;
+                        }));
             }
         }
-        ctx.writeAndFlush("+OK Bye\r\n").addListener(ChannelFutureListener.CLOSE);
+        // Only reply once the deletions are done, the client may log in again right away
+        inbound.await(ctx, CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0])),
+                (done, error) -> ctx.writeAndFlush("+OK Bye\r\n").addListener(ChannelFutureListener.CLOSE));
     }
 
     private void handleCapa(ChannelHandlerContext ctx) {
@@ -2,22 +2,23 @@ package com.email.server.pop3;
 
 import com.email.server.config.ServerConfig;
 import com.email.server.mailbox.MailboxStorage;
+import com.email.server.transport.TransportRuntime;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.Delimiters;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class Pop3Server {
@@ -25,24 +26,31 @@ public class Pop3Server {
 
     private final ServerConfig config;
     private final MailboxStorage mailboxStorage;
-    private final EventLoopGroup bossGroup;
-    private final EventLoopGroup workerGroup;
-    private final io.netty.util.concurrent.EventExecutorGroup businessGroup;
-    private ChannelFuture channelFuture;
+    private final TransportRuntime runtime;
+    // Created for this server alone, so stopped along with it
+    private final boolean ownsRuntime;
+    private List<Channel> serverChannels = Collections.emptyList();
 
     public Pop3Server(ServerConfig config, MailboxStorage mailboxStorage) {
+        this(config, null, mailboxStorage);
+    }
+
+    /**
+     * @param runtime shared with the other servers of the process, or null
+     * for threads of this server's own
+     */
+    public Pop3Server(ServerConfig config, TransportRuntime runtime, MailboxStorage mailboxStorage) {
         this.config = config;
         this.mailboxStorage = mailboxStorage;
-        this.bossGroup = new NioEventLoopGroup(config.getIoThreads());
-        this.workerGroup = new NioEventLoopGroup(config.getWorkerThreads());
-        this.businessGroup = new io.netty.util.concurrent.DefaultEventExecutorGroup(config.getBusinessThreads());
+        this.ownsRuntime = runtime == null;
+        this.runtime = ownsRuntime ? new TransportRuntime(config) : runtime;
     }
 
     public void start() throws InterruptedException {
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+            bootstrap.group(runtime.getBossGroup(), runtime.getWorkerGroup())
+                    .channel(runtime.getTransport().serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -59,15 +67,21 @@ public class Pop3Server {
                             pipeline.addLast(new StringDecoder());
                             pipeline.addLast(new StringEncoder());
 
+                            // Stream message content that needs dot-stuffing
+                            pipeline.addLast(new ChunkedWriteHandler());
+
                             // Add POP3 handler
-                            pipeline.addLast(businessGroup, new Pop3Handler(mailboxStorage));
+                            pipeline.addLast(new Pop3Handler(mailboxStorage));
                         }
                     });
 
             // Bind and start to accept incoming connections
-            channelFuture = bootstrap.bind(config.getPop3BindAddress(), config.getPop3Port()).sync();
+            serverChannels = runtime.getTransport().bind(bootstrap, config.getPop3BindAddress(), config.getPop3Port(),
+                    runtime.getAcceptors());
 
-            logger.info("POP3 server started on {}:{}", config.getPop3BindAddress(), config.getPop3Port());
+            logger.info("POP3 server started on {}:{} ({}, {} acceptors)",
+                    config.getPop3BindAddress(), config.getPop3Port(), runtime.getTransport(),
+                    serverChannels.size());
         } catch (InterruptedException e) {
             logger.error("Failed to start POP3 server", e);
             throw e;
@@ -78,16 +92,16 @@ public class Pop3Server {
         logger.info("Stopping POP3 server...");
 
         try {
-            if (channelFuture != null) {
-                channelFuture.channel().close().sync();
+            for (Channel channel : serverChannels) {
+                channel.close().sync();
             }
         } catch (InterruptedException e) {
             logger.error("Error closing server channel", e);
         }
 
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
-        businessGroup.shutdownGracefully();
+        if (ownsRuntime) {
+            runtime.shutdown();
+        }
 
         logger.info("POP3 server stopped");
     }
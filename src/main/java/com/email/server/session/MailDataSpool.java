@@ -0,0 +1,112 @@
+package com.email.server.session;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Temporary spool file receiving the content of a single SMTP transaction.
+ * Only a small fixed-size buffer is kept in memory, so heap use per session
+ * does not depend on the message size.
+ */
+public class MailDataSpool {
+    private static final Logger logger = LoggerFactory.getLogger(MailDataSpool.class);
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long size;
+    private boolean finished;
+
+    private MailDataSpool(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    public static MailDataSpool create(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "spool-", ".eml");
+        return new MailDataSpool(file, FileChannel.open(file, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Append (already dot-unstuffed) message content. Large buffers are written
+     * straight to the file channel without being copied onto the heap.
+     */
+    public void write(ByteBuf data) throws IOException {
+        ensureOpen();
+        int index = data.readerIndex();
+        int length = data.readableBytes();
+
+        if (length < buffer.remaining()) {
+            data.getBytes(index, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.position() + length);
+        } else {
+            flushBuffer();
+            int end = index + length;
+            while (index < end) {
+                index += data.getBytes(index, channel, end - index);
+            }
+        }
+        size += length;
+    }
+
+    /**
+     * Flush and close the spool file, returning its path. The spool can no longer
+     * be written to afterwards.
+     */
+    public Path finish() throws IOException {
+        if (!finished) {
+            try {
+                flushBuffer();
+            } finally {
+                finished = true;
+                channel.close();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Close and delete the spool file
+     */
+    public void discard() {
+        try {
+            finished = true;
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete spool file {}: {}", file, e.getMessage());
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Spool already finished: " + file);
+        }
+    }
+}
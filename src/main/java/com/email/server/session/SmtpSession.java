@@ -1,7 +1,10 @@
 package com.email.server.session;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -19,7 +22,7 @@ public class SmtpSession {
     private String clientHostname;
     private String mailFrom;
     private final List<String> rcptTo = new ArrayList<>();
-    private final StringBuilder mailData = new StringBuilder();
+    private MailDataSpool mailData;
     private volatile boolean dataMode = false;
 
     public SmtpSession(Channel channel, String serverName) {
@@ -82,21 +85,33 @@ public class SmtpSession {
         this.dataMode = dataMode;
     }
 
-    public void appendMailData(String data) {
-        mailData.append(data).append("\r\n");
+    public void startMailData(Path spoolDirectory) throws IOException {
+        discardMailData();
+        mailData = MailDataSpool.create(spoolDirectory);
     }
 
-    public String getMailData() {
-        return mailData.toString();
+    public void appendMailData(ByteBuf data) throws IOException {
+        mailData.write(data);
+    }
+
+    public MailDataSpool getMailData() {
+        return mailData;
     }
 
     public void resetTransaction() {
         mailFrom = null;
         rcptTo.clear();
-        mailData.setLength(0);
+        discardMailData();
         dataMode = false;
     }
 
+    private void discardMailData() {
+        if (mailData != null) {
+            mailData.discard();
+            mailData = null;
+        }
+    }
+
     public void sendResponse(String response) {
         if (channel.isActive()) {
             channel.writeAndFlush(response + "\r\n");
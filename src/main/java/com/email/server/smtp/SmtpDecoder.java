@@ -0,0 +1,297 @@
+package com.email.server.smtp;
+
+import com.email.server.command.SmtpCommand;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Byte-oriented SMTP decoder.
+ *
+ * In command mode every line is turned into an {@link SmtpRequest}; the verb is
+ * matched directly on the buffer, so only the argument (if any) is decoded into
+ * a String. In data mode the dot-unstuffed message content is passed on as
+ * retained slices of the inbound buffer, followed by {@link #DATA_END} once the
+ * terminating "." line has been seen. The chunk announced by a BDAT command is
+ * passed on as retained slices without any line scanning.
+ */
+public class SmtpDecoder extends ByteToMessageDecoder {
+    /**
+     * Emitted after the last content slice of a DATA transfer
+     */
+    public static final Object DATA_END = new Object() {
+        @Override
+        public String toString() {
+            return "DATA_END";
+        }
+    };
+
+    private static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+    private static final SmtpCommand[] VERBS;
+    private static final int[] VERB_KEYS;
+
+    static {
+        int count = 0;
+        for (SmtpCommand command : SmtpCommand.values()) {
+            if (command.getCommand().length() == 4) {
+                count++;
+            }
+        }
+        VERBS = new SmtpCommand[count];
+        VERB_KEYS = new int[count];
+        int i = 0;
+        for (SmtpCommand command : SmtpCommand.values()) {
+            String verb = command.getCommand();
+            if (verb.length() == 4) {
+                VERBS[i] = command;
+                VERB_KEYS[i] = verb.charAt(0) << 24 | verb.charAt(1) << 16 | verb.charAt(2) << 8 | verb.charAt(3);
+                i++;
+            }
+        }
+    }
+
+    private final int maxLineLength;
+    private final LineStartDotFinder dotFinder = new LineStartDotFinder();
+
+    private boolean dataMode;
+    private boolean rawLine;
+    private boolean atLineStart = true;
+    private boolean discarding;
+    private long chunkRemaining;
+
+    public SmtpDecoder() {
+        this(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public SmtpDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Switch to data mode. Must be called before the 354 reply is sent, since the
+     * client does not send content before receiving it.
+     */
+    public void startData() {
+        dataMode = true;
+    }
+
+    /**
+     * Decode the next line verbatim as an {@link SmtpCommand#UNKNOWN} request
+     * (e.g. an AUTH LOGIN continuation, which may look like a verb)
+     */
+    public void expectRawLine() {
+        rawLine = true;
+    }
+
+    public boolean isDataMode() {
+        return dataMode;
+    }
+
+    /**
+     * Parse the chunk size of a BDAT argument ("size [LAST]")
+     *
+     * @return the chunk size, or -1 if the argument is malformed
+     */
+    public static long parseChunkSize(String argument) {
+        int end = argument.indexOf(' ');
+        String size = end < 0 ? argument : argument.substring(0, end);
+        if (size.isEmpty() || size.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < size.length(); i++) {
+            if (size.charAt(i) < '0' || size.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(size);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (chunkRemaining > 0) {
+            decodeChunk(in, out);
+        } else if (dataMode) {
+            decodeData(in, out);
+        } else {
+            decodeCommand(in, out);
+        }
+    }
+
+    private void decodeCommand(ByteBuf in, List<Object> out) throws TooLongFrameException {
+        int eol = in.forEachByte(ByteProcessor.FIND_LF);
+        if (eol < 0) {
+            if (in.readableBytes() > maxLineLength) {
+                discarding = true;
+                in.skipBytes(in.readableBytes());
+            }
+            return;
+        }
+
+        int start = in.readerIndex();
+        int end = eol > start && in.getByte(eol - 1) == '\r' ? eol - 1 : eol;
+        in.readerIndex(eol + 1);
+
+        if (discarding || end - start > maxLineLength) {
+            discarding = false;
+            throw new TooLongFrameException("SMTP command line exceeds " + maxLineLength + " bytes");
+        }
+
+        SmtpRequest request = parseRequest(in, start, end);
+        if (request.getCommand() == SmtpCommand.BDAT) {
+            // The chunk follows the command regardless of whether the handler accepts it
+            chunkRemaining = Math.max(parseChunkSize(request.getArgument()), 0);
+        }
+        out.add(request);
+    }
+
+    private void decodeChunk(ByteBuf in, List<Object> out) {
+        int length = (int) Math.min(in.readableBytes(), chunkRemaining);
+        chunkRemaining -= length;
+        out.add(in.readRetainedSlice(length));
+    }
+
+    private SmtpRequest parseRequest(ByteBuf buf, int start, int end) {
+        start = skipWhitespace(buf, start, end);
+        end = trimWhitespace(buf, start, end);
+
+        if (rawLine) {
+            rawLine = false;
+            return SmtpRequest.of(SmtpCommand.UNKNOWN, decode(buf, start, end));
+        }
+
+        int verbEnd = start;
+        while (verbEnd < end && !isWhitespace(buf.getByte(verbEnd))) {
+            verbEnd++;
+        }
+
+        SmtpCommand command = matchVerb(buf, start, verbEnd - start);
+        if (command == SmtpCommand.UNKNOWN) {
+            return SmtpRequest.of(command, decode(buf, start, end));
+        }
+        return SmtpRequest.of(command, decode(buf, skipWhitespace(buf, verbEnd, end), end));
+    }
+
+    private static SmtpCommand matchVerb(ByteBuf buf, int start, int length) {
+        if (length == 4) {
+            int key = upper(buf.getByte(start)) << 24 | upper(buf.getByte(start + 1)) << 16
+                    | upper(buf.getByte(start + 2)) << 8 | upper(buf.getByte(start + 3));
+            for (int i = 0; i < VERB_KEYS.length; i++) {
+                if (VERB_KEYS[i] == key) {
+                    return VERBS[i];
+                }
+            }
+        } else if (length == 8 && matches(buf, start, SmtpCommand.STARTTLS.getCommand())) {
+            return SmtpCommand.STARTTLS;
+        }
+        return SmtpCommand.UNKNOWN;
+    }
+
+    private void decodeData(ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        int readable = in.readableBytes();
+
+        if (atLineStart && in.getByte(start) == '.') {
+            // Need up to three bytes to tell the terminator from a stuffed dot
+            if (readable < 2) {
+                return;
+            }
+            byte next = in.getByte(start + 1);
+            if (next == '\n') {
+                in.skipBytes(2);
+                endData(out);
+                return;
+            }
+            if (next == '\r') {
+                if (readable < 3) {
+                    return;
+                }
+                if (in.getByte(start + 2) == '\n') {
+                    in.skipBytes(3);
+                    endData(out);
+                    return;
+                }
+            }
+            // Dot-unstuffing: drop the leading dot of any other line
+            in.skipBytes(1);
+            atLineStart = false;
+            return;
+        }
+
+        // Pass everything up to the next line starting with a dot as one slice
+        dotFinder.reset();
+        int dot = in.forEachByte(start, readable, dotFinder);
+        if (dot >= 0) {
+            out.add(in.readRetainedSlice(dot - start));
+            atLineStart = true;
+        } else {
+            atLineStart = in.getByte(start + readable - 1) == '\n';
+            out.add(in.readRetainedSlice(readable));
+        }
+    }
+
+    private void endData(List<Object> out) {
+        dataMode = false;
+        atLineStart = true;
+        out.add(DATA_END);
+    }
+
+    private static String decode(ByteBuf buf, int start, int end) {
+        return end > start ? buf.toString(start, end - start, StandardCharsets.UTF_8) : "";
+    }
+
+    private static boolean matches(ByteBuf buf, int start, String verb) {
+        for (int i = 0; i < verb.length(); i++) {
+            if (upper(buf.getByte(start + i)) != verb.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(ByteBuf buf, int start, int end) {
+        while (start < end && isWhitespace(buf.getByte(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimWhitespace(ByteBuf buf, int start, int end) {
+        while (end > start && isWhitespace(buf.getByte(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int upper(byte b) {
+        return b >= 'a' && b <= 'z' ? b - 32 : b & 0xFF;
+    }
+
+    /**
+     * Stops at a '.' that directly follows a line feed
+     */
+    private static final class LineStartDotFinder implements ByteProcessor {
+        private boolean afterLineFeed;
+
+        void reset() {
+            afterLineFeed = false;
+        }
+
+        @Override
+        public boolean process(byte value) {
+            if (afterLineFeed && value == '.') {
+                return false;
+            }
+            afterLineFeed = value == '\n';
+            return true;
+        }
+    }
+}
@@ -1,20 +1,35 @@
 package com.email.server.smtp;
 
+import com.email.server.command.SmtpCommand;
 import com.email.server.config.ServerConfig;
+import com.email.server.delivery.MailDeliveryService;
+import com.email.server.session.MailDataSpool;
 import com.email.server.session.SessionManager;
 import com.email.server.session.SmtpSession;
 import com.email.server.mailbox.MailboxStorage;
 import com.email.server.storage.MailMessage;
+import com.email.server.storage.MailStorageException;
+import com.email.server.transport.InboundQueue;
 import com.email.server.user.UserRepository;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.TooLongFrameException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-public class SmtpHandler extends SimpleChannelInboundHandler<String> {
+public class SmtpHandler extends SimpleChannelInboundHandler<Object> {
     private static final Logger logger = LoggerFactory.getLogger(SmtpHandler.class);
 
     private enum State {
@@ -24,6 +39,8 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
         RCPT,
         DATA,
         DATA_CONTENT,
+        BDAT,
+        BDAT_CONTENT,
         AUTH_LOGIN_USERNAME,
         AUTH_LOGIN_PASSWORD,
         QUIT
@@ -31,18 +48,32 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
 
     private final SessionManager sessionManager;
     private final MailboxStorage mailboxStorage;
+    private final MailDeliveryService deliveryService;
     private final ServerConfig config;
     private final UserRepository userRepository;
+    private final InboundQueue inbound = new InboundQueue(this::channelRead0);
 
     private SmtpSession session;
     private State state = State.CONNECT;
     private boolean authenticated = false;
     private String authUsername;
+    private boolean dataFailed = false;
+    private boolean binaryMime = false;
+    // A message is being stored, its spool file must stay until that is done
+    private boolean delivering = false;
+
+    // Chunk currently being received by BDAT
+    private long chunkSize;
+    private long chunkRemaining;
+    private boolean chunkLast;
+    private String chunkError;
+    private State stateBeforeChunk;
 
     public SmtpHandler(SessionManager sessionManager, MailboxStorage mailboxStorage,
-            ServerConfig config, UserRepository userRepository) {
+            MailDeliveryService deliveryService, ServerConfig config, UserRepository userRepository) {
         this.sessionManager = sessionManager;
         this.mailboxStorage = mailboxStorage;
+        this.deliveryService = deliveryService;
         this.config = config;
         this.userRepository = userRepository;
     }
@@ -62,80 +93,116 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
+        inbound.clear();
         if (session != null) {
+            if (!delivering) {
+                session.resetTransaction();
+            }
             sessionManager.removeSession(session.getSessionId());
         }
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String msg) {
-        String line = msg.trim();
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
+        if (inbound.hold(msg)) {
+            return;
+        }
+
+        if (msg instanceof ByteBuf) {
+            if (state == State.BDAT_CONTENT) {
+                handleChunkContent(ctx, (ByteBuf) msg);
+            } else {
+                handleDataContent(ctx, (ByteBuf) msg);
+            }
+            return;
+        }
 
-        if (state == State.DATA_CONTENT) {
-            handleDataContent(ctx, msg); // Use raw msg to preserve whitespace
+        if (msg == SmtpDecoder.DATA_END) {
+            handleDataEnd(ctx);
             return;
         }
 
+        SmtpRequest request = (SmtpRequest) msg;
+
         if (state == State.AUTH_LOGIN_USERNAME) {
-            handleAuthLoginUsername(ctx, line);
+            handleAuthLoginUsername(ctx, request.getArgument());
             return;
         }
 
         if (state == State.AUTH_LOGIN_PASSWORD) {
-            handleAuthLoginPassword(ctx, line);
+            handleAuthLoginPassword(ctx, request.getArgument());
             return;
         }
 
-        String[] parts = line.split("\\s+", 2);
-        String command = parts[0].toUpperCase();
-        String args = parts.length > 1 ? parts[1] : "";
+        SmtpCommand command = request.getCommand();
+        String args = request.getArgument();
 
         try {
             switch (command) {
-                case "HELO":
-                case "EHLO":
+                case HELO:
+                case EHLO:
                     handleHelo(ctx, args);
                     break;
-                case "AUTH":
+                case AUTH:
                     handleAuth(ctx, args);
                     break;
-                case "MAIL":
+                case MAIL:
                     handleMail(ctx, args);
                     break;
-                case "RCPT":
+                case RCPT:
                     handleRcpt(ctx, args);
                     break;
-                case "DATA":
+                case DATA:
                     handleData(ctx);
                     break;
-                case "QUIT":
+                case BDAT:
+                    handleBdat(ctx, args);
+                    break;
+                case QUIT:
                     ctx.writeAndFlush("221 Bye\r\n");
                     ctx.close();
                     break;
-                case "RSET":
+                case RSET:
                     resetState();
-                    ctx.writeAndFlush("250 OK\r\n");
+                    reply(ctx, "250 OK\r\n");
                     break;
-                case "NOOP":
-                    ctx.writeAndFlush("250 OK\r\n");
+                case NOOP:
+                    reply(ctx, "250 OK\r\n");
                     break;
                 default:
-                    ctx.writeAndFlush("500 Unknown command\r\n");
+                    reply(ctx, "500 Unknown command\r\n");
             }
         } catch (Exception e) {
             logger.error("Error handling command: " + command, e);
-            ctx.writeAndFlush("451 Internal server error\r\n");
+            reply(ctx, "451 Internal server error\r\n");
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // Replies to pipelined commands are sent together once the read is drained
+        ctx.flush();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof TooLongFrameException) {
+            ctx.writeAndFlush("500 Line too long\r\n");
+            return;
         }
+        logger.error("Unexpected error on SMTP connection " + ctx.channel().remoteAddress(), cause);
+        ctx.close();
     }
 
     private void handleHelo(ChannelHandlerContext ctx, String args) {
         session.setClientHostname(args);
-        ctx.writeAndFlush("250-" + config.getServerName() + "\r\n250-AUTH LOGIN PLAIN\r\n250 OK\r\n");
+        reply(ctx, "250-" + config.getServerName() + "\r\n250-PIPELINING\r\n250-8BITMIME\r\n250-CHUNKING\r\n"
+                + "250-BINARYMIME\r\n250-AUTH LOGIN PLAIN\r\n250 OK\r\n");
     }
 
     private void handleAuth(ChannelHandlerContext ctx, String args) {
         if (authenticated) {
-            ctx.writeAndFlush("503 Already authenticated\r\n");
+            reply(ctx, "503 Already authenticated\r\n");
             return;
         }
         logger.info("Handling AUTH. UserRepository class: {}", userRepository.getClass().getName());
@@ -145,15 +212,16 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
 
         if ("LOGIN".equals(mechanism)) {
             state = State.AUTH_LOGIN_USERNAME;
-            ctx.writeAndFlush("334 VXNlcm5hbWU6\r\n"); // Base64 encoded "Username:"
+            decoder(ctx).expectRawLine();
+            reply(ctx, "334 VXNlcm5hbWU6\r\n"); // Base64 encoded "Username:"
         } else if ("PLAIN".equals(mechanism)) {
             if (parts.length > 1) {
                 handleAuthPlain(ctx, parts[1]);
             } else {
-                ctx.writeAndFlush("501 Missing argument\r\n");
+                reply(ctx, "501 Missing argument\r\n");
             }
         } else {
-            ctx.writeAndFlush("504 Unrecognized authentication type\r\n");
+            reply(ctx, "504 Unrecognized authentication type\r\n");
         }
     }
 
@@ -169,15 +237,15 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
                 if (userRepository.validate(username, password)) {
                     authenticated = true;
                     authUsername = username;
-                    ctx.writeAndFlush("235 Authentication successful\r\n");
+                    reply(ctx, "235 Authentication successful\r\n");
                 } else {
-                    ctx.writeAndFlush("535 Authentication credentials invalid\r\n");
+                    reply(ctx, "535 Authentication credentials invalid\r\n");
                 }
             } else {
-                ctx.writeAndFlush("501 Invalid arguments\r\n");
+                reply(ctx, "501 Invalid arguments\r\n");
             }
         } catch (IllegalArgumentException e) {
-            ctx.writeAndFlush("501 Invalid Base64\r\n");
+            reply(ctx, "501 Invalid Base64\r\n");
         }
     }
 
@@ -186,10 +254,11 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
             byte[] decoded = Base64.getDecoder().decode(base64);
             authUsername = new String(decoded);
             state = State.AUTH_LOGIN_PASSWORD;
-            ctx.writeAndFlush("334 UGFzc3dvcmQ6\r\n"); // Base64 encoded "Password:"
+            decoder(ctx).expectRawLine();
+            reply(ctx, "334 UGFzc3dvcmQ6\r\n"); // Base64 encoded "Password:"
         } catch (IllegalArgumentException e) {
             state = State.GREET;
-            ctx.writeAndFlush("501 Invalid Base64\r\n");
+            reply(ctx, "501 Invalid Base64\r\n");
         }
     }
 
@@ -200,37 +269,59 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
             if (userRepository.validate(authUsername, password)) {
                 authenticated = true;
                 state = State.GREET;
-                ctx.writeAndFlush("235 Authentication successful\r\n");
+                reply(ctx, "235 Authentication successful\r\n");
             } else {
                 state = State.GREET;
-                ctx.writeAndFlush("535 Authentication credentials invalid\r\n");
+                reply(ctx, "535 Authentication credentials invalid\r\n");
             }
         } catch (IllegalArgumentException e) {
             state = State.GREET;
-            ctx.writeAndFlush("501 Invalid Base64\r\n");
+            reply(ctx, "501 Invalid Base64\r\n");
         }
     }
 
     private void handleMail(ChannelHandlerContext ctx, String args) {
         if (!authenticated) {
             // Optional: Enforce auth
-            ctx.writeAndFlush("530 Authentication required\r\n");
+            reply(ctx, "530 Authentication required\r\n");
             return;
         }
 
         if (args.toUpperCase().startsWith("FROM:")) {
-            String sender = args.substring(5).trim().replaceAll("[<>]", "");
+            String path = args.substring(5).trim();
+            String parameters = "";
+            if (path.startsWith("<") && path.indexOf('>') > 0) {
+                parameters = path.substring(path.indexOf('>') + 1).trim();
+                path = path.substring(0, path.indexOf('>') + 1);
+            }
+
+            boolean binary = false;
+            for (String parameter : parameters.split("\\s+")) {
+                String upper = parameter.toUpperCase();
+                if (upper.startsWith("BODY=")) {
+                    String body = upper.substring(5);
+                    if (body.equals("BINARYMIME")) {
+                        binary = true;
+                    } else if (!body.equals("7BIT") && !body.equals("8BITMIME")) {
+                        reply(ctx, "501 5.5.4 Unsupported BODY type\r\n");
+                        return;
+                    }
+                }
+            }
+
+            String sender = path.replaceAll("[<>]", "");
             session.setMailFrom(sender);
+            binaryMime = binary;
             state = State.MAIL;
-            ctx.writeAndFlush("250 OK\r\n");
+            reply(ctx, "250 OK\r\n");
         } else {
-            ctx.writeAndFlush("501 Syntax error in parameters or arguments\r\n");
+            reply(ctx, "501 Syntax error in parameters or arguments\r\n");
         }
     }
 
     private void handleRcpt(ChannelHandlerContext ctx, String args) {
         if (state != State.MAIL && state != State.RCPT) {
-            ctx.writeAndFlush("503 Bad sequence of commands\r\n");
+            reply(ctx, "503 Bad sequence of commands\r\n");
             return;
         }
 
@@ -245,7 +336,20 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
                 // Unauthenticated and external domain - reject relay
                 logger.warn("Relay access denied for {} to external domain {}",
                         session.getClientHostname(), domain);
-                ctx.writeAndFlush("550 5.7.1 Relay access denied\r\n");
+                reply(ctx, "550 5.7.1 Relay access denied\r\n");
+                return;
+            }
+
+            // The relay sends with DATA, which cannot carry binary content
+            if (binaryMime && !config.isLocalDomain(domain)) {
+                reply(ctx, "554 5.6.3 BODY=BINARYMIME is only accepted for local recipients\r\n");
+                return;
+            }
+
+            // Defer external recipients while the outbound queue is backed up
+            if (!config.isLocalDomain(domain) && !deliveryService.isAcceptingMessages()) {
+                logger.warn("Outbound queue full, deferring recipient {}", recipient);
+                reply(ctx, "452 4.3.1 Outbound queue full, try again later\r\n");
                 return;
             }
 
@@ -253,9 +357,9 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
             state = State.RCPT;
             logger.debug("Accepted recipient: {} (authenticated={}, local={})",
                     recipient, authenticated, config.isLocalDomain(domain));
-            ctx.writeAndFlush("250 OK\r\n");
+            reply(ctx, "250 OK\r\n");
         } else {
-            ctx.writeAndFlush("501 Syntax error in parameters or arguments\r\n");
+            reply(ctx, "501 Syntax error in parameters or arguments\r\n");
         }
     }
 
@@ -268,101 +372,228 @@ public class SmtpHandler extends SimpleChannelInboundHandler<String> {
 
     private void handleData(ChannelHandlerContext ctx) {
         if (state != State.RCPT) {
-            ctx.writeAndFlush("503 Bad sequence of commands\r\n");
+            reply(ctx, "503 Bad sequence of commands\r\n");
+            return;
+        }
+
+        if (binaryMime) {
+            // BINARYMIME content can only be transferred with BDAT (RFC 3030)
+            reply(ctx, "503 5.5.1 BODY=BINARYMIME requires BDAT\r\n");
             return;
         }
 
         if (session.getRcptTo().isEmpty()) {
-            ctx.writeAndFlush("554 No valid recipients\r\n");
+            reply(ctx, "554 No valid recipients\r\n");
+            return;
+        }
+
+        try {
+            session.startMailData(Paths.get(config.getSpoolPath()));
+        } catch (IOException e) {
+            logger.error("Failed to create spool file", e);
+            reply(ctx, "451 Local error in processing\r\n");
             return;
         }
 
         state = State.DATA_CONTENT;
         session.setDataMode(true); // Update session state as well
-        ctx.writeAndFlush("354 Start mail input; end with <CRLF>.<CRLF>\r\n");
+        decoder(ctx).startData();
+        reply(ctx, "354 Start mail input; end with <CRLF>.<CRLF>\r\n");
     }
 
-    private void handleDataContent(ChannelHandlerContext ctx, String line) {
-        if (line.trim().equals(".")) {
-            // End of data
-            try {
-                String data = session.getMailData();
-                String sender = session.getMailFrom();
-                List<String> recipients = session.getRcptTo();
+    private void handleDataEnd(ChannelHandlerContext ctx) {
+        if (state != State.DATA_CONTENT) {
+            return;
+        }
+        deliverMessage(ctx);
+    }
 
-                // Create MailMessage
-                MailMessage message = new MailMessage(null, sender, recipients, data);
+    /**
+     * Finish the spooled message of the current transaction and route it to its
+     * local and external recipients. The spool and storage I/O runs on the
+     * storage I/O pool; the reply is sent once the message is safely stored.
+     */
+    private void deliverMessage(ChannelHandlerContext ctx) {
+        if (dataFailed) {
+            reply(ctx, "451 Local error in processing\r\n");
+            resetState();
+            return;
+        }
+
+        MailDataSpool spool = session.getMailData();
+        String sender = session.getMailFrom();
+        List<String> recipients = new ArrayList<>(session.getRcptTo());
 
-                // Route recipients to local or external delivery
-                int localCount = 0;
-                int externalCount = 0;
+        // Route recipients to local or external delivery
+        List<String> localRecipients = new ArrayList<>();
+        List<String> externalRecipients = new ArrayList<>();
 
-                for (String recipient : recipients) {
+        for (String recipient : recipients) {
+            String recipientEmail = recipient.replaceAll("[<>]", "");
+            String domain = extractDomain(recipientEmail);
+
+            if (config.isLocalDomain(domain)) {
+                localRecipients.add(recipientEmail);
+            } else {
+                externalRecipients.add(recipientEmail);
+            }
+        }
+
+        // Local copies are saved before the external recipients are queued, and all of them or none are
+        // kept, so a 451 never leaves a copy behind that the client's retry would deliver again
+        CompletableFuture<Map<String, String>> stored = CompletableFuture.supplyAsync(() -> {
+            try {
+                Path content = spool.finish();
+                Map<String, String> saved = Collections.emptyMap();
+                if (!localRecipients.isEmpty()) {
+                    // The content is stored once and shared by all local copies
+                    MailMessage message = new MailMessage(null, sender, recipients, content, spool.getSize());
+                    saved = mailboxStorage.saveMessage(localRecipients, "INBOX", message);
+                    if (saved.size() < localRecipients.size()) {
+                        removeCopies(saved);
+                        throw new IOException("Local delivery failed for some of " + localRecipients);
+                    }
+                }
+                if (!externalRecipients.isEmpty()) {
                     try {
-                        String recipientEmail = recipient.replaceAll("[<>]", "");
-                        String domain = extractDomain(recipientEmail);
-
-                        if (config.isLocalDomain(domain)) {
-                            // Local delivery
-                            mailboxStorage.saveMessage(recipientEmail, "INBOX", message);
-                            logger.info("Local delivery: {} to {}/INBOX", message.getMessageId(), recipientEmail);
-                            localCount++;
-                        } else {
-                            // External delivery
-                            deliverExternalEmail(sender, recipientEmail, data);
-                            logger.info("External delivery queued: {} to {}", message.getMessageId(), recipientEmail);
-                            externalCount++;
-                        }
-                    } catch (Exception e) {
-                        logger.error("Failed to deliver to " + recipient, e);
+                        String deliveryId = deliveryService.queueDelivery(sender, externalRecipients, content);
+                        logger.info("External delivery queued: {} to {}", deliveryId, externalRecipients);
+                    } catch (IOException e) {
+                        removeCopies(saved);
+                        throw e;
                     }
                 }
-
-                logger.info("Message accepted: {} local, {} external", localCount, externalCount);
-                ctx.writeAndFlush("250 OK Message accepted for delivery\r\n");
+                return saved;
+            } catch (IOException | MailStorageException e) {
+                throw new CompletionException(e);
+            }
+        }, mailboxStorage.getIoExecutor());
+
+        delivering = true;
+        inbound.await(ctx, stored, (saved, error) -> {
+            delivering = false;
+            if (error != null) {
+                logger.error("Error processing mail", error);
+                reply(ctx, "451 Local error in processing\r\n");
                 resetState();
-            } catch (Exception e) {
-                logger.error("Error processing mail", e);
-                ctx.writeAndFlush("451 Local error in processing\r\n");
+                return;
             }
-        } else {
-            // Handle dot-stuffing
-            if (line.startsWith("..")) {
-                session.appendMailData(line.substring(1));
-            } else {
-                session.appendMailData(line);
+
+            saved.forEach((recipientEmail, messageId) ->
+                    logger.info("Local delivery: {} to {}/INBOX", messageId, recipientEmail));
+            logger.info("Message accepted: {} local, {} external", saved.size(), externalRecipients.size());
+            reply(ctx, "250 OK Message accepted for delivery\r\n");
+            resetState();
+        });
+    }
+
+    /**
+     * Take back the local copies of a transaction that is answered with an error
+     */
+    private void removeCopies(Map<String, String> saved) {
+        saved.forEach((recipientEmail, messageId) -> {
+            try {
+                mailboxStorage.deleteMessage(recipientEmail, "INBOX", messageId);
+            } catch (MailStorageException e) {
+                logger.error("Failed to remove " + messageId + " from " + recipientEmail + "/INBOX", e);
             }
+        });
+    }
+
+    private void handleDataContent(ChannelHandlerContext ctx, ByteBuf content) {
+        if (state != State.DATA_CONTENT || dataFailed) {
+            return;
+        }
+        try {
+            session.appendMailData(content);
+        } catch (IOException e) {
+            // Keep consuming the content, the failure is reported at end of data
+            logger.error("Failed to write to spool file", e);
+            dataFailed = true;
         }
     }
 
-    private void deliverExternalEmail(String from, String to, String data) {
-        // Run external delivery in separate thread to avoid blocking
-        new Thread(() -> {
-            try {
-                String domain = extractDomain(to);
+    private void handleBdat(ChannelHandlerContext ctx, String args) {
+        long size = SmtpDecoder.parseChunkSize(args);
+        if (size < 0) {
+            // The decoder did not treat any following bytes as a chunk
+            reply(ctx, "501 5.5.4 Syntax: BDAT size [LAST]\r\n");
+            return;
+        }
 
-                // Lookup MX records
-                com.email.server.delivery.MxLookupService mxLookup = new com.email.server.delivery.MxLookupService();
-                List<String> mxHosts = mxLookup.lookupMxRecords(domain);
+        String[] parts = args.split("\\s+");
+        chunkSize = size;
+        chunkRemaining = size;
+        chunkLast = parts.length == 2 && parts[1].equalsIgnoreCase("LAST");
+        chunkError = null;
+        stateBeforeChunk = state;
+
+        if (parts.length > 2 || (parts.length == 2 && !chunkLast)) {
+            chunkError = "501 5.5.4 Syntax: BDAT size [LAST]\r\n";
+        } else if (state == State.RCPT) {
+            try {
+                session.startMailData(Paths.get(config.getSpoolPath()));
+                session.setDataMode(true);
+            } catch (IOException e) {
+                logger.error("Failed to create spool file", e);
+                chunkError = "451 Local error in processing\r\n";
+            }
+        } else if (state != State.BDAT) {
+            // The chunk must still be consumed before replying
+            chunkError = "503 5.5.1 Bad sequence of commands\r\n";
+        }
 
-                // Try each MX host in order
-                com.email.server.delivery.ExternalSmtpClient smtpClient = new com.email.server.delivery.ExternalSmtpClient();
-                for (String mxHost : mxHosts) {
-                    if (smtpClient.sendEmail(mxHost, from, to, data)) {
-                        logger.info("Successfully delivered external email to {} via {}", to, mxHost);
-                        return;
-                    }
-                }
+        state = State.BDAT_CONTENT;
+        if (chunkRemaining == 0) {
+            completeChunk(ctx);
+        }
+    }
 
-                logger.error("Failed to deliver external email to {} after trying {} MX hosts", to, mxHosts.size());
-            } catch (Exception e) {
-                logger.error("Error in external delivery to {}: {}", to, e.getMessage());
+    private void handleChunkContent(ChannelHandlerContext ctx, ByteBuf content) {
+        chunkRemaining -= content.readableBytes();
+        if (chunkError == null && !dataFailed) {
+            try {
+                session.appendMailData(content);
+            } catch (IOException e) {
+                logger.error("Failed to write to spool file", e);
+                dataFailed = true;
             }
-        }).start();
+        }
+        if (chunkRemaining == 0) {
+            completeChunk(ctx);
+        }
+    }
+
+    private void completeChunk(ChannelHandlerContext ctx) {
+        if (chunkError != null) {
+            state = stateBeforeChunk;
+            reply(ctx, chunkError);
+            return;
+        }
+
+        if (chunkLast) {
+            deliverMessage(ctx);
+        } else {
+            state = State.BDAT;
+            reply(ctx, "250 2.0.0 " + chunkSize + " octets received\r\n");
+        }
+    }
+
+    /**
+     * Queue a reply without flushing; see {@link #channelReadComplete}
+     */
+    private void reply(ChannelHandlerContext ctx, String response) {
+        ctx.write(response);
+    }
+
+    private SmtpDecoder decoder(ChannelHandlerContext ctx) {
+        return ctx.pipeline().get(SmtpDecoder.class);
     }
 
     private void resetState() {
         state = State.GREET;
+        dataFailed = false;
+        binaryMime = false;
         session.resetTransaction();
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package com.email.server.smtp;
+
+import com.email.server.command.SmtpCommand;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A single SMTP command line as produced by {@link SmtpDecoder}
+ */
+public final class SmtpRequest {
+    private static final Map<SmtpCommand, SmtpRequest> NO_ARGUMENT = new EnumMap<>(SmtpCommand.class);
+
+    static {
+        for (SmtpCommand command : SmtpCommand.values()) {
+            NO_ARGUMENT.put(command, new SmtpRequest(command, ""));
+        }
+    }
+
+    private final SmtpCommand command;
+    private final String argument;
+
+    private SmtpRequest(SmtpCommand command, String argument) {
+        this.command = command;
+        this.argument = argument;
+    }
+
+    /**
+     * Requests without an argument are shared instances, so commands such as
+     * DATA, RSET or QUIT do not allocate at all
+     */
+    public static SmtpRequest of(SmtpCommand command, String argument) {
+        if (argument == null || argument.isEmpty()) {
+            return NO_ARGUMENT.get(command);
+        }
+        return new SmtpRequest(command, argument);
+    }
+
+    public SmtpCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the trimmed text after the verb, or the whole trimmed line for
+     *         {@link SmtpCommand#UNKNOWN} requests
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    @Override
+    public String toString() {
+        return "SmtpRequest{command=" + command + ", argument='" + argument + "'}";
+    }
+}
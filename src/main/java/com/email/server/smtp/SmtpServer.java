@@ -5,25 +5,22 @@ import com.email.server.session.SessionManager;
 import com.email.server.mailbox.MailboxStorage;
 import com.email.server.mailbox.LocalMailboxStorage;
 import com.email.server.delivery.MailDeliveryService;
-import com.email.server.delivery.InMemoryDeliveryService;
+import com.email.server.delivery.JournalDeliveryService;
 import com.email.server.user.FileBasedUserRepository;
 import com.email.server.user.UserRepository;
+import com.email.server.transport.TransportRuntime;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class SmtpServer {
@@ -34,25 +31,33 @@ public class SmtpServer {
     private final MailboxStorage mailboxStorage;
     private final MailDeliveryService deliveryService;
     private final UserRepository userRepository;
-    private final EventLoopGroup bossGroup;
-    private final EventLoopGroup workerGroup;
-    private final io.netty.util.concurrent.EventExecutorGroup businessGroup;
-    private ChannelFuture channelFuture;
+    private final TransportRuntime runtime;
+    // Created for this server alone, so stopped along with it
+    private final boolean ownsRuntime;
+    private List<Channel> serverChannels = Collections.emptyList();
 
     public SmtpServer(ServerConfig config) {
         this(config, new FileBasedUserRepository(config.getConfig()),
-                new LocalMailboxStorage(config.getMailboxesPath()));
+                new LocalMailboxStorage(config.getMailboxesPath(), config.getStorageIoThreads()));
     }
 
     public SmtpServer(ServerConfig config, UserRepository userRepository, MailboxStorage mailboxStorage) {
+        this(config, null, userRepository, mailboxStorage);
+    }
+
+    /**
+     * @param runtime shared with the other servers of the process, or null
+     * for threads of this server's own
+     */
+    public SmtpServer(ServerConfig config, TransportRuntime runtime, UserRepository userRepository,
+            MailboxStorage mailboxStorage) {
         this.config = config;
         this.userRepository = userRepository;
         this.mailboxStorage = mailboxStorage;
         this.sessionManager = new SessionManager(config.getMaxConnections());
-        this.deliveryService = new InMemoryDeliveryService();
-        this.bossGroup = new NioEventLoopGroup(config.getIoThreads());
-        this.workerGroup = new NioEventLoopGroup(config.getWorkerThreads());
-        this.businessGroup = new io.netty.util.concurrent.DefaultEventExecutorGroup(config.getBusinessThreads());
+        this.ownsRuntime = runtime == null;
+        this.runtime = ownsRuntime ? new TransportRuntime(config) : runtime;
+        this.deliveryService = new JournalDeliveryService(config, this.runtime);
     }
 
     public MailboxStorage getMailboxStorage() {
@@ -64,12 +69,12 @@ public class SmtpServer {
             // Initialize storage
             mailboxStorage.initialize();
 
-            // Set up delivery service with storage reference (will be updated later)
-            // ((InMemoryDeliveryService) deliveryService).setMailStorage(mailboxStorage);
+            // Recover queued messages before accepting new ones
+            deliveryService.start();
 
             ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+            bootstrap.group(runtime.getBossGroup(), runtime.getWorkerGroup())
+                    .channel(runtime.getTransport().serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -79,27 +84,25 @@ public class SmtpServer {
                             pipeline.addLast(new IdleStateHandler(
                                     config.getConnectionTimeout(), 0, 0, TimeUnit.SECONDS));
 
-                            // Add frame decoder for line-based protocol
-                            pipeline.addLast(new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
+                            // Decode command lines and message content straight from the byte stream
+                            pipeline.addLast(new SmtpDecoder());
 
-                            // Add string codec
-                            pipeline.addLast(new StringDecoder());
+                            // Add string encoder for replies
                             pipeline.addLast(new StringEncoder());
 
                             // Add SMTP handler
-                            pipeline.addLast(businessGroup,
-                                    new SmtpHandler(sessionManager, mailboxStorage, config,
-                                            userRepository));
+                            pipeline.addLast(new SmtpHandler(sessionManager, mailboxStorage, deliveryService,
+                                    config, userRepository));
                         }
                     });
 
             // Bind and start to accept incoming connections
-            channelFuture = bootstrap.bind(config.getBindAddress(), config.getSmtpPort()).sync();
+            serverChannels = runtime.getTransport().bind(bootstrap, config.getBindAddress(), config.getSmtpPort(),
+                    runtime.getAcceptors());
 
-            // Start delivery service
-            deliveryService.start();
-
-            logger.info("SMTP server started on {}:{}", config.getBindAddress(), config.getSmtpPort());
+            logger.info("SMTP server started on {}:{} ({}, {} acceptors)",
+                    config.getBindAddress(), config.getSmtpPort(), runtime.getTransport(),
+                    serverChannels.size());
         } catch (InterruptedException e) {
             logger.error("Failed to start SMTP server", e);
             throw e;
@@ -110,8 +113,8 @@ public class SmtpServer {
         logger.info("Stopping SMTP server...");
 
         try {
-            if (channelFuture != null) {
-                channelFuture.channel().close().sync();
+            for (Channel channel : serverChannels) {
+                channel.close().sync();
             }
         } catch (InterruptedException e) {
             logger.error("Error closing server channel", e);
@@ -129,9 +132,9 @@ public class SmtpServer {
             logger.error("Error shutting down mail storage", e);
         }
 
-        bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
-        businessGroup.shutdownGracefully();
+        if (ownsRuntime) {
+            runtime.shutdown();
+        }
 
         logger.info("SMTP server stopped");
     }
@@ -1,5 +1,12 @@
 package com.email.server.storage;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.util.HashSet;
 import java.util.List;
@@ -10,9 +17,14 @@ public class MailMessage {
     private final String from;
     private final List<String> recipients;
     private final String data;
+    private final Path contentPath;
     private final LocalDateTime receivedTime;
     private final long size;
     private final Set<String> flags;
+    private boolean wireSafe;
+    private long uid;
+    private long modSeq;
+    private long headerLength;
 
     public MailMessage(String messageId, String from, List<String> recipients, String data) {
         this(messageId, from, recipients, data, LocalDateTime.now());
@@ -24,11 +36,35 @@ public class MailMessage {
         this.from = from;
         this.recipients = recipients;
         this.data = data;
+        this.contentPath = null;
         this.receivedTime = receivedTime;
         this.size = data != null ? data.length() : 0;
         this.flags = new HashSet<>();
     }
 
+    /**
+     * Create a message whose content lives in a file (e.g. an SMTP spool file)
+     * instead of being held in memory
+     */
+    public MailMessage(String messageId, String from, List<String> recipients, Path contentPath, long size) {
+        this(messageId, from, recipients, contentPath, size, LocalDateTime.now());
+    }
+
+    /**
+     * Create a stored message whose content is only read when it is requested
+     */
+    public MailMessage(String messageId, String from, List<String> recipients, Path contentPath, long size,
+            LocalDateTime receivedTime) {
+        this.messageId = messageId;
+        this.from = from;
+        this.recipients = recipients;
+        this.data = null;
+        this.contentPath = contentPath;
+        this.receivedTime = receivedTime;
+        this.size = size;
+        this.flags = new HashSet<>();
+    }
+
     public String getMessageId() {
         return messageId;
     }
@@ -42,7 +78,35 @@ public class MailMessage {
     }
 
     public String getData() {
-        return data;
+        if (data != null || contentPath == null) {
+            return data;
+        }
+        try {
+            return StandardCharsets.UTF_8.decode(getContent()).toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read message content: " + contentPath, e);
+        }
+    }
+
+    /**
+     * Get the raw message content. File content is memory-mapped on each call, so
+     * nothing is copied onto the heap until the buffer is actually read.
+     */
+    public ByteBuffer getContent() throws IOException {
+        if (contentPath == null) {
+            byte[] bytes = data != null ? data.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        try (FileChannel channel = FileChannel.open(contentPath, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * @return the file holding the message content, or null if the content is in memory
+     */
+    public Path getContentPath() {
+        return contentPath;
     }
 
     public LocalDateTime getReceivedTime() {
@@ -64,6 +128,50 @@ public class MailMessage {
         }
     }
 
+    /**
+     * @return true if the content can be sent as-is in a POP3 multi-line response
+     */
+    public boolean isWireSafe() {
+        return wireSafe;
+    }
+
+    public void setWireSafe(boolean wireSafe) {
+        this.wireSafe = wireSafe;
+    }
+
+    /**
+     * @return the IMAP UID of a mailbox copy within its folder, 0 otherwise
+     */
+    public long getUid() {
+        return uid;
+    }
+
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    /**
+     * @return the modification sequence of the last change to a mailbox copy, 0 otherwise
+     */
+    public long getModSeq() {
+        return modSeq;
+    }
+
+    public void setModSeq(long modSeq) {
+        this.modSeq = modSeq;
+    }
+
+    /**
+     * @return the length of the header including the blank line ending it, 0 if unknown
+     */
+    public long getHeaderLength() {
+        return headerLength;
+    }
+
+    public void setHeaderLength(long headerLength) {
+        this.headerLength = headerLength;
+    }
+
     @Override
     public String toString() {
         return "MailMessage{" +
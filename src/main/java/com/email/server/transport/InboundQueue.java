@@ -0,0 +1,103 @@
+package com.email.server.transport;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps the commands of a connection in order while one of them waits for
+ * storage.
+ *
+ * Protocol handlers run on the channel's event loop and hand blocking storage
+ * calls to the storage I/O pool. While such a call is outstanding the channel
+ * stops reading, and commands the client already pipelined are held back here
+ * and handled once the reply to the outstanding one has been written.
+ *
+ * Only used from the channel's event loop.
+ */
+public class InboundQueue {
+    /**
+     * Handles one inbound message, as {@code channelRead0} of the handler does
+     */
+    public interface Handler {
+        void handle(ChannelHandlerContext ctx, Object msg) throws Exception;
+    }
+
+    private final Handler handler;
+    private final ArrayDeque<Object> held = new ArrayDeque<>();
+    private boolean waiting;
+
+    public InboundQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Hold a message back if a command is outstanding. A held message is
+     * retained, the caller still releases its own reference.
+     *
+     * @return true if the message was held and must not be handled now
+     */
+    public boolean hold(Object msg) {
+        if (!waiting) {
+            return false;
+        }
+        held.add(ReferenceCountUtil.retain(msg));
+        return true;
+    }
+
+    /**
+     * Continue a command once the future completes: {@code then} runs on the
+     * event loop, after which the commands held meanwhile are handled
+     */
+    public <T> void await(ChannelHandlerContext ctx, CompletableFuture<T> future,
+            BiConsumer<? super T, ? super Throwable> then) {
+        waiting = true;
+        ctx.channel().config().setAutoRead(false);
+        future.whenComplete((result, error) -> {
+            try {
+                ctx.executor().execute(() -> resume(ctx, result, error, then));
+            } catch (RejectedExecutionException e) {
+                // Event loop shut down, the connection is gone
+            }
+        });
+    }
+
+    /**
+     * Drop the held messages, when the connection closes
+     */
+    public void clear() {
+        Object msg;
+        while ((msg = held.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private <T> void resume(ChannelHandlerContext ctx, T result, Throwable error,
+            BiConsumer<? super T, ? super Throwable> then) {
+        waiting = false;
+        try {
+            then.accept(result, error);
+        } catch (RuntimeException e) {
+            ctx.fireExceptionCaught(e);
+        }
+
+        Object msg;
+        while (!waiting && (msg = held.poll()) != null) {
+            try {
+                handler.handle(ctx, msg);
+            } catch (Exception e) {
+                ctx.fireExceptionCaught(e);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+        ctx.flush();
+        if (!waiting && ctx.channel().isActive()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+}
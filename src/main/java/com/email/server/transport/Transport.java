@@ -0,0 +1,99 @@
+package com.email.server.transport;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Netty transport the servers and the outbound client run on.
+ *
+ * Native epoll, available on Linux only, saves a copy of the ready set and a
+ * wakeup per event loop iteration compared to NIO and supports SO_REUSEPORT,
+ * which lets several acceptor threads each bind their own socket to the same
+ * port so the kernel spreads new connections across them.
+ */
+public enum Transport {
+    NIO,
+    EPOLL;
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    /**
+     * Select the transport named in the configuration: "epoll", "nio" or
+     * "auto" for epoll where it is available. Falls back to NIO when epoll was
+     * asked for but cannot be loaded.
+     */
+    public static Transport select(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "nio":
+                return NIO;
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    logger.warn("Epoll transport unavailable, falling back to NIO: {}",
+                            Epoll.unavailabilityCause().toString());
+                    return NIO;
+                }
+                return EPOLL;
+            case "auto":
+                return Epoll.isAvailable() ? EPOLL : NIO;
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return this == EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return this == EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public Class<? extends Channel> socketChannelClass() {
+        return this == EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Bind a listener set up with {@link #serverChannelClass()}, with one
+     * socket per acceptor sharing the port through SO_REUSEPORT when the
+     * transport supports it and with a single socket otherwise
+     *
+     * @return the bound server channels
+     */
+    public List<Channel> bind(ServerBootstrap bootstrap, String host, int port, int acceptors)
+            throws InterruptedException {
+        int sockets = 1;
+        if (this == EPOLL && acceptors > 1) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            sockets = acceptors;
+        }
+
+        List<Channel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < sockets; i++) {
+                channels.add(bootstrap.bind(host, port).sync().channel());
+            }
+        } catch (Exception e) {
+            for (Channel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        return channels;
+    }
+}
@@ -0,0 +1,70 @@
+package com.email.server.transport;
+
+import com.email.server.config.ServerConfig;
+import io.netty.channel.EventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loops shared by all servers of a process.
+ *
+ * One acceptor group and one worker group serve the SMTP, POP3 and IMAP
+ * listeners and outbound delivery alike. Protocol handlers run on the worker
+ * event loops themselves; anything that waits for the disk goes through the
+ * asynchronous storage calls, see {@link InboundQueue}.
+ */
+public class TransportRuntime {
+    private static final Logger logger = LoggerFactory.getLogger(TransportRuntime.class);
+
+    private final Transport transport;
+    private final int acceptors;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+
+    public TransportRuntime(ServerConfig config) {
+        this.transport = Transport.select(config.getTransport());
+        this.acceptors = config.isReusePort() ? config.getIoThreads() : 1;
+        this.bossGroup = transport.newEventLoopGroup(config.getIoThreads());
+        this.workerGroup = transport.newEventLoopGroup(config.getWorkerThreads());
+        logger.info("Transport runtime started on {} with {} io and {} worker threads", transport,
+                config.getIoThreads(), config.getWorkerThreads());
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return listening sockets to bind per port
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public EventLoopGroup getBossGroup() {
+        return bossGroup;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    /**
+     * Stop all threads, once every server using the runtime has stopped
+     */
+    public void shutdown() {
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    /**
+     * Wait for the threads to finish after {@link #shutdown()}
+     */
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        bossGroup.awaitTermination(timeout, unit);
+        workerGroup.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,130 @@
+package com.email.server.delivery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DeliveryJournalTest {
+
+    private Path tempDir;
+    private Path journalDir;
+    private DeliveryJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("delivery-journal");
+        journalDir = tempDir.resolve("queue");
+        journal = new DeliveryJournal(journalDir, 1024);
+        journal.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+        try (Stream<Path> files = Files.walk(tempDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testPendingMessagesAreRecoveredOnOpen() throws IOException {
+        DeliveryTask task = journal.append("sender@example.com",
+                Arrays.asList("a@remote.test", "b@remote.test"), content("Subject: one\r\n\r\nBody\r\n"));
+        journal.complete(task, "a@remote.test");
+        journal.close();
+
+        journal = new DeliveryJournal(journalDir, 1024);
+        List<DeliveryTask> recovered = journal.open();
+
+        assertEquals(1, recovered.size());
+        DeliveryTask restored = recovered.get(0);
+        assertEquals(task.getMessageId(), restored.getMessageId());
+        assertEquals("sender@example.com", restored.getFrom());
+        assertEquals(Collections.singletonList("b@remote.test"), restored.getPendingRecipients());
+        assertEquals("Subject: one\r\n\r\nBody\r\n", journal.mapContent(restored).toString(StandardCharsets.UTF_8));
+
+        // Ids keep increasing across restarts
+        DeliveryTask next = journal.append("sender@example.com", Collections.singletonList("c@remote.test"),
+                content("x\r\n"));
+        assertNotEquals(task.getMessageId(), next.getMessageId());
+    }
+
+    @Test
+    public void testDeliveredSegmentsAreDeleted() throws IOException {
+        // Each message fills a segment on its own
+        char[] filler = new char[2048];
+        Arrays.fill(filler, 'x');
+        Path large = content(new String(filler) + "\r\n");
+
+        DeliveryTask first = journal.append("s@example.com", Collections.singletonList("a@remote.test"), large);
+        DeliveryTask second = journal.append("s@example.com", Collections.singletonList("b@remote.test"), large);
+        DeliveryTask third = journal.append("s@example.com", Collections.singletonList("c@remote.test"), large);
+        assertEquals(3, segmentCount());
+
+        // A pending older segment keeps the newer ones around
+        journal.complete(second, "b@remote.test");
+        assertEquals(3, segmentCount());
+
+        journal.complete(first, "a@remote.test");
+        assertEquals(1, segmentCount());
+
+        journal.close();
+        journal = new DeliveryJournal(journalDir, 1024);
+        List<DeliveryTask> recovered = journal.open();
+        assertEquals(1, recovered.size());
+        assertEquals(third.getMessageId(), recovered.get(0).getMessageId());
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() throws IOException {
+        DeliveryTask task = journal.append("s@example.com", Collections.singletonList("a@remote.test"),
+                content("Body\r\n"));
+        journal.close();
+
+        Path segment = segments().get(segments().size() - 1);
+        long intact = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2, 3 }));
+        }
+
+        journal = new DeliveryJournal(journalDir, 1024);
+        List<DeliveryTask> recovered = journal.open();
+
+        assertEquals(1, recovered.size());
+        assertEquals(task.getMessageId(), recovered.get(0).getMessageId());
+        assertEquals(intact, Files.size(segment));
+    }
+
+    private Path content(String data) throws IOException {
+        Path file = Files.createTempFile(tempDir, "spool-", ".eml");
+        Files.write(file, data.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(journalDir)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("segment-"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private int segmentCount() throws IOException {
+        return segments().size();
+    }
+}
@@ -0,0 +1,40 @@
+package com.email.server.delivery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DeliveryPriorityTest {
+
+    @Test
+    public void testMailingListsAreBulk() {
+        assertEquals(DeliveryPriority.BULK, classify("Subject: News\r\nList-Unsubscribe: <mailto:u@x.test>\r\n\r\n", 1));
+        assertEquals(DeliveryPriority.BULK, classify("Precedence: bulk\r\nSubject: News\r\n\r\n", 1));
+        assertEquals(DeliveryPriority.BULK, classify("Subject: Everyone\r\n\r\n", 100));
+    }
+
+    @Test
+    public void testSenderPriorityHeadersDoNotPromote() {
+        assertEquals(DeliveryPriority.NORMAL, classify("X-Priority: 1 (Highest)\r\nSubject: Reset\r\n\r\n", 1));
+        assertEquals(DeliveryPriority.NORMAL, classify("Importance: High\nSubject: Reset\n\n", 1));
+    }
+
+    @Test
+    public void testOnlyHeadersCount() {
+        ByteBuf content = buffer("Subject: Hello\r\n\r\nPrecedence: bulk\r\n");
+        assertEquals(DeliveryPriority.NORMAL, DeliveryPriority.classify(content, 1));
+        assertEquals(0, content.readerIndex());
+    }
+
+    private static DeliveryPriority classify(String message, int recipients) {
+        return DeliveryPriority.classify(buffer(message), recipients);
+    }
+
+    private static ByteBuf buffer(String message) {
+        return Unpooled.copiedBuffer(message, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,62 @@
+package com.email.server.delivery;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DomainThrottleTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testTokensRefillAtTheConfiguredRate() {
+        DomainThrottle throttle = new DomainThrottle(settings(4, 2.0, 2), 0);
+
+        assertEquals(0, throttle.tryAcquire(0));
+        assertEquals(0, throttle.tryAcquire(0));
+        // Bucket empty, the next token comes in half a second
+        assertEquals(SECOND / 2, throttle.tryAcquire(0));
+        assertEquals(0, throttle.tryAcquire(SECOND / 2));
+    }
+
+    @Test
+    public void testDeferralHalvesConcurrencyAndBacksOff() {
+        DomainThrottle throttle = new DomainThrottle(settings(8, 0, 1), 0);
+
+        assertEquals(SECOND, throttle.onThrottled(0));
+        assertEquals(4, throttle.getLimit());
+        assertEquals(SECOND, throttle.tryAcquire(0));
+
+        assertEquals(2 * SECOND, throttle.onThrottled(SECOND));
+        assertEquals(2, throttle.getLimit());
+        assertEquals(4 * SECOND, throttle.onThrottled(3 * SECOND));
+        // Capped at the maximum backoff
+        assertEquals(5 * SECOND, throttle.onThrottled(7 * SECOND));
+        assertEquals(1, throttle.getLimit());
+        assertFalse(throttle.isIdle(7 * SECOND));
+    }
+
+    @Test
+    public void testSuccessesRestoreConcurrency() {
+        DomainThrottle throttle = new DomainThrottle(settings(4, 0, 1), 0);
+        throttle.onThrottled(0);
+        assertEquals(2, throttle.getLimit());
+
+        throttle.onSuccess();
+        assertEquals(2, throttle.getLimit());
+        throttle.onSuccess();
+        assertEquals(3, throttle.getLimit());
+        for (int i = 0; i < 3; i++) {
+            throttle.onSuccess();
+        }
+        assertEquals(4, throttle.getLimit());
+        assertEquals(SECOND, throttle.onThrottled(SECOND));
+        assertTrue(new DomainThrottle(settings(4, 0, 1), 0).isIdle(0));
+    }
+
+    private static DomainThrottle.Settings settings(int maxConnections, double rate, int burst) {
+        return new DomainThrottle.Settings(maxConnections, rate, burst, SECOND, 5 * SECOND);
+    }
+}
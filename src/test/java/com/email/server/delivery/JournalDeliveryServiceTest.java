@@ -0,0 +1,372 @@
+package com.email.server.delivery;
+
+import com.email.server.config.ServerConfig;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class JournalDeliveryServiceTest {
+
+    private Path tempDir;
+    private StubSmtpServer remote;
+    private JournalDeliveryService service;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("delivery-service");
+        remote = new StubSmtpServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (service != null) {
+            service.stop();
+        }
+        remote.close();
+        try (Stream<Path> files = Files.walk(tempDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testMessagesAreDeliveredWithBoundedConcurrency() throws Exception {
+        remote.dataDelayMillis = 100;
+        startService(10, 2, 100);
+
+        String content = "Subject: Hello\r\n\r\n.leading dot\r\nBody\r\n";
+        for (int i = 0; i < 6; i++) {
+            service.queueDelivery("sender@example.com", Collections.singletonList("user" + i + "@remote.test"),
+                    content(content));
+        }
+
+        await(() -> service.getStats().getTotalDelivered() == 6);
+        assertEquals(6, remote.messages.size());
+        assertEquals(content, remote.messages.get(0));
+        assertTrue("At most 2 connections per domain, saw " + remote.maxConcurrent.get(),
+                remote.maxConcurrent.get() <= 2);
+    }
+
+    @Test
+    public void testConnectionsAreReusedWithRset() throws Exception {
+        startService(10, 1, 100);
+
+        for (int i = 0; i < 5; i++) {
+            service.queueDelivery("sender@example.com", Collections.singletonList("user" + i + "@remote.test"),
+                    content("Subject: Hello " + i + "\r\n\r\nBody\r\n"));
+        }
+
+        await(() -> service.getStats().getTotalDelivered() == 5);
+        assertEquals(1, remote.connections.get());
+        assertEquals(4, remote.resets.get());
+    }
+
+    @Test
+    public void testRecipientsAreGroupedByDomain() throws Exception {
+        startService(10, 2, 100);
+
+        service.queueDelivery("sender@example.com", Arrays.asList("a@remote.test", "b@other.test",
+                "nobody@remote.test", "c@remote.test"), content("Subject: List\r\n\r\nBody\r\n"));
+
+        await(() -> service.getStats().getTotalFailed() == 1);
+        assertEquals(2, remote.messages.size());
+        List<Integer> counts = new ArrayList<>(remote.recipientCounts);
+        Collections.sort(counts);
+        // nobody@ is refused at RCPT, the other two share one transaction
+        assertEquals(Arrays.asList(1, 2), counts);
+        assertEquals(0, service.getStats().getTotalRetries());
+    }
+
+    @Test
+    public void testRejectedRecipientIsNotRetried() throws Exception {
+        startService(10, 2, 100);
+
+        service.queueDelivery("sender@example.com", Collections.singletonList("nobody@remote.test"),
+                content("Subject: Hello\r\n\r\nBody\r\n"));
+
+        await(() -> service.getStats().getTotalFailed() == 1);
+        assertEquals(0, service.getStats().getTotalRetries());
+        assertTrue(remote.messages.isEmpty());
+    }
+
+    @Test
+    public void testTransientFailuresAreRetriedWithBackoff() throws Exception {
+        remote.transientFailures.set(2);
+        startService(10, 2, 100);
+
+        service.queueDelivery("sender@example.com", Collections.singletonList("user@remote.test"),
+                content("Subject: Hello\r\n\r\nBody\r\n"));
+
+        await(() -> service.getStats().getTotalDelivered() == 1);
+        assertEquals(2, service.getStats().getTotalRetries());
+        assertEquals(1, remote.messages.size());
+    }
+
+    @Test
+    public void testRetriesStopAfterTheSchedule() throws Exception {
+        remote.transientFailures.set(Integer.MAX_VALUE);
+        startService(10, 2, 100);
+
+        service.queueDelivery("sender@example.com", Collections.singletonList("user@remote.test"),
+                content("Subject: Hello\r\n\r\nBody\r\n"));
+
+        await(() -> service.getStats().getTotalFailed() == 1);
+        assertEquals(3, service.getStats().getTotalRetries());
+        assertTrue(remote.messages.isEmpty());
+    }
+
+    @Test
+    public void testTransactionsToADomainAreRateLimited() throws Exception {
+        startService(10, 10, 100, 10);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            service.queueDelivery("sender@example.com", Collections.singletonList("user" + i + "@remote.test"),
+                    content("Subject: Hello " + i + "\r\n\r\nBody\r\n"));
+        }
+
+        await(() -> service.getStats().getTotalDelivered() == 4);
+        // One at once, then one every 100 ms
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void testBulkMailDoesNotHoldUpOtherMail() throws Exception {
+        remote.dataDelayMillis = 50;
+        // The first message waits until everything is queued, however slow the journal is to sync
+        remote.release = new CountDownLatch(1);
+        startService(10, 1, 100);
+
+        for (int i = 0; i < 10; i++) {
+            service.queueDelivery("news@example.com", Collections.singletonList("user" + i + "@remote.test"),
+                    content("List-Unsubscribe: <mailto:leave@example.com>\r\nSubject: News " + i
+                            + "\r\n\r\nBody\r\n"));
+        }
+        service.queueDelivery("accounts@example.com", Collections.singletonList("user@remote.test"),
+                content("Subject: Password reset\r\n\r\nBody\r\n"));
+        remote.release.countDown();
+
+        await(() -> service.getStats().getTotalDelivered() == 11);
+        assertEquals(1, remote.maxConcurrent.get());
+        int position = 0;
+        while (!remote.messages.get(position).startsWith("Subject: Password reset")) {
+            position++;
+        }
+        // Only the bulk message already on the wire goes first
+        assertTrue("Reset was message " + position, position <= 1);
+    }
+
+    @Test
+    public void testQueueFullStopsAcceptingMessages() throws Exception {
+        remote.release = new CountDownLatch(1);
+        startService(10, 2, 1);
+
+        service.queueDelivery("sender@example.com", Collections.singletonList("user@remote.test"),
+                content("Subject: Hello\r\n\r\nBody\r\n"));
+
+        assertFalse(service.isAcceptingMessages());
+        try {
+            service.queueDelivery("sender@example.com", Collections.singletonList("user@remote.test"),
+                    content("Subject: Again\r\n\r\nBody\r\n"));
+            fail("Queue should be full");
+        } catch (IOException expected) {
+            // Deferred until the backlog drains
+        }
+
+        remote.release.countDown();
+        await(() -> service.isAcceptingMessages());
+    }
+
+    private void startService(int maxConnections, int maxPerDomain, int maxQueued) {
+        startService(maxConnections, maxPerDomain, maxQueued, 0);
+    }
+
+    private void startService(int maxConnections, int maxPerDomain, int maxQueued, double domainRate) {
+        Map<String, Object> configMap = new HashMap<>();
+        configMap.put("smtp.port", 2525);
+        configMap.put("smtp.bind-address", "127.0.0.1");
+        configMap.put("pop3.port", 110);
+        configMap.put("pop3.bind-address", "127.0.0.1");
+        configMap.put("imap.port", 143);
+        configMap.put("imap.bind-address", "127.0.0.1");
+        configMap.put("storage.mail-path", tempDir.toString());
+        configMap.put("storage.queue-path", tempDir.resolve("queue").toString());
+        configMap.put("server.io-threads", 1);
+        configMap.put("server.worker-threads", 2);
+        configMap.put("server.max-connections", 10);
+        configMap.put("server.connection-timeout", 30);
+        configMap.put("server.name", "localhost");
+        configMap.put("delivery.max-connections", maxConnections);
+        configMap.put("delivery.max-connections-per-domain", maxPerDomain);
+        configMap.put("delivery.max-queued", maxQueued);
+        configMap.put("delivery.timeout", 10);
+        configMap.put("delivery.smtp-port", remote.getPort());
+        configMap.put("delivery.retry-initial-delay", "100ms");
+        configMap.put("delivery.retry-max-delay", "400ms");
+        configMap.put("delivery.max-retries", 3);
+        configMap.put("delivery.domain-rate", domainRate);
+        configMap.put("delivery.domain-burst", 1);
+        configMap.put("delivery.domain-backoff", "50ms");
+
+        MxLookupService mxLookupService = new MxLookupService() {
+            @Override
+            public CompletableFuture<List<MxHost>> resolveAsync(String domain) {
+                return CompletableFuture.completedFuture(Collections.singletonList(
+                        new MxHost("127.0.0.1", 10, Collections.singletonList(InetAddress.getLoopbackAddress()))));
+            }
+        };
+        service = new JournalDeliveryService(new ServerConfig(ConfigFactory.parseMap(configMap)), null,
+                mxLookupService);
+        service.start();
+    }
+
+    private Path content(String data) throws IOException {
+        Path file = Files.createTempFile(tempDir, "spool-", ".eml");
+        Files.write(file, data.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in time");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Remote mail exchanger that accepts everything but nobody@, recording the
+     * unstuffed content of each message. The first {@code transientFailures}
+     * recipients are deferred with 451.
+     */
+    private static final class StubSmtpServer implements AutoCloseable {
+        final List<String> messages = new CopyOnWriteArrayList<>();
+        final List<Integer> recipientCounts = new CopyOnWriteArrayList<>();
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger resets = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final AtomicInteger transientFailures = new AtomicInteger();
+        volatile long dataDelayMillis;
+        volatile CountDownLatch release;
+
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        StubSmtpServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        sockets.add(socket);
+                        new Thread(() -> serve(socket)).start();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket) {
+            connections.incrementAndGet();
+            int current = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(current, Math::max);
+            try (Socket s = socket;
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+                OutputStream out = s.getOutputStream();
+                send(out, "220 stub ESMTP");
+                String line;
+                int recipients = 0;
+                while ((line = in.readLine()) != null) {
+                    String command = line.toUpperCase();
+                    if (command.startsWith("EHLO")) {
+                        send(out, "250-stub\r\n250 PIPELINING");
+                    } else if (command.startsWith("RCPT") && command.contains("NOBODY@")) {
+                        send(out, "550 5.1.1 No such user");
+                    } else if (command.startsWith("RCPT") && transientFailures.getAndDecrement() > 0) {
+                        send(out, "451 4.3.0 Try again later");
+                    } else if (command.startsWith("RCPT")) {
+                        recipients++;
+                        send(out, "250 OK");
+                    } else if (command.equals("DATA")) {
+                        send(out, "354 Go ahead");
+                        List<String> lines = new ArrayList<>();
+                        while (!(line = in.readLine()).equals(".")) {
+                            lines.add(line.startsWith(".") ? line.substring(1) : line);
+                        }
+                        if (release != null) {
+                            release.await(10, TimeUnit.SECONDS);
+                        }
+                        Thread.sleep(dataDelayMillis);
+                        messages.add(String.join("\r\n", lines) + "\r\n");
+                        recipientCounts.add(recipients);
+                        send(out, "250 2.0.0 Queued");
+                    } else if (command.equals("RSET")) {
+                        resets.incrementAndGet();
+                        recipients = 0;
+                        send(out, "250 OK");
+                    } else if (command.equals("QUIT")) {
+                        send(out, "221 Bye");
+                        break;
+                    } else {
+                        send(out, "250 OK");
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection dropped
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+        private static void send(OutputStream out, String reply) throws IOException {
+            out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.email.server.delivery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MxLookupServiceTest {
+
+    private StubDnsServer dns;
+    private MxLookupService service;
+
+    @Before
+    public void setUp() throws Exception {
+        dns = new StubDnsServer();
+        dns.soa(new SOARecord(name("test."), DClass.IN, 3600, name("ns.test."), name("admin.test."),
+                1, 3600, 600, 86400, 120));
+        service = new MxLookupService(dns.resolver());
+    }
+
+    @After
+    public void tearDown() {
+        dns.close();
+    }
+
+    @Test
+    public void testAnswersAreCachedForTheirTtl() throws Exception {
+        dns.answer(new MXRecord(name("example.test."), DClass.IN, 300, 20, name("mx2.example.test.")));
+        dns.answer(new MXRecord(name("example.test."), DClass.IN, 300, 10, name("mx1.example.test.")));
+        dns.answer(new ARecord(name("mx1.example.test."), DClass.IN, 300, InetAddress.getByName("192.0.2.1")));
+        dns.answer(new ARecord(name("mx2.example.test."), DClass.IN, 300, InetAddress.getByName("192.0.2.2")));
+
+        List<MxHost> hosts = service.resolve("example.test");
+        assertEquals(2, hosts.size());
+        assertEquals("mx1.example.test", hosts.get(0).getHostname());
+        assertEquals(InetAddress.getByName("192.0.2.1"), hosts.get(0).getAddresses().get(0));
+        assertEquals("mx2.example.test", hosts.get(1).getHostname());
+
+        assertEquals(hosts, service.resolve("EXAMPLE.test"));
+        assertEquals(1, dns.queries(name("example.test."), Type.MX));
+        assertEquals(1, dns.queries(name("mx1.example.test."), Type.A));
+    }
+
+    @Test
+    public void testAddressesFromTheAdditionalSectionAreUsed() throws Exception {
+        dns.answer(new MXRecord(name("glue.test."), DClass.IN, 300, 10, name("mx.glue.test.")));
+        dns.additional(name("glue.test."), Type.MX,
+                new ARecord(name("mx.glue.test."), DClass.IN, 300, InetAddress.getByName("192.0.2.9")));
+
+        List<MxHost> hosts = service.resolve("glue.test");
+
+        assertEquals(InetAddress.getByName("192.0.2.9"), hosts.get(0).getAddresses().get(0));
+        assertEquals(0, dns.queries(name("mx.glue.test."), Type.A));
+    }
+
+    @Test
+    public void testNegativeAnswersAreCached() throws Exception {
+        dns.nxdomain(name("nowhere.test."));
+
+        assertTrue(service.resolve("nowhere.test").isEmpty());
+        assertTrue(service.resolve("nowhere.test").isEmpty());
+        assertEquals(1, dns.queries(name("nowhere.test."), Type.MX));
+    }
+
+    @Test
+    public void testNullMxMeansNoMailExchanger() throws Exception {
+        dns.answer(new MXRecord(name("nomail.test."), DClass.IN, 300, 0, Name.root));
+
+        assertTrue(service.resolve("nomail.test").isEmpty());
+    }
+
+    @Test
+    public void testDomainWithoutMxIsItsOwnExchanger() throws Exception {
+        dns.answer(new ARecord(name("plain.test."), DClass.IN, 300, InetAddress.getByName("192.0.2.5")));
+
+        List<MxHost> hosts = service.resolve("plain.test");
+
+        assertEquals(1, hosts.size());
+        assertEquals("plain.test", hosts.get(0).getHostname());
+        assertEquals(InetAddress.getByName("192.0.2.5"), hosts.get(0).getAddresses().get(0));
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneQuery() throws Exception {
+        dns.answer(new MXRecord(name("busy.test."), DClass.IN, 300, 10, name("mx.busy.test.")));
+        dns.answer(new ARecord(name("mx.busy.test."), DClass.IN, 300, InetAddress.getByName("192.0.2.7")));
+        dns.delayMillis = 200;
+
+        List<CompletableFuture<List<MxHost>>> lookups = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            lookups.add(service.resolveAsync("busy.test"));
+        }
+        for (CompletableFuture<List<MxHost>> lookup : lookups) {
+            assertEquals("mx.busy.test", lookup.get(5, TimeUnit.SECONDS).get(0).getHostname());
+        }
+
+        assertEquals(1, dns.queries(name("busy.test."), Type.MX));
+        assertEquals(1, service.getCacheSize());
+    }
+
+    @Test
+    public void testAsyncLookupDoesNotBlockTheCaller() throws Exception {
+        dns.answer(new MXRecord(name("slow.test."), DClass.IN, 300, 10, name("mx.slow.test.")));
+        dns.answer(new ARecord(name("mx.slow.test."), DClass.IN, 300, InetAddress.getByName("192.0.2.8")));
+        dns.delayMillis = 300;
+
+        CompletableFuture<List<MxHost>> lookup = service.resolveAsync("slow.test");
+        assertFalse(lookup.isDone());
+        assertEquals("mx.slow.test", lookup.get(5, TimeUnit.SECONDS).get(0).getHostname());
+
+        // Cached now, so the answer is there at once
+        assertTrue(service.resolveAsync("slow.test").isDone());
+    }
+
+    @Test
+    public void testUnansweredLookupFailsWithoutCaching() throws Exception {
+        SimpleResolver resolver = dns.resolver();
+        service = new MxLookupService(resolver);
+        resolver.setTimeout(Duration.ofMillis(200));
+        dns.silent = true;
+
+        try {
+            service.resolveAsync("silent.test").get(5, TimeUnit.SECONDS);
+            fail("Lookup should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, service.getCacheSize());
+    }
+
+    private static Name name(String name) throws Exception {
+        return Name.fromString(name);
+    }
+}
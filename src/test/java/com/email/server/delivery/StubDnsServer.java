@@ -0,0 +1,136 @@
+package com.email.server.delivery;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Authoritative DNS server on a local UDP port answering from records set up
+ * by a test, counting the queries it gets
+ */
+class StubDnsServer implements AutoCloseable {
+    private final DatagramSocket socket;
+    private final Map<String, List<Record>> answers = new ConcurrentHashMap<>();
+    private final Map<String, List<Record>> additional = new ConcurrentHashMap<>();
+    private final Set<Name> missing = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+    private volatile Record soa;
+    volatile long delayMillis;
+    volatile boolean silent;
+
+    StubDnsServer() throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread thread = new Thread(this::serve, "stub-dns");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    SimpleResolver resolver() {
+        return new SimpleResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+    }
+
+    void answer(Record record) {
+        answers.computeIfAbsent(key(record.getName(), record.getType()), k -> new ArrayList<>()).add(record);
+    }
+
+    /**
+     * Send a record in the additional section of answers for the given name
+     */
+    void additional(Name name, int type, Record record) {
+        additional.computeIfAbsent(key(name, type), k -> new ArrayList<>()).add(record);
+    }
+
+    /**
+     * Answer NXDOMAIN for a name
+     */
+    void nxdomain(Name name) {
+        missing.add(name);
+    }
+
+    /**
+     * SOA sent in the authority section of negative answers
+     */
+    void soa(Record record) {
+        soa = record;
+    }
+
+    int queries(Name name, int type) {
+        AtomicInteger count = queries.get(key(name, type));
+        return count != null ? count.get() : 0;
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (silent) {
+                    continue;
+                }
+                byte[] response = respond(query).toWire();
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException | InterruptedException e) {
+                // Closed
+            }
+        }
+    }
+
+    private Message respond(Message query) {
+        Record question = query.getQuestion();
+        String key = key(question.getName(), question.getType());
+        queries.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AA);
+        response.addRecord(question, Section.QUESTION);
+
+        if (missing.contains(question.getName())) {
+            response.getHeader().setRcode(Rcode.NXDOMAIN);
+        }
+        List<Record> records = answers.get(key);
+        if (records != null) {
+            for (Record record : records) {
+                response.addRecord(record, Section.ANSWER);
+            }
+            for (Record record : additional.getOrDefault(key, new ArrayList<>())) {
+                response.addRecord(record, Section.ADDITIONAL);
+            }
+        } else if (soa != null) {
+            response.addRecord(soa, Section.AUTHORITY);
+        }
+        return response;
+    }
+
+    private static String key(Name name, int type) {
+        return name.toString().toLowerCase() + "/" + Type.string(type);
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,54 @@
+package com.email.server.imap;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BodySectionTest {
+    private static final byte[] HEADER = ("From: a@example.com\r\nSubject: Hi\r\nX-Long: one\r\n two\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testSectionsAreRangesSplitAtTheHeader() {
+        assertArrayEquals(new long[] {0, 100}, BodySection.parse("BODY[]").range(40, 100));
+        assertArrayEquals(new long[] {0, 40}, BodySection.parse("BODY.PEEK[HEADER]").range(40, 100));
+        assertArrayEquals(new long[] {40, 60}, BodySection.parse("RFC822.TEXT").range(40, 100));
+        assertEquals("BODY[HEADER]", BodySection.parse("BODY.PEEK[HEADER]").responseName());
+        assertEquals("RFC822.TEXT", BodySection.parse("RFC822.TEXT").responseName());
+    }
+
+    @Test
+    public void testPartialIsCutToTheSection() {
+        BodySection partial = BodySection.parse("BODY[TEXT]<10.20>");
+        assertEquals("BODY[TEXT]<10>", partial.responseName());
+        assertArrayEquals(new long[] {50, 20}, partial.range(40, 100));
+        assertArrayEquals(new long[] {50, 5}, partial.range(40, 55));
+        assertArrayEquals(new long[] {45, 0}, partial.range(40, 45));
+    }
+
+    @Test
+    public void testHeaderFieldsKeepFoldedLines() {
+        BodySection fields = BodySection.parse("BODY.PEEK[HEADER.FIELDS (SUBJECT X-LONG)]");
+        assertEquals("BODY[HEADER.FIELDS (SUBJECT X-LONG)]", fields.responseName());
+        assertEquals("Subject: Hi\r\nX-Long: one\r\n two\r\n\r\n",
+                new String(fields.headerFields(HEADER), StandardCharsets.US_ASCII));
+
+        BodySection not = BodySection.parse("BODY[HEADER.FIELDS.NOT (X-LONG)]<0.6>");
+        assertEquals("From: ", new String(not.headerFields(HEADER), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testHeaderLength() {
+        assertEquals(HEADER.length, BodySection.headerLength(HEADER, HEADER.length));
+        byte[] bare = "Subject: x\n\nbody".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(12, BodySection.headerLength(bare, bare.length));
+        assertEquals(-1, BodySection.headerLength(HEADER, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPartNumbersAreRejected() {
+        BodySection.parse("BODY[1.2]");
+    }
+}
@@ -1,6 +1,7 @@
 package com.email.server.imap;
 
 import com.email.server.config.ServerConfig;
+import com.email.server.mailbox.FolderStatus;
 import com.email.server.mailbox.LocalMailboxStorage;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -14,8 +15,10 @@ import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -109,7 +112,7 @@ public class ImapServerTest {
             out.println("A05 FETCH 1 (FLAGS BODY[TEXT])");
             response = in.readLine();
             assertTrue(response.startsWith("* 1 FETCH"));
-            assertTrue(response.contains("BODY[]"));
+            assertTrue(response.endsWith("BODY[TEXT] {11}"));
             // Read body content
             while (!(response = in.readLine()).startsWith("A05")) {
                 // consume body
@@ -132,4 +135,270 @@ public class ImapServerTest {
             assertTrue(response.startsWith("A07 OK"));
         }
     }
+
+    @Test
+    public void testUidCommands() throws Exception {
+        storage.saveMessage("user@example.com", "INBOX",
+                new com.email.server.storage.MailMessage(null, "sender@example.com",
+                        Collections.singletonList("user@example.com"), "Subject: Second\r\n\r\nAgain"));
+
+        String uidValidity;
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("A01 LOGIN \"user@example.com\" \"password\"");
+            assertTrue(in.readLine().startsWith("A01 OK"));
+
+            List<String> selected = select(in, out, "A02");
+            assertTrue(selected.contains("* OK [UIDNEXT 3] Predicted next UID"));
+            uidValidity = uidValidity(selected);
+            assertNotNull(uidValidity);
+
+            out.println("A03 UID FETCH 2:* (FLAGS)");
+            assertEquals("* 2 FETCH (UID 2 FLAGS ())", in.readLine());
+            assertTrue(in.readLine().startsWith("A03 OK"));
+
+            out.println("A04 UID STORE 1 +FLAGS (\\Seen)");
+            assertEquals("* 1 FETCH (UID 1 FLAGS (\\Seen))", in.readLine());
+            assertTrue(in.readLine().startsWith("A04 OK"));
+
+            out.println("A05 UID SEARCH UNSEEN");
+            assertEquals("* SEARCH 2", in.readLine());
+            assertTrue(in.readLine().startsWith("A05 OK"));
+
+            out.println("A06 SEARCH SEEN");
+            assertEquals("* SEARCH 1", in.readLine());
+            assertTrue(in.readLine().startsWith("A06 OK"));
+
+            // Lists of numbers, and items served from the index alone
+            out.println("A07 FETCH 2,1 (RFC822.SIZE INTERNALDATE)");
+            assertTrue(in.readLine().matches("\\* 1 FETCH \\(INTERNALDATE "
+                    + "\"\\d\\d-\\w{3}-\\d{4} [0-9:]{8} [+-]\\d{4}\" RFC822\\.SIZE 28\\)"));
+            assertTrue(in.readLine().startsWith("* 2 FETCH (INTERNALDATE"));
+            assertTrue(in.readLine().startsWith("A07 OK"));
+
+            out.println("A08 FETCH 1:x (FLAGS)");
+            assertTrue(in.readLine().startsWith("A08 BAD"));
+
+            // Items that are not served are refused rather than left out
+            out.println("A09 FETCH 1 (FLAGS BODYSTRUCTURE)");
+            assertTrue(in.readLine().startsWith("A09 BAD"));
+            out.println("A10 FETCH 1 ALL");
+            assertTrue(in.readLine().startsWith("A10 BAD"));
+        }
+
+        // A new session sees the same UIDs
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("B01 LOGIN \"user@example.com\" \"password\"");
+            assertTrue(in.readLine().startsWith("B01 OK"));
+            assertEquals(uidValidity, uidValidity(select(in, out, "B02")));
+
+            out.println("B03 FETCH 1:* (UID FLAGS)");
+            assertEquals("* 1 FETCH (UID 1 FLAGS (\\Seen))", in.readLine());
+            assertEquals("* 2 FETCH (UID 2 FLAGS ())", in.readLine());
+            assertTrue(in.readLine().startsWith("B03 OK"));
+        }
+    }
+
+    @Test
+    public void testQresyncSelectReportsOnlyChanges() throws Exception {
+        String second = storage.saveMessage("user@example.com", "INBOX",
+                new com.email.server.storage.MailMessage(null, "sender@example.com",
+                        Collections.singletonList("user@example.com"), "Subject: Second\r\n\r\nAgain"));
+        String third = storage.saveMessage("user@example.com", "INBOX",
+                new com.email.server.storage.MailMessage(null, "sender@example.com",
+                        Collections.singletonList("user@example.com"), "Subject: Third\r\n\r\nMore"));
+        FolderStatus synced = storage.getFolderStatus("user@example.com", "INBOX");
+
+        // Changes made while the client was away
+        long flagged = storage.updateFlags("user@example.com", "INBOX", second, Collections.singleton("\\Seen"),
+                true);
+        storage.deleteMessage("user@example.com", "INBOX", third);
+
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("A01 LOGIN \"user@example.com\" \"password\"");
+            assertTrue(in.readLine().startsWith("A01 OK"));
+
+            out.println("A02 ENABLE QRESYNC");
+            assertEquals("* ENABLED QRESYNC", in.readLine());
+            assertTrue(in.readLine().startsWith("A02 OK"));
+
+            // A malformed set of known UIDs is refused before the folder is selected
+            out.println("B01 SELECT INBOX (QRESYNC (" + synced.getUidValidity() + " 1 3:,))");
+            assertTrue(in.readLine().startsWith("B01 BAD"));
+            out.println("B02 FETCH 1 (FLAGS)");
+            assertTrue(in.readLine().startsWith("B02 NO"));
+
+            out.println("A03 SELECT INBOX (QRESYNC (" + synced.getUidValidity() + " " + synced.getHighestModSeq()
+                    + "))");
+            List<String> untagged = new ArrayList<>();
+            String response;
+            while (!(response = in.readLine()).startsWith("A03")) {
+                untagged.add(response);
+            }
+            assertTrue(response.startsWith("A03 OK"));
+            assertTrue(untagged.contains("* OK [HIGHESTMODSEQ " + (flagged + 1) + "] Highest"));
+            assertTrue(untagged.contains("* VANISHED (EARLIER) 3"));
+            assertTrue(untagged.contains("* 2 FETCH (UID 2 FLAGS (\\Seen) MODSEQ (" + flagged + "))"));
+            assertEquals(1, untagged.stream().filter(line -> line.contains("FETCH")).count());
+
+            out.println("A04 FETCH 1:* (FLAGS) (CHANGEDSINCE " + synced.getHighestModSeq() + ")");
+            assertEquals("* 2 FETCH (FLAGS (\\Seen) MODSEQ (" + flagged + "))", in.readLine());
+            assertTrue(in.readLine().startsWith("A04 OK"));
+        }
+    }
+
+    @Test
+    public void testIdleReportsChanges() throws Exception {
+        String first = storage.getMessages("user@example.com", "INBOX").get(0).getMessageId();
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("A01 LOGIN \"user@example.com\" \"password\"");
+            assertTrue(in.readLine().startsWith("A01 OK"));
+            select(in, out, "A02");
+
+            out.println("A03 IDLE");
+            assertEquals("+ idling", in.readLine());
+
+            // Changes made by other sessions and deliveries arrive unasked
+            String second = storage.saveMessage("user@example.com", "INBOX",
+                    new com.email.server.storage.MailMessage(null, "sender@example.com",
+                            Collections.singletonList("user@example.com"), "Subject: New\r\n\r\nPushed"));
+            assertEquals("* 2 EXISTS", in.readLine());
+            storage.updateFlags("user@example.com", "INBOX", second, Collections.singleton("\\Flagged"), true);
+            assertEquals("* 2 FETCH (UID 2 FLAGS (\\Flagged))", in.readLine());
+            storage.deleteMessage("user@example.com", "INBOX", first);
+            assertEquals("* 1 EXPUNGE", in.readLine());
+
+            out.println("DONE");
+            assertTrue(in.readLine().startsWith("A03 OK"));
+
+            // Outside IDLE changes wait for the next NOOP
+            storage.updateFlags("user@example.com", "INBOX", second, Collections.singleton("\\Seen"), true);
+            out.println("A04 FETCH 1 (UID)");
+            assertEquals("* 1 FETCH (UID 2)", in.readLine());
+            assertTrue(in.readLine().startsWith("A04 OK"));
+            out.println("A05 NOOP");
+            assertEquals("* 1 FETCH (UID 2 FLAGS (\\Seen))", in.readLine());
+            assertTrue(in.readLine().startsWith("A05 OK"));
+        }
+    }
+
+    @Test
+    public void testStoreKeepsChangesMadeBySessionsMeanwhile() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("A01 LOGIN \"user@example.com\" \"password\"");
+            assertTrue(in.readLine().startsWith("A01 OK"));
+            select(in, out, "A02");
+
+            // Flagged elsewhere after this session loaded the folder
+            String messageId = storage.getMessages("user@example.com", "INBOX").get(0).getMessageId();
+            storage.updateFlags("user@example.com", "INBOX", messageId, Collections.singleton("\\Flagged"), false);
+
+            out.println("A03 STORE 1 +FLAGS (\\Seen)");
+            String response = in.readLine();
+            assertTrue(response, response.contains("\\Seen") && response.contains("\\Flagged"));
+            assertTrue(in.readLine().startsWith("A03 OK"));
+
+            out.println("A04 STORE 1 -FLAGS.SILENT (\\Seen)");
+            assertTrue(in.readLine().startsWith("A04 OK"));
+
+            out.println("A05 FETCH 1 (FLAGS)");
+            assertEquals("* 1 FETCH (FLAGS (\\Flagged))", in.readLine());
+            assertTrue(in.readLine().startsWith("A05 OK"));
+
+            out.println("A06 STORE 1 COPY (\\Seen)");
+            assertTrue(in.readLine().startsWith("A06 BAD"));
+        }
+    }
+
+    @Test
+    public void testSectionFetch() throws Exception {
+        String messageId = storage.saveMessage("user@example.com", "INBOX",
+                new com.email.server.storage.MailMessage(null, "sender@example.com",
+                        Collections.singletonList("user@example.com"),
+                        "From: sender@example.com\r\nSubject: Parts\r\nX-Trace: a\r\n b\r\n\r\n"
+                                + "Line one\r\nLine two\r\n"));
+
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("A01 LOGIN \"user@example.com\" \"password\"");
+            assertTrue(in.readLine().startsWith("A01 OK"));
+            select(in, out, "A02");
+
+            out.println("A03 FETCH 2 (BODY.PEEK[HEADER.FIELDS (subject x-trace)])");
+            assertEquals("* 2 FETCH (BODY[HEADER.FIELDS (SUBJECT X-TRACE)] {34}", in.readLine());
+            assertEquals("Subject: Parts", in.readLine());
+            assertEquals("X-Trace: a", in.readLine());
+            assertEquals(" b", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals(")", in.readLine());
+            assertTrue(in.readLine().startsWith("A03 OK"));
+
+            // Several sections in one response, and a preview of the body
+            out.println("A04 UID FETCH 2 (RFC822.HEADER BODY.PEEK[TEXT]<5.3>)");
+            assertEquals("* 2 FETCH (UID 2 RFC822.HEADER {60}", in.readLine());
+            assertEquals("From: sender@example.com", in.readLine());
+            assertEquals("Subject: Parts", in.readLine());
+            assertEquals("X-Trace: a", in.readLine());
+            assertEquals(" b", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals(" BODY[TEXT]<5> {3}", in.readLine());
+            assertEquals("one)", in.readLine());
+            assertTrue(in.readLine().startsWith("A04 OK"));
+
+            out.println("A05 FETCH 1 (BODY[]<0.7>)");
+            assertEquals("* 1 FETCH (BODY[]<0> {7}", in.readLine());
+            assertEquals("Subject)", in.readLine());
+            assertTrue(in.readLine().startsWith("A05 OK"));
+
+            out.println("A06 FETCH 1 (BODY[1.MIME])");
+            assertTrue(in.readLine().startsWith("A06 BAD"));
+
+            // Content that cannot be read fails the command after the items the index has
+            Files.delete(storage.getMessage("user@example.com", "INBOX", messageId).getContentPath());
+            out.println("A07 FETCH 1:2 (UID BODY.PEEK[TEXT])");
+            assertEquals("* 1 FETCH (UID 1 BODY[TEXT] {11}", in.readLine());
+            assertEquals("Hello World)", in.readLine());
+            assertEquals("* 2 FETCH (UID 2)", in.readLine());
+            assertTrue(in.readLine().startsWith("A07 NO"));
+        }
+    }
+
+    /**
+     * @return the untagged responses to SELECT INBOX
+     */
+    private static List<String> select(BufferedReader in, PrintWriter out, String tag) throws Exception {
+        out.println(tag + " SELECT INBOX");
+        List<String> untagged = new ArrayList<>();
+        String response;
+        while (!(response = in.readLine()).startsWith(tag)) {
+            untagged.add(response);
+        }
+        assertTrue(response.startsWith(tag + " OK"));
+        return untagged;
+    }
+
+    private static String uidValidity(List<String> untagged) {
+        for (String response : untagged) {
+            if (response.startsWith("* OK [UIDVALIDITY ")) {
+                return response.substring(18, response.indexOf(']'));
+            }
+        }
+        return null;
+    }
 }
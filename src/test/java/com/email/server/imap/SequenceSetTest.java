@@ -0,0 +1,49 @@
+package com.email.server.imap;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SequenceSetTest {
+
+    @Test
+    public void testRangesAreSortedAndMerged() {
+        SequenceSet set = SequenceSet.parse("9,1:3,4,7:5,20:*", 25);
+        assertEquals("1:7,9,20:25", set.toString());
+        assertEquals(3, set.ranges());
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(6));
+        assertFalse(set.contains(8));
+        assertTrue(set.contains(9));
+        assertFalse(set.contains(10));
+        assertTrue(set.contains(25));
+        assertFalse(set.contains(26));
+    }
+
+    @Test
+    public void testStarStandsForTheLargestNumber() {
+        assertEquals("7", SequenceSet.parse("*", 7).toString());
+        assertEquals("7:10", SequenceSet.parse("10:*", 7).toString());
+        assertEquals("3,7", SequenceSet.parse("3,*", 7).toString());
+    }
+
+    @Test
+    public void testValuesAreCompacted() {
+        assertEquals("2:4,8,10:11", SequenceSet.of(Arrays.asList(11L, 3L, 2L, 10L, 8L, 4L, 3L)).toString());
+        assertTrue(SequenceSet.of(Arrays.asList()).isEmpty());
+    }
+
+    @Test
+    public void testMalformedSetsAreRejected() {
+        for (String malformed : new String[] { "", "0", "1,", "a:3", "1:2:3", "-1", "4294967296" }) {
+            try {
+                SequenceSet.parse(malformed, 10);
+                fail("Accepted " + malformed);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.email.server.mailbox;
+
+import com.email.server.storage.MailMessage;
+import com.email.server.storage.MailStorageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class LocalMailboxStorageTest {
+    private LocalMailboxStorage storage;
+    private Path tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("mail-storage");
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        storage.shutdown();
+    }
+
+    @Test
+    public void testMultiRecipientSaveSharesContent() throws Exception {
+        Path spool = Files.createTempFile(tempDir, "spool-", ".eml");
+        Files.write(spool, "Subject: Shared\r\n\r\nHello all\r\n".getBytes(StandardCharsets.US_ASCII));
+        List<String> recipients = Arrays.asList("alice@example.com", "bob@example.com", "carol@example.com");
+        MailMessage message = new MailMessage(null, "sender@example.com", recipients, spool, Files.size(spool));
+
+        Map<String, String> saved = storage.saveMessage(recipients, "INBOX", message);
+        assertEquals(recipients, Arrays.asList(saved.keySet().toArray()));
+
+        String messageId = saved.get("alice@example.com");
+        Path alice = tempDir.resolve("alice@example.com/INBOX/" + messageId + ".eml");
+        Path bob = tempDir.resolve("bob@example.com/INBOX/" + messageId + ".eml");
+        if (Files.getFileStore(alice).supportsFileAttributeView("unix")) {
+            assertTrue(Files.isSameFile(alice, bob));
+        }
+
+        // Deleting one copy leaves the others readable
+        assertTrue(storage.deleteMessage("alice@example.com", "INBOX", messageId));
+        List<MailMessage> messages = storage.getMessages("bob@example.com", "INBOX");
+        assertEquals(1, messages.size());
+        assertEquals("Shared", extractSubject(messages.get(0)));
+        assertTrue(messages.get(0).getData().contains("Hello all"));
+
+        // Nothing is left behind in the shared store
+        try (Stream<Path> blobs = Files.list(tempDir.resolve(".store"))) {
+            assertEquals(0, blobs.count());
+        }
+    }
+
+    @Test
+    public void testDeliveriesWithTheSameIdNeverShareContent() throws Exception {
+        MailMessage first = new MailMessage("MSG-SAME", "sender@example.com",
+                Collections.singletonList("alice@example.com"), "Subject: First\r\n\r\nFor alice");
+        MailMessage second = new MailMessage("MSG-SAME", "sender@example.com",
+                Arrays.asList("alice@example.com", "bob@example.com"), "Subject: Second\r\n\r\nFor bob");
+        storage.saveMessage("alice@example.com", "INBOX", first);
+
+        // Alice's copy is kept rather than replaced, bob gets his own content
+        Map<String, String> saved = storage.saveMessage(Arrays.asList("alice@example.com", "bob@example.com"),
+                "INBOX", second);
+        assertEquals(Collections.singleton("bob@example.com"), saved.keySet());
+        assertEquals("First", extractSubject(storage.getMessages("alice@example.com", "INBOX").get(0)));
+        assertEquals("Second", extractSubject(storage.getMessages("bob@example.com", "INBOX").get(0)));
+    }
+
+    @Test
+    public void testMissingFolderOnlySkipsThatRecipient() throws Exception {
+        storage.getOrCreateMailbox("alice@example.com", "alice@example.com");
+        storage.createFolder("alice@example.com", "Lists");
+
+        MailMessage message = new MailMessage(null, "sender@example.com",
+                Collections.singletonList("list@example.com"), "Subject: List\r\n\r\nPost");
+        Map<String, String> saved = storage.saveMessage(
+                Arrays.asList("alice@example.com", "bob@example.com"), "Lists", message);
+
+        assertEquals(Collections.singleton("alice@example.com"), saved.keySet());
+        assertEquals(1, storage.getMessageCount("alice@example.com", "Lists"));
+    }
+
+    @Test
+    public void testIndexSurvivesRestart() throws Exception {
+        String first = storage.saveMessage("alice@example.com", "INBOX", textMessage("First"));
+        String second = storage.saveMessage("alice@example.com", "INBOX", textMessage("Second"));
+        storage.saveMessage("alice@example.com", "INBOX", textMessage("Third"));
+        storage.updateFlags("alice@example.com", "INBOX", first, Collections.singleton("\\Seen"), false);
+        storage.updateFlags("alice@example.com", "INBOX", first, Collections.singleton("$Label1"), false);
+        storage.deleteMessage("alice@example.com", "INBOX", second);
+
+        storage.shutdown();
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+
+        List<MailMessage> messages = storage.getMessages("alice@example.com", "INBOX");
+        assertEquals(2, messages.size());
+        assertEquals(first, messages.get(0).getMessageId());
+        assertEquals(new HashSet<>(Arrays.asList("\\Seen", "$Label1")), messages.get(0).getFlags());
+        assertEquals("Third", extractSubject(messages.get(1)));
+        // Where the body starts, for IMAP section fetches
+        assertEquals("Subject: Third\r\n\r\n".length(), messages.get(1).getHeaderLength());
+    }
+
+    @Test
+    public void testLegacyIndexIsMigrated() throws Exception {
+        Path inbox = tempDir.resolve("legacy@example.com/INBOX");
+        storage.getOrCreateMailbox("legacy@example.com", "legacy@example.com");
+        Files.write(inbox.resolve("MSG1.eml"), "Subject: Old\r\n\r\nBody".getBytes(StandardCharsets.US_ASCII));
+        Files.write(inbox.resolve("MSG2.eml"), "Subject: Older\r\n\r\nBody".getBytes(StandardCharsets.US_ASCII));
+        Files.write(inbox.resolve("index"), Arrays.asList(
+                "MSG1|a@example.com|Old|14|2024-01-02T03:04:05|\\Seen",
+                "MSG2|b@example.com|Older|2024-01-01T00:00|16|"), StandardCharsets.UTF_8);
+
+        List<MailMessage> messages = storage.getMessages("legacy@example.com", "INBOX");
+        assertEquals(2, messages.size());
+        assertEquals(Collections.singleton("\\Seen"), messages.get(0).getFlags());
+        assertTrue(messages.get(1).getFlags().isEmpty());
+        assertEquals(1, messages.get(0).getUid());
+        assertEquals(2, messages.get(1).getUid());
+        assertEquals(3, storage.getFolderStatus("legacy@example.com", "INBOX").getUidNext());
+        assertFalse(Files.exists(inbox.resolve("index")));
+        assertTrue(Files.exists(inbox.resolve("index.dat")));
+    }
+
+    @Test
+    public void testFlagUpdatesAppendAndCompact() throws Exception {
+        String messageId = storage.saveMessage("alice@example.com", "INBOX", textMessage("Busy"));
+        Path recordFile = tempDir.resolve("alice@example.com/INBOX/index.dat");
+
+        storage.updateFlags("alice@example.com", "INBOX", messageId, Collections.singleton("\\Seen"), true);
+        // Folder header, the message and its flags
+        assertEquals(3 * 64, Files.size(recordFile));
+
+        for (int i = 0; i < 1100; i++) {
+            storage.updateFlags("alice@example.com", "INBOX", messageId,
+                    Collections.singleton(i % 2 == 0 ? "\\Flagged" : "\\Seen"), true);
+        }
+
+        // Compaction runs in the background and shrinks the log to the live
+        // message plus whatever updates came in while it ran
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.size(recordFile) > 100 * 64 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(Files.size(recordFile) <= 100 * 64);
+        assertEquals(0, Files.size(recordFile) % 64);
+
+        storage.shutdown();
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+        MailMessage message = storage.getMessage("alice@example.com", "INBOX", messageId);
+        assertEquals(Collections.singleton("\\Seen"), message.getFlags());
+        assertEquals(1, message.getUid());
+    }
+
+    @Test
+    public void testUidsSurviveRestartAndAreNotReused() throws Exception {
+        storage.saveMessage("alice@example.com", "INBOX", textMessage("First"));
+        storage.saveMessage("alice@example.com", "INBOX", textMessage("Second"));
+        String third = storage.saveMessage("alice@example.com", "INBOX", textMessage("Third"));
+        FolderStatus before = storage.getFolderStatus("alice@example.com", "INBOX");
+        assertEquals(4, before.getUidNext());
+
+        // The highest UID is gone from the log, but not handed out again
+        storage.deleteMessage("alice@example.com", "INBOX", third);
+        storage.shutdown();
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+
+        FolderStatus after = storage.getFolderStatus("alice@example.com", "INBOX");
+        assertEquals(before.getUidValidity(), after.getUidValidity());
+        assertEquals(4, after.getUidNext());
+        assertEquals(2, after.getMessageCount());
+
+        storage.saveMessage("alice@example.com", "INBOX", textMessage("Fourth"));
+        List<MailMessage> messages = storage.getMessages("alice@example.com", "INBOX");
+        assertEquals(Arrays.asList(1L, 2L, 4L), Arrays.asList(messages.get(0).getUid(), messages.get(1).getUid(),
+                messages.get(2).getUid()));
+    }
+
+    @Test
+    public void testModSeqTracksChangesAndExpunges() throws Exception {
+        String first = storage.saveMessage("alice@example.com", "INBOX", textMessage("First"));
+        String second = storage.saveMessage("alice@example.com", "INBOX", textMessage("Second"));
+        long saved = storage.getFolderStatus("alice@example.com", "INBOX").getHighestModSeq();
+
+        long flagged = storage.updateFlags("alice@example.com", "INBOX", first, Collections.singleton("\\Seen"), true);
+        assertTrue(flagged > saved);
+        storage.deleteMessage("alice@example.com", "INBOX", second);
+        long deleted = storage.getFolderStatus("alice@example.com", "INBOX").getHighestModSeq();
+        assertTrue(deleted > flagged);
+
+        storage.shutdown();
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+
+        assertEquals(deleted, storage.getFolderStatus("alice@example.com", "INBOX").getHighestModSeq());
+        assertEquals(flagged, storage.getMessage("alice@example.com", "INBOX", first).getModSeq());
+        assertEquals(Collections.singletonList(2L), storage.getExpungedUids("alice@example.com", "INBOX", saved));
+        assertTrue(storage.getExpungedUids("alice@example.com", "INBOX", deleted).isEmpty());
+
+        // Once compaction dropped the deletion it can no longer be listed
+        for (int i = 0; i < 1100; i++) {
+            storage.updateFlags("alice@example.com", "INBOX", first,
+                    Collections.singleton(i % 2 == 0 ? "\\Flagged" : "\\Seen"), true);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storage.getExpungedUids("alice@example.com", "INBOX", saved) != null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNull(storage.getExpungedUids("alice@example.com", "INBOX", saved));
+        assertTrue(storage.getExpungedUids("alice@example.com", "INBOX", deleted).isEmpty());
+        assertEquals(deleted + 1100, storage.getFolderStatus("alice@example.com", "INBOX").getHighestModSeq());
+    }
+
+    @Test
+    public void testLogWithoutUidsGetsThemOnOpen() throws Exception {
+        storage.saveMessage("alice@example.com", "INBOX", textMessage("First"));
+        storage.saveMessage("alice@example.com", "INBOX", textMessage("Second"));
+        storage.shutdown();
+
+        // Drop the folder header, as in a log written before UIDs existed
+        Path recordFile = tempDir.resolve("alice@example.com/INBOX/index.dat");
+        byte[] records = Files.readAllBytes(recordFile);
+        Files.write(recordFile, Arrays.copyOfRange(records, 64, records.length));
+
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+        List<MailMessage> messages = storage.getMessages("alice@example.com", "INBOX");
+        assertEquals(1, messages.get(0).getUid());
+        assertEquals(2, messages.get(1).getUid());
+        FolderStatus status = storage.getFolderStatus("alice@example.com", "INBOX");
+        assertTrue(status.getUidValidity() > 0);
+        assertEquals(3, status.getUidNext());
+        assertEquals(3 * 64, Files.size(recordFile));
+    }
+
+    @Test
+    public void testListingDoesNotReadBodies() throws Exception {
+        String messageId = storage.saveMessage("alice@example.com", "INBOX", textMessage("Lazy"));
+        List<MailMessage> messages = storage.getMessages("alice@example.com", "INBOX");
+        assertEquals(1, messages.size());
+        assertEquals(21, messages.get(0).getSize());
+
+        // The content is only read when asked for, after the listing was built
+        Path eml = tempDir.resolve("alice@example.com/INBOX/" + messageId + ".eml");
+        Files.write(eml, "Subject: Lazy\r\n\r\nLater".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("Subject: Lazy\r\n\r\nLater", messages.get(0).getData());
+        assertEquals(22, messages.get(0).getContent().remaining());
+    }
+
+    @Test
+    public void testAsyncCallsRunOnTheIoPool() throws Exception {
+        String caller = Thread.currentThread().getName();
+        Map<String, String> saved = storage.saveMessageAsync(Collections.singletonList("alice@example.com"), "INBOX",
+                textMessage("Async")).thenApply(result -> {
+                    assertNotEquals(caller, Thread.currentThread().getName());
+                    return result;
+                }).get(5, TimeUnit.SECONDS);
+        String messageId = saved.get("alice@example.com");
+
+        storage.updateFlagsAsync("alice@example.com", "INBOX", messageId, Collections.singleton("\\Seen"), true)
+                .get(5, TimeUnit.SECONDS);
+        List<MailMessage> messages = storage.getMessagesAsync("alice@example.com", "INBOX").get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singleton("\\Seen"), messages.get(0).getFlags());
+
+        // Failures complete the future instead of being thrown at the caller
+        try {
+            storage.updateFlagsAsync("alice@example.com", "INBOX", "missing", Collections.emptySet(), true)
+                    .get(5, TimeUnit.SECONDS);
+            fail("Update of a missing message should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MailStorageException);
+        }
+        assertTrue(storage.deleteMessageAsync("alice@example.com", "INBOX", messageId).get(5, TimeUnit.SECONDS));
+    }
+
+    private static MailMessage textMessage(String subject) {
+        return new MailMessage(null, "sender@example.com", Collections.singletonList("alice@example.com"),
+                "Subject: " + subject + "\r\n\r\nBody");
+    }
+
+    private static String extractSubject(MailMessage message) {
+        for (String line : message.getData().split("\r\n")) {
+            if (line.startsWith("Subject: ")) {
+                return line.substring(9);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+package com.email.server.mailbox;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MailboxEventBusTest {
+
+    @Test
+    public void testSubscribeRacingCancelKeepsTheNewListener() throws Exception {
+        MailboxEventBus bus = new MailboxEventBus();
+        for (int round = 0; round < 2000; round++) {
+            // Another session of the user leaves the folder while this one enters it
+            MailboxEventBus.Subscription leaving = bus.subscribe("user", "INBOX", event -> { });
+            CyclicBarrier start = new CyclicBarrier(2);
+            CountDownLatch cancelled = new CountDownLatch(1);
+            Thread other = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                leaving.cancel();
+                cancelled.countDown();
+            });
+            other.start();
+
+            AtomicInteger received = new AtomicInteger();
+            start.await();
+            MailboxEventBus.Subscription entering = bus.subscribe("user", "INBOX", event -> received.incrementAndGet());
+            cancelled.await();
+            other.join();
+
+            bus.publish(MailboxEvent.expunged("user", "INBOX", 1, round + 1));
+            assertEquals("Listener lost in round " + round, 1, received.get());
+            entering.cancel();
+        }
+    }
+
+    @Test
+    public void testCancelStopsEventsForThatListenerOnly() {
+        MailboxEventBus bus = new MailboxEventBus();
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        MailboxEventBus.Subscription subscription = bus.subscribe("user", "INBOX", event -> first.incrementAndGet());
+        bus.subscribe("user", "INBOX", event -> second.incrementAndGet());
+        bus.subscribe("user", "Sent", event -> fail("Event delivered to another folder"));
+
+        bus.publish(MailboxEvent.flagsChanged("user", "INBOX", 1, 2, Collections.singleton("\\Seen")));
+        subscription.cancel();
+        bus.publish(MailboxEvent.expunged("user", "INBOX", 1, 3));
+
+        assertEquals(1, first.get());
+        assertEquals(2, second.get());
+    }
+}
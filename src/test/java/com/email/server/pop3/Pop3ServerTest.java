@@ -135,4 +135,45 @@ public class Pop3ServerTest {
             assertTrue(response.startsWith("+OK"));
         }
     }
+
+    @Test
+    public void testRetrSendsStoredContentInWireForm() throws Exception {
+        String wireForm = "Subject: Plain\r\n\r\nAlready in wire form\r\n";
+        String needsStuffing = "Subject: Dots\n\n.leading dot\nlast line";
+        storage.saveMessage("dots@example.com", "INBOX", new com.email.server.storage.MailMessage(null,
+                "sender@example.com", Collections.singletonList("dots@example.com"), wireForm));
+        storage.saveMessage("dots@example.com", "INBOX", new com.email.server.storage.MailMessage(null,
+                "sender@example.com", Collections.singletonList("dots@example.com"), needsStuffing));
+
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine();
+            out.println("USER dots@example.com");
+            in.readLine();
+            out.println("PASS password");
+            assertTrue(in.readLine().startsWith("+OK"));
+
+            out.println("RETR 1");
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("Subject: Plain||Already in wire form|", readMultiLine(in, 3));
+            assertEquals(".", in.readLine());
+
+            out.println("RETR 2");
+            assertTrue(in.readLine().startsWith("+OK"));
+            assertEquals("Subject: Dots||..leading dot|last line|", readMultiLine(in, 4));
+            assertEquals(".", in.readLine());
+
+            out.println("QUIT");
+            assertTrue(in.readLine().startsWith("+OK"));
+        }
+    }
+
+    private static String readMultiLine(BufferedReader in, int lines) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append(in.readLine()).append('|');
+        }
+        return sb.toString();
+    }
 }
@@ -1,6 +1,7 @@
 package com.email.server.smtp;
 
 import com.email.server.config.ServerConfig;
+import com.email.server.mailbox.LocalMailboxStorage;
 import com.email.server.user.InMemoryUserRepository;
 import com.email.server.user.UserRepository;
 import org.junit.After;
@@ -12,8 +13,10 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Base64;
 
 import static org.junit.Assert.*;
@@ -24,6 +27,7 @@ public class SmtpAuthTest {
     private int port = 2525;
     public TemporaryFolder tempFolder = new TemporaryFolder();
     private UserRepository userRepository;
+    private LocalMailboxStorage storage;
 
     @Before
     public void setUp() throws Exception {
@@ -33,6 +37,7 @@ public class SmtpAuthTest {
         // System properties will be picked up by ServerConfig.load()
         System.setProperty("smtp.port", String.valueOf(port));
         System.setProperty("storage.mail-path", tempFolder.getRoot().getAbsolutePath());
+        System.setProperty("storage.queue-path", tempFolder.newFolder("queue").getAbsolutePath());
         System.setProperty("server.name", "localhost");
 
         ServerConfig config = ServerConfig.load();
@@ -40,8 +45,8 @@ public class SmtpAuthTest {
         userRepository = new InMemoryUserRepository();
         ((InMemoryUserRepository) userRepository).addUser("test@example.com", "password123");
 
-        server = new SmtpServer(config, userRepository,
-                new com.email.server.mailbox.LocalMailboxStorage(tempFolder.getRoot().getAbsolutePath()));
+        storage = new LocalMailboxStorage(tempFolder.getRoot().getAbsolutePath());
+        server = new SmtpServer(config, userRepository, storage);
         new Thread(() -> {
             try {
                 server.start();
@@ -62,6 +67,7 @@ public class SmtpAuthTest {
         tempFolder.delete();
         System.clearProperty("smtp.port");
         System.clearProperty("storage.mail-path");
+        System.clearProperty("storage.queue-path");
         System.clearProperty("server.name");
     }
 
@@ -187,4 +193,136 @@ public class SmtpAuthTest {
                 .count();
         assertEquals("Should have stored 1 meta file", 1, metaCount);
     }
+
+    @Test
+    public void testFailedLocalCopyFailsTheWholeTransaction() throws Exception {
+        // A recipient whose INBOX is not a directory cannot get a copy
+        storage.getOrCreateMailbox("broken@example.com", "broken@example.com");
+        Path inbox = Files.walk(tempFolder.getRoot().toPath())
+                .filter(p -> p.endsWith(Paths.get("broken@example.com", "INBOX")))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        Files.delete(inbox);
+        Files.createFile(inbox);
+
+        try (Socket socket = new Socket("localhost", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            in.readLine(); // Greeting
+            out.println("EHLO localhost");
+            while (!in.readLine().startsWith("250 "))
+                ;
+            String authString = "\0test@example.com\0password123";
+            out.println("AUTH PLAIN " + Base64.getEncoder().encodeToString(authString.getBytes()));
+            assertEquals("235 Authentication successful", in.readLine());
+
+            out.println("MAIL FROM:<test@example.com>");
+            assertEquals("250 OK", in.readLine());
+            out.println("RCPT TO:<recipient@example.com>");
+            assertEquals("250 OK", in.readLine());
+            out.println("RCPT TO:<broken@example.com>");
+            assertEquals("250 OK", in.readLine());
+            out.println("DATA");
+            assertTrue(in.readLine().startsWith("354"));
+            out.println("Subject: Partial");
+            out.println("");
+            out.println("Body");
+            out.println(".");
+            assertTrue(in.readLine().startsWith("451"));
+        }
+
+        // The copy that did get saved was taken back, so a retry delivers it once
+        assertEquals(0, storage.getMessageCount("recipient@example.com", "INBOX"));
+    }
+
+    @Test
+    public void testPipelinedTransaction() throws Exception {
+        try (Socket socket = new Socket("localhost", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+            in.readLine(); // Greeting
+            out.println("EHLO localhost");
+            String line;
+            boolean pipeliningFound = false;
+            while (!(line = in.readLine()).startsWith("250 ")) {
+                if (line.equals("250-PIPELINING")) {
+                    pipeliningFound = true;
+                }
+            }
+            assertTrue("Should advertise PIPELINING", pipeliningFound);
+
+            String authString = "\0test@example.com\0password123";
+            out.println("AUTH PLAIN " + Base64.getEncoder().encodeToString(authString.getBytes()));
+            assertEquals("235 Authentication successful", in.readLine());
+
+            // Send the whole envelope in a single write
+            out.print("MAIL FROM:<test@example.com>\r\n"
+                    + "RCPT TO:<recipient@example.com>\r\n"
+                    + "RCPT TO:<other@example.com>\r\n"
+                    + "DATA\r\n");
+            out.flush();
+            assertEquals("250 OK", in.readLine());
+            assertEquals("250 OK", in.readLine());
+            assertEquals("250 OK", in.readLine());
+            assertEquals("354 Start mail input; end with <CRLF>.<CRLF>", in.readLine());
+
+            // End of data followed by the next command
+            out.print("Subject: Pipelined\r\n\r\nBody\r\n.\r\nNOOP\r\n");
+            out.flush();
+            assertEquals("250 OK Message accepted for delivery", in.readLine());
+            assertEquals("250 OK", in.readLine());
+        }
+    }
+
+    @Test
+    public void testChunkedBinaryTransaction() throws Exception {
+        String first = "Subject: Chunked\r\n\r\n.not stuffed\r\n";
+        String last = ".\r\nbinary tail";
+
+        try (Socket socket = new Socket("localhost", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+
+            in.readLine(); // Greeting
+            out.println("EHLO localhost");
+            String line;
+            boolean chunkingFound = false;
+            while (!(line = in.readLine()).startsWith("250 ")) {
+                if (line.equals("250-CHUNKING")) {
+                    chunkingFound = true;
+                }
+            }
+            assertTrue("Should advertise CHUNKING", chunkingFound);
+
+            String authString = "\0test@example.com\0password123";
+            out.println("AUTH PLAIN " + Base64.getEncoder().encodeToString(authString.getBytes()));
+            assertEquals("235 Authentication successful", in.readLine());
+
+            out.println("MAIL FROM:<test@example.com> BODY=BINARYMIME");
+            assertEquals("250 OK", in.readLine());
+            out.println("RCPT TO:<recipient@example.com>");
+            assertEquals("250 OK", in.readLine());
+            // Binary content is never relayed
+            out.println("RCPT TO:<someone@remote.test>");
+            assertTrue(in.readLine().startsWith("554 5.6.3"));
+
+            out.println("DATA");
+            assertTrue(in.readLine().startsWith("503"));
+
+            out.print("BDAT " + first.length() + "\r\n" + first);
+            out.flush();
+            assertEquals("250 2.0.0 " + first.length() + " octets received", in.readLine());
+
+            out.print("BDAT " + last.length() + " LAST\r\n" + last);
+            out.flush();
+            assertEquals("250 OK Message accepted for delivery", in.readLine());
+        }
+
+        Path eml = Files.walk(tempFolder.getRoot().toPath())
+                .filter(p -> p.toString().endsWith(".eml"))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        assertEquals(first + last, new String(Files.readAllBytes(eml), StandardCharsets.US_ASCII));
+    }
 }
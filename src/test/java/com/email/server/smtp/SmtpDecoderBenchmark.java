@@ -0,0 +1,162 @@
+package com.email.server.smtp;
+
+import com.email.server.command.SmtpCommand;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DelimiterBasedFrameDecoder;
+import io.netty.handler.codec.Delimiters;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-message cost of the former line/String pipeline
+ * (DelimiterBasedFrameDecoder + StringDecoder + trim/split/toUpperCase) with
+ * {@link SmtpDecoder}. Allocation per message is reported by the GC profiler as
+ * {@code gc.alloc.rate.norm}.
+ *
+ * Run with:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.email.server.smtp.SmtpDecoderBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmtpDecoderBenchmark {
+
+    @Param({ "20", "2000" })
+    public int bodyLines;
+
+    private byte[] transaction;
+    private EmbeddedChannel legacyChannel;
+    private EmbeddedChannel decoderChannel;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("EHLO client.example.com\r\n");
+        sb.append("MAIL FROM:<sender@example.com>\r\n");
+        sb.append("RCPT TO:<alice@localhost>\r\n");
+        sb.append("RCPT TO:<bob@localhost>\r\n");
+        sb.append("DATA\r\n");
+        sb.append("From: sender@example.com\r\nTo: alice@localhost\r\nSubject: Benchmark\r\n\r\n");
+        for (int i = 0; i < bodyLines; i++) {
+            sb.append(i % 50 == 0 ? ".." : "").append("Lorem ipsum dolor sit amet, consectetur adipiscing elit ")
+                    .append(i).append("\r\n");
+        }
+        sb.append(".\r\n");
+        sb.append("RSET\r\n");
+        transaction = sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+        legacyChannel = new EmbeddedChannel(
+                new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()),
+                new StringDecoder(),
+                new LegacyConsumer(blackhole));
+
+        SmtpDecoder decoder = new SmtpDecoder();
+        decoderChannel = new EmbeddedChannel(decoder, new DecoderConsumer(decoder, blackhole));
+    }
+
+    @TearDown
+    public void tearDown() {
+        legacyChannel.finishAndReleaseAll();
+        decoderChannel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void legacyPipeline() {
+        legacyChannel.writeInbound(Unpooled.wrappedBuffer(transaction));
+    }
+
+    @Benchmark
+    public void smtpDecoder() {
+        decoderChannel.writeInbound(Unpooled.wrappedBuffer(transaction));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(SmtpDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * Mirrors the per-line work the String based SmtpHandler used to do
+     */
+    private static final class LegacyConsumer extends ChannelInboundHandlerAdapter {
+        private final Blackhole blackhole;
+        private boolean data;
+
+        LegacyConsumer(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            String raw = (String) msg;
+            String line = raw.trim();
+            if (data) {
+                if (line.equals(".")) {
+                    data = false;
+                } else {
+                    blackhole.consume(raw.startsWith("..") ? raw.substring(1) : raw);
+                }
+                return;
+            }
+            String[] parts = line.split("\\s+", 2);
+            String command = parts[0].toUpperCase();
+            blackhole.consume(parts.length > 1 ? parts[1] : "");
+            data = "DATA".equals(command);
+        }
+    }
+
+    private static final class DecoderConsumer extends ChannelInboundHandlerAdapter {
+        private final SmtpDecoder decoder;
+        private final Blackhole blackhole;
+
+        DecoderConsumer(SmtpDecoder decoder, Blackhole blackhole) {
+            this.decoder = decoder;
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf) {
+                blackhole.consume(((ByteBuf) msg).readableBytes());
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (msg instanceof SmtpRequest) {
+                SmtpRequest request = (SmtpRequest) msg;
+                blackhole.consume(request.getArgument());
+                if (request.getCommand() == SmtpCommand.DATA) {
+                    decoder.startData();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.email.server.smtp;
+
+import com.email.server.command.SmtpCommand;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SmtpDecoderTest {
+    private SmtpDecoder decoder;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        decoder = new SmtpDecoder(64);
+        channel = new EmbeddedChannel(decoder);
+    }
+
+    @Test
+    public void testCommandRecognition() {
+        write("ehlo client.example.com\r\nMAIL FROM:<a@example.com>  \r\nQuIt\r\nXYZZ foo\r\n");
+
+        SmtpRequest ehlo = channel.readInbound();
+        assertEquals(SmtpCommand.EHLO, ehlo.getCommand());
+        assertEquals("client.example.com", ehlo.getArgument());
+
+        SmtpRequest mail = channel.readInbound();
+        assertEquals(SmtpCommand.MAIL, mail.getCommand());
+        assertEquals("FROM:<a@example.com>", mail.getArgument());
+
+        SmtpRequest quit = channel.readInbound();
+        assertEquals(SmtpCommand.QUIT, quit.getCommand());
+        assertSame(SmtpRequest.of(SmtpCommand.QUIT, ""), quit);
+
+        SmtpRequest unknown = channel.readInbound();
+        assertEquals(SmtpCommand.UNKNOWN, unknown.getCommand());
+        assertEquals("XYZZ foo", unknown.getArgument());
+    }
+
+    @Test
+    public void testRawLineKeepsVerbLikeText() {
+        decoder.expectRawLine();
+        write("RSET\r\nRSET\r\n");
+
+        SmtpRequest raw = channel.readInbound();
+        assertEquals(SmtpCommand.UNKNOWN, raw.getCommand());
+        assertEquals("RSET", raw.getArgument());
+
+        SmtpRequest rset = channel.readInbound();
+        assertEquals(SmtpCommand.RSET, rset.getCommand());
+    }
+
+    @Test
+    public void testDataIsUnstuffedAcrossReads() {
+        decoder.startData();
+        write("Subject: x\r\n\r\n..leading dot\r\nmid");
+        write("dle\r\n.");
+        write("\r\nNOOP\r\n");
+
+        assertEquals("Subject: x\r\n\r\n.leading dot\r\nmiddle\r\n", readContent());
+        assertSame(SmtpDecoder.DATA_END, channel.readInbound());
+        assertFalse(decoder.isDataMode());
+
+        SmtpRequest noop = channel.readInbound();
+        assertEquals(SmtpCommand.NOOP, noop.getCommand());
+    }
+
+    @Test
+    public void testBareLineFeedTerminator() {
+        decoder.startData();
+        write("line one\n.\n");
+
+        assertEquals("line one\n", readContent());
+        assertSame(SmtpDecoder.DATA_END, channel.readInbound());
+    }
+
+    @Test
+    public void testTooLongCommandLine() {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longLine.append('x');
+        }
+        try {
+            write(longLine + "\r\n");
+            fail("Expected TooLongFrameException");
+        } catch (TooLongFrameException expected) {
+            // expected
+        }
+
+        write("NOOP\r\n");
+        SmtpRequest noop = channel.readInbound();
+        assertEquals(SmtpCommand.NOOP, noop.getCommand());
+    }
+
+    private void write(String text) {
+        channel.writeInbound(Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII));
+    }
+
+    private String readContent() {
+        StringBuilder content = new StringBuilder();
+        while (channel.inboundMessages().peek() instanceof ByteBuf) {
+            ByteBuf buf = channel.readInbound();
+            content.append(buf.toString(StandardCharsets.US_ASCII));
+            buf.release();
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package com.email.server.transport;
+
+import com.email.server.config.ServerConfig;
+import com.email.server.imap.ImapServer;
+import com.email.server.mailbox.LocalMailboxStorage;
+import com.email.server.pop3.Pop3Server;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransportRuntimeTest {
+    private static final int POP3_PORT = 11112;
+    private static final int IMAP_PORT = 11144;
+
+    private Path tempDir;
+    private ServerConfig config;
+    private LocalMailboxStorage storage;
+    private TransportRuntime runtime;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("transport-runtime");
+
+        Map<String, Object> configMap = new HashMap<>();
+        configMap.put("smtp.port", 2527);
+        configMap.put("smtp.bind-address", "127.0.0.1");
+        configMap.put("pop3.port", POP3_PORT);
+        configMap.put("pop3.bind-address", "127.0.0.1");
+        configMap.put("imap.port", IMAP_PORT);
+        configMap.put("imap.bind-address", "127.0.0.1");
+        configMap.put("storage.mail-path", tempDir.toString());
+        configMap.put("server.io-threads", 1);
+        configMap.put("server.worker-threads", 2);
+        configMap.put("server.max-connections", 10);
+        configMap.put("server.connection-timeout", 30);
+        configMap.put("server.name", "localhost");
+        config = new ServerConfig(ConfigFactory.parseMap(configMap));
+
+        storage = new LocalMailboxStorage(tempDir.toString());
+        storage.initialize();
+        runtime = new TransportRuntime(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        runtime.shutdown();
+        runtime.awaitTermination(10, TimeUnit.SECONDS);
+        storage.shutdown();
+    }
+
+    @Test
+    public void testStoppingOneServerLeavesTheOthersRunning() throws Exception {
+        Pop3Server pop3Server = new Pop3Server(config, runtime, storage);
+        ImapServer imapServer = new ImapServer(config, runtime, storage);
+        pop3Server.start();
+        imapServer.start();
+        try {
+            assertTrue(greeting(POP3_PORT).startsWith("+OK"));
+            pop3Server.stop();
+
+            assertTrue(greeting(IMAP_PORT).startsWith("* OK"));
+            assertFalse(runtime.getWorkerGroup().isShuttingDown());
+        } finally {
+            imapServer.stop();
+        }
+    }
+
+    private static String greeting(int port) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.setSoTimeout(5000);
+            return in.readLine();
+        }
+    }
+}
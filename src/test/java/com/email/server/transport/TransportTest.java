@@ -0,0 +1,88 @@
+package com.email.server.transport;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class TransportTest {
+
+    @Test
+    public void testSelection() {
+        assertEquals(Transport.NIO, Transport.select("nio"));
+        assertEquals(Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO, Transport.select("auto"));
+        assertEquals(Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO, Transport.select("EPOLL"));
+    }
+
+    @Test
+    public void testNioBindsOneSocket() throws Exception {
+        assertEquals(1, serve(Transport.NIO, 2));
+    }
+
+    @Test
+    public void testEpollAcceptorsShareThePort() throws Exception {
+        assumeTrue(Epoll.isAvailable());
+        assertEquals(2, serve(Transport.EPOLL, 2));
+    }
+
+    /**
+     * Bind a server that greets and closes each connection, connect to it a
+     * few times
+     *
+     * @return the number of sockets bound
+     */
+    private static int serve(Transport transport, int acceptors) throws Exception {
+        EventLoopGroup boss = transport.newEventLoopGroup(acceptors);
+        EventLoopGroup workers = transport.newEventLoopGroup(1);
+        try {
+            ServerBootstrap bootstrap = new ServerBootstrap()
+                    .group(boss, workers)
+                    .channel(transport.serverChannelClass())
+                    .childHandler(new Greeter());
+            List<Channel> channels = transport.bind(bootstrap, "127.0.0.1", 0, acceptors);
+            int port = ((InetSocketAddress) channels.get(0).localAddress()).getPort();
+            if (channels.size() > 1) {
+                // Port 0 picks a port for the first socket only, bind the rest to it
+                for (Channel channel : channels) {
+                    channel.close().sync();
+                }
+                channels = transport.bind(bootstrap, "127.0.0.1", port, acceptors);
+            }
+            for (int i = 0; i < 8; i++) {
+                try (Socket socket = new Socket("127.0.0.1", port)) {
+                    socket.setSoTimeout(5000);
+                    InputStream in = socket.getInputStream();
+                    assertEquals('+', in.read());
+                }
+            }
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+            return channels.size();
+        } finally {
+            boss.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            workers.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Greeter extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(ctx.alloc().buffer().writeByte('+')).addListener(future -> ctx.close());
+        }
+    }
+}